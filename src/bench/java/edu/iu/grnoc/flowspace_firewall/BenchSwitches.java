@@ -0,0 +1,178 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionVirtualLanIdentifier;
+
+/**
+ * builds the stub switches, slicers, flows and packets
+ * the benchmarks run against, the same way the unit tests do
+ * @author aragusa
+ *
+ */
+final class BenchSwitches {
+
+	//first vlan tag given to every port in a slice
+	static final short FIRST_VLAN = 100;
+	//payload size of the packets sent in packet outs
+	static final int PAYLOAD_LENGTH = 128;
+
+	private BenchSwitches(){
+	}
+
+	static String portName(short portId){
+		return "eth" + portId;
+	}
+
+	/**
+	 * a switch with ports 1 through count
+	 * @param count
+	 * @return IOFSwitch
+	 */
+	static IOFSwitch stubSwitch(int count){
+		IOFSwitch sw = createMock(IOFSwitch.class);
+		List<ImmutablePort> ports = new ArrayList<ImmutablePort>();
+		for(short i = 1; i <= count; i++){
+			ImmutablePort port = createMock(ImmutablePort.class);
+			expect(port.getName()).andReturn(portName(i)).anyTimes();
+			expect(port.getPortNumber()).andReturn(i).anyTimes();
+			replay(port);
+			ports.add(port);
+			expect(sw.getPort(i)).andReturn(port).anyTimes();
+		}
+		expect(sw.getId()).andReturn(1L).anyTimes();
+		expect(sw.getStringId()).andReturn("00:00:00:00:00:00:00:01").anyTimes();
+		expect(sw.getPorts()).andReturn(ports).anyTimes();
+		replay(sw);
+		return sw;
+	}
+
+	/**
+	 * a slicer with ports 1 through ports of sw, every port has
+	 * vlans tags starting at FIRST_VLAN
+	 * @param sw
+	 * @param ports
+	 * @param vlans
+	 * @param tagMgmt
+	 * @return VLANSlicer
+	 */
+	static VLANSlicer slicer(IOFSwitch sw, int ports, int vlans, boolean tagMgmt){
+		VLANSlicer slicer = new VLANSlicer();
+		slicer.setSliceName("bench");
+		slicer.setSwitchName("bench_switch");
+		slicer.setTagManagement(tagMgmt);
+		for(short i = 1; i <= ports; i++){
+			PortConfig pConfig = new PortConfig();
+			pConfig.setPortName(portName(i));
+			VLANRange range = new VLANRange();
+			for(int j = 0; j < vlans; j++){
+				range.setVlanAvail((short)(FIRST_VLAN + j), true);
+			}
+			pConfig.setVLANRange(range);
+			slicer.setPortConfig(portName(i), pConfig);
+		}
+		slicer.setSwitch(sw);
+		return slicer;
+	}
+
+	/**
+	 * a set vlan followed by an output
+	 */
+	static List<OFAction> setVlanOutput(short vlan, short port){
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionVirtualLanIdentifier setVid = new OFActionVirtualLanIdentifier();
+		setVid.setVirtualLanIdentifier(vlan);
+		actions.add(setVid);
+		actions.add(output(port));
+		return actions;
+	}
+
+	static OFActionOutput output(short port){
+		OFActionOutput output = new OFActionOutput();
+		output.setPort(port);
+		return output;
+	}
+
+	/**
+	 * a flow matching on inPort and vlan, a vlan of -1 with
+	 * DL_VLAN wildcarded and an inPort of 0 with IN_PORT wildcarded
+	 */
+	static OFFlowMod flow(short inPort, short vlan, List<OFAction> actions){
+		OFFlowMod flow = new OFFlowMod();
+		OFMatch match = new OFMatch();
+		if(inPort != 0){
+			match.setInputPort(inPort);
+			match.setWildcards(match.getWildcardObj().matchOn(Flag.IN_PORT));
+		}
+		if(vlan != -1){
+			match.setDataLayerVirtualLan(vlan);
+			match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN));
+		}
+		flow.setMatch(match);
+		flow.setActions(actions);
+		int length = OFFlowMod.MINIMUM_LENGTH;
+		for(OFAction action : actions){
+			length += action.getLengthU();
+		}
+		flow.setLength((short)length);
+		return flow;
+	}
+
+	/**
+	 * a packet out of an ethernet frame tagged with vlan (-1 for untagged)
+	 */
+	static OFPacketOut packetOut(short vlan, List<OFAction> actions){
+		Ethernet pkt = new Ethernet();
+		if(vlan != -1){
+			pkt.setVlanID(vlan);
+		}
+		pkt.setDestinationMACAddress("aa:bb:cc:dd:ee:ff");
+		pkt.setSourceMACAddress("ff:ee:dd:cc:bb:aa");
+		pkt.setEtherType((short)0x88cc);
+		pkt.setPayload(new Data(new byte[PAYLOAD_LENGTH]));
+		byte[] packetData = pkt.serialize();
+
+		OFPacketOut out = new OFPacketOut();
+		out.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		out.setActions(actions);
+		int actionsLength = 0;
+		for(OFAction action : actions){
+			actionsLength += action.getLengthU();
+		}
+		out.setActionsLength((short)actionsLength);
+		out.setPacketData(packetData);
+		out.setLength((short)(OFPacketOut.MINIMUM_LENGTH + actionsLength + packetData.length));
+		return out;
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.replay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * benchmarks the FlowStatCache against synthetic switch flow tables
+ *
+ * every flow in the table was pushed by one of the slices through
+ * addFlowMod, then the cache is warmed with one poll.  The cache is
+ * rebuilt before every iteration so the benchmarks that change it
+ * always start from the same place.  The retained heap of the warm cache
+ * is printed at the end of each trial, run with -prof gc for the
+ * allocation rate
+ *
+ * ant bench -Dbench.args="-prof gc FlowStatCacheBenchmark"
+ * @author aragusa
+ *
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FlowStatCacheBenchmark {
+
+	@Param({"1000", "10000", "50000", "100000"})
+	public int flows;
+
+	@Param({"1", "10", "50"})
+	public int slices;
+
+	//flow mods in each add/delete stream
+	static final int STREAM_LENGTH = 1000;
+	static final int PORTS = 48;
+	private static final long DPID = 1L;
+
+	private FlowSpaceFirewall fsfw;
+	private int vlansPerSlice;
+	private List<String> sliceNames;
+	//the switch flow table and the flow mods the slices sent for it
+	private List<OFStatistics> table;
+	private List<OFFlowMod> tableFlows;
+	//the table without the flows in deleteStream
+	private List<OFStatistics> tableAfterDelete;
+	//new flows not in the table
+	private List<OFFlowMod> addStream;
+	private List<OFFlowMod> deleteStream;
+
+	private FlowStatCache cache;
+	private FlowStatCache emptyCache;
+
+	private long retainedTotal;
+	private int retainedSamples;
+
+	@Setup(Level.Trial)
+	public void buildTable(){
+		IOFSwitch sw = BenchSwitches.stubSwitch(PORTS);
+		//enough vlans per slice for every slice to have its share of the flows on every port
+		vlansPerSlice = (flows + slices * PORTS - 1) / (slices * PORTS) + 1;
+
+		List<HashMap<Long, Slicer>> slicers = new ArrayList<HashMap<Long, Slicer>>();
+		sliceNames = new ArrayList<String>();
+		fsfw = createMock(FlowSpaceFirewall.class);
+		for(int s = 0; s < slices; s++){
+			String name = "slice" + s;
+			VLANSlicer slicer = new VLANSlicer();
+			slicer.setSliceName(name);
+			slicer.setSwitchName("bench_switch");
+			for(short i = 1; i <= PORTS; i++){
+				PortConfig pConfig = new PortConfig();
+				pConfig.setPortName(BenchSwitches.portName(i));
+				VLANRange range = new VLANRange();
+				for(int v = 0; v < vlansPerSlice; v++){
+					range.setVlanAvail(vlan(s, v, vlansPerSlice), true);
+				}
+				pConfig.setVLANRange(range);
+				slicer.setPortConfig(BenchSwitches.portName(i), pConfig);
+			}
+			slicer.setSwitch(sw);
+			HashMap<Long, Slicer> tmpMap = new HashMap<Long, Slicer>();
+			tmpMap.put(DPID, slicer);
+			slicers.add(tmpMap);
+			sliceNames.add(name);
+
+			Proxy proxy = createMock(Proxy.class);
+			expect(proxy.getSlicer()).andReturn(slicer).anyTimes();
+			proxy.setFlowCount(anyInt());
+			expectLastCall().anyTimes();
+			replay(proxy);
+			expect(fsfw.getProxy(eq(DPID), eq(name))).andReturn(proxy).anyTimes();
+		}
+		List<IOFSwitch> switches = new ArrayList<IOFSwitch>();
+		switches.add(sw);
+		expect(fsfw.getSlices()).andReturn(slicers).anyTimes();
+		expect(fsfw.getSwitches()).andReturn(switches).anyTimes();
+		replay(fsfw);
+
+		//flows are dealt out to the slices round robin, then by port and vlan
+		table = new ArrayList<OFStatistics>(flows);
+		tableFlows = new ArrayList<OFFlowMod>(flows);
+		for(int k = 0; k < flows; k++){
+			int s = k % slices;
+			short inPort = (short)((k / slices) % PORTS + 1);
+			short vlan = vlan(s, k / (slices * PORTS), vlansPerSlice);
+			OFFlowMod flow = BenchSwitches.flow(inPort, vlan, BenchSwitches.setVlanOutput(vlan, (short)(inPort % PORTS + 1)));
+			flow.setPriority((short)1000);
+			tableFlows.add(flow);
+			table.add(flowStat(flow, k));
+		}
+
+		//the streams are spread evenly over the table
+		int step = Math.max(1, flows / STREAM_LENGTH);
+		tableAfterDelete = new ArrayList<OFStatistics>(flows);
+		deleteStream = new ArrayList<OFFlowMod>();
+		addStream = new ArrayList<OFFlowMod>();
+		for(int k = 0; k < flows; k++){
+			OFFlowMod flow = tableFlows.get(k);
+			if(k % step != 0 || deleteStream.size() == STREAM_LENGTH){
+				tableAfterDelete.add(table.get(k));
+				continue;
+			}
+			deleteStream.add(flow);
+
+			//same shape as the table flow but matching on ether type so it is a new flow
+			OFFlowMod added = new OFFlowMod();
+			OFMatch match = flow.getMatch().clone();
+			match.setDataLayerType((short)0x0800);
+			match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_TYPE));
+			added.setMatch(match);
+			added.setActions(flow.getActions());
+			added.setPriority(flow.getPriority());
+			added.setLength(flow.getLength());
+			addStream.add(added);
+		}
+	}
+
+	private static short vlan(int slice, int index, int vlansPerSlice){
+		return (short)(VLANRange.MIN_VLAN + slice * vlansPerSlice + index);
+	}
+
+	private static OFFlowStatisticsReply flowStat(OFFlowMod flow, int k){
+		OFFlowStatisticsReply stat = new OFFlowStatisticsReply();
+		stat.setMatch(flow.getMatch().clone());
+		stat.setActions(flow.getActions());
+		stat.setPriority(flow.getPriority());
+		stat.setPacketCount(k);
+		stat.setByteCount(k * 64L);
+		stat.setLength((short)(OFFlowStatisticsReply.MINIMUM_LENGTH + flow.getLengthU() - OFFlowMod.MINIMUM_LENGTH));
+		return stat;
+	}
+
+	@Setup(Level.Iteration)
+	public void warmCache(){
+		cache = null;
+		emptyCache = null;
+		long before = usedHeap();
+		cache = new FlowStatCache(fsfw);
+		for(OFFlowMod flow : tableFlows){
+			cache.addFlowMod(DPID, sliceOf(flow), flow, sent(flow));
+		}
+		cache.setFlowCache(DPID, table);
+		retainedTotal += usedHeap() - before;
+		retainedSamples++;
+		emptyCache = new FlowStatCache(fsfw);
+	}
+
+	/**
+	 * works out which slice sent a flow from its vlan
+	 */
+	private String sliceOf(OFFlowMod flow){
+		return sliceNames.get((flow.getMatch().getDataLayerVirtualLan() - VLANRange.MIN_VLAN) / vlansPerSlice);
+	}
+
+	//the flows sent to the switch for a flow, the flow itself as the table flows are never expanded
+	private static List<OFFlowMod> sent(OFFlowMod flow){
+		List<OFFlowMod> sent = new ArrayList<OFFlowMod>(1);
+		sent.add(flow);
+		return sent;
+	}
+
+	private static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++){
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	@TearDown(Level.Trial)
+	public void printRetained(){
+		if(retainedSamples > 0){
+			long retained = retainedTotal / retainedSamples;
+			System.out.println("FlowStatCache retained heap for " + flows + " flows in " + slices + " slices: "
+					+ retained + " bytes (" + (retained / flows) + " bytes per flow)");
+		}
+	}
+
+	//a poll where every flow is already in the cache
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public FlowStatCache pollMerge(){
+		cache.setFlowCache(DPID, table);
+		return cache;
+	}
+
+	//the first poll after a restart, every flow has to be sliced
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public FlowStatCache coldMerge(){
+		emptyCache.setFlowCache(DPID, table);
+		return emptyCache;
+	}
+
+	//a poll after deleteStream was deleted, removes the stats and their mapped flows
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public FlowStatCache deleteMerge(){
+		for(OFFlowMod flow : deleteStream){
+			cache.delFlowMod(DPID, sliceOf(flow), flow, sent(flow));
+		}
+		cache.setFlowCache(DPID, tableAfterDelete);
+		return cache;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(STREAM_LENGTH)
+	public FlowStatCache addFlowMod(){
+		for(OFFlowMod flow : addStream){
+			cache.addFlowMod(DPID, sliceOf(flow), flow, sent(flow));
+		}
+		return cache;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(STREAM_LENGTH)
+	public FlowStatCache delFlowMod(){
+		for(OFFlowMod flow : deleteStream){
+			cache.delFlowMod(DPID, sliceOf(flow), flow, sent(flow));
+		}
+		return cache;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<OFStatistics> getSlicedFlowStats(){
+		return cache.getSlicedFlowStats(DPID, sliceNames.get(0));
+	}
+}
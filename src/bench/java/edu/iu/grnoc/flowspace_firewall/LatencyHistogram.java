@@ -0,0 +1,123 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a lock free histogram of latencies in nanoseconds for the load
+ * generator.  Every power of two is split into SUB_BUCKETS buckets
+ * so a percentile is reported within about 3% of the real value
+ * no matter how many samples are recorded
+ * @author aragusa
+ *
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	LatencyHistogram(String name){
+		this.name = name;
+	}
+
+	String getName(){
+		return this.name;
+	}
+
+	void record(long nanos){
+		if(nanos < 0){
+			//the clock is shared but the stamp and the read can race
+			nanos = 0;
+		}
+		counts.incrementAndGet(index(nanos));
+		long current = max.get();
+		while(nanos > current && !max.compareAndSet(current, nanos)){
+			current = max.get();
+		}
+	}
+
+	/**
+	 * forgets everything recorded so far, used at the end of the warmup
+	 */
+	void reset(){
+		for(int i = 0; i < counts.length(); i++){
+			counts.set(i, 0);
+		}
+		max.set(0);
+	}
+
+	long getCount(){
+		long count = 0;
+		for(int i = 0; i < counts.length(); i++){
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	long getMax(){
+		return max.get();
+	}
+
+	/**
+	 * returns the latency in nanoseconds that fraction of the
+	 * samples are at or below, 0 if nothing was recorded
+	 * @param fraction (0.99 for p99)
+	 */
+	long getPercentile(double fraction){
+		long[] snapshot = new long[counts.length()];
+		long count = 0;
+		for(int i = 0; i < snapshot.length; i++){
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if(count == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil(fraction * count));
+		long seen = 0;
+		for(int i = 0; i < snapshot.length; i++){
+			seen += snapshot[i];
+			if(seen >= rank){
+				return Math.min(lowerBound(i + 1) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int index(long value){
+		if(value < SUB_BUCKETS){
+			return (int)value;
+		}
+		int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+		int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(int index){
+		if(index < SUB_BUCKETS){
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << shift;
+	}
+}
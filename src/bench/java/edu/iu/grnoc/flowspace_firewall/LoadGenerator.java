@@ -0,0 +1,263 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+
+/**
+ * drives the Proxy and ControllerConnector pipeline end to end without
+ * hardware.  Every slice gets a SimulatedController listening on loopback
+ * and a Proxy that the ControllerConnector connects to it, all of them
+ * sharing one SimulatedSwitch.  After the warmup it reports the latency
+ * percentiles in each direction and the messages per second of each slice
+ *
+ * settings are given as name=value arguments
+ *   slices          number of slices/controllers (4)
+ *   ports           ports on the switch, every slice has all of them (8)
+ *   warmup          seconds before anything is measured (5)
+ *   duration        seconds measured (30)
+ *   packetInRate    packet ins per second sent to each slice, 0 for none (1000)
+ *   burstSize       flow mods in each burst, 0 for none (100)
+ *   burstInterval   milliseconds between bursts from each controller (100)
+ *   barrierEvery    flow mods between barriers, 0 for one at the end of
+ *                   each burst and -1 for no barriers (0)
+ *   statsInterval   milliseconds between flow stats requests, 0 for none (1000)
+ *   statsFlows      flows in each slice's flow stats reply (100)
+ *   flowRate        slice message rate limit (1000000)
+ *   packetInLimit   slice packet in rate limit (1000000)
+ *
+ * ant loadgen -Dloadgen.args="slices=10 packetInRate=5000 barrierEvery=10"
+ * @author aragusa
+ *
+ */
+public class LoadGenerator {
+
+	final int slices;
+	final int ports;
+	final int warmup;
+	final int duration;
+	final int packetInRate;
+	final int burstSize;
+	final int burstInterval;
+	final int barrierEvery;
+	final int statsInterval;
+	final int statsFlows;
+	final int flowRate;
+	final int packetInLimit;
+
+	//flow mod from the controller until the proxy writes it to the switch
+	final LatencyHistogram toSwitch = new LatencyHistogram("controller->switch flow mod");
+	//packet in from the switch until the controller reads it
+	final LatencyHistogram toController = new LatencyHistogram("switch->controller packet in");
+	final LatencyHistogram barrierReplies = new LatencyHistogram("barrier round trip");
+	final LatencyHistogram statsReplies = new LatencyHistogram("flow stats round trip");
+
+	LoadGenerator(Map<String, String> settings){
+		Map<String, String> unused = new HashMap<String, String>(settings);
+		slices = setting(unused, "slices", 4);
+		ports = setting(unused, "ports", 8);
+		warmup = setting(unused, "warmup", 5);
+		duration = setting(unused, "duration", 30);
+		packetInRate = setting(unused, "packetInRate", 1000);
+		burstSize = setting(unused, "burstSize", 100);
+		burstInterval = setting(unused, "burstInterval", 100);
+		barrierEvery = setting(unused, "barrierEvery", 0);
+		statsInterval = setting(unused, "statsInterval", 1000);
+		statsFlows = setting(unused, "statsFlows", 100);
+		flowRate = setting(unused, "flowRate", 1000000);
+		packetInLimit = setting(unused, "packetInLimit", 1000000);
+		if(!unused.isEmpty()){
+			throw new IllegalArgumentException("Unknown settings: " + unused.keySet());
+		}
+		if(slices < 1 || ports < 1 || duration < 1){
+			throw new IllegalArgumentException("slices, ports and duration must be at least 1");
+		}
+	}
+
+	private static int setting(Map<String, String> settings, String name, int defaultValue){
+		String value = settings.remove(name);
+		if(value == null){
+			return defaultValue;
+		}
+		try{
+			return Integer.parseInt(value.trim());
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("Setting " + name + " is not a number: " + value);
+		}
+	}
+
+	public static void main(String[] args) throws Exception{
+		Map<String, String> settings = new HashMap<String, String>();
+		for(String arg : args){
+			int split = arg.indexOf('=');
+			if(split <= 0){
+				throw new IllegalArgumentException("Settings are name=value, got: " + arg);
+			}
+			settings.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		new LoadGenerator(settings).run();
+	}
+
+	void run() throws InterruptedException{
+		NioServerSocketChannelFactory serverFactory = new NioServerSocketChannelFactory(
+				Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+		SimulatedSwitch sw = new SimulatedSwitch(ports, toSwitch);
+		//only the flow stats cache is used by the proxies
+		FlowSpaceFirewall fsfw = createNiceMock(FlowSpaceFirewall.class);
+		ControllerConnector connector = new ControllerConnector();
+
+		List<SimulatedController> controllers = new ArrayList<SimulatedController>();
+		List<Proxy> proxies = new ArrayList<Proxy>();
+		short[] sliceVlans = new short[slices];
+		for(int s = 0; s < slices; s++){
+			String name = "slice" + s;
+			short vlan = (short)(BenchSwitches.FIRST_VLAN + s);
+			sliceVlans[s] = vlan;
+			SimulatedController controller = new SimulatedController(name, vlan, this);
+			controllers.add(controller);
+
+			VLANSlicer slicer = new VLANSlicer();
+			slicer.setSliceName(name);
+			slicer.setSwitchName("loadgen_switch");
+			slicer.setController(controller.listen(serverFactory));
+			slicer.setMaxFlows(Integer.MAX_VALUE);
+			slicer.setFlowRate(flowRate);
+			slicer.setPacketInRate(packetInLimit);
+			for(short i = 1; i <= ports; i++){
+				PortConfig pConfig = new PortConfig();
+				pConfig.setPortName(BenchSwitches.portName(i));
+				VLANRange range = new VLANRange();
+				range.setVlanAvail(vlan, true);
+				pConfig.setVLANRange(range);
+				slicer.setPortConfig(BenchSwitches.portName(i), pConfig);
+			}
+			Proxy proxy = new Proxy(sw.getSwitch(), slicer, fsfw);
+			proxies.add(proxy);
+			connector.addProxy(SimulatedSwitch.DPID, proxy);
+			expect(fsfw.getSlicedFlowStats(eq(SimulatedSwitch.DPID), eq(name))).andReturn(flowStats(vlan)).anyTimes();
+		}
+		replay(fsfw);
+
+		ScheduledExecutorService timer = Executors.newScheduledThreadPool(
+				Math.min(slices, Runtime.getRuntime().availableProcessors()));
+		try{
+			connector.run();
+			waitForConnections(proxies);
+			sw.start(proxies, sliceVlans, packetInRate);
+			for(SimulatedController controller : controllers){
+				controller.start(timer);
+			}
+
+			System.out.println("Warming up for " + warmup + "s");
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+			toSwitch.reset();
+			toController.reset();
+			barrierReplies.reset();
+			statsReplies.reset();
+			for(SimulatedController controller : controllers){
+				controller.reset();
+			}
+
+			System.out.println("Measuring for " + duration + "s");
+			long started = System.nanoTime();
+			Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+			report(controllers, System.nanoTime() - started);
+		}finally{
+			timer.shutdownNow();
+			sw.stop();
+			for(Proxy proxy : proxies){
+				proxy.disconnect();
+			}
+			for(SimulatedController controller : controllers){
+				controller.close();
+			}
+			connector.channelCreator.releaseExternalResources();
+			connector.timer.stop();
+			serverFactory.releaseExternalResources();
+		}
+	}
+
+	private static void waitForConnections(List<Proxy> proxies) throws InterruptedException{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+		for(Proxy proxy : proxies){
+			while(!proxy.connected()){
+				if(System.nanoTime() > deadline){
+					throw new IllegalStateException("Slice " + proxy.getSlicer().getSliceName() + " never connected to its controller");
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * the cached flow stats a slice's stats requests are answered from
+	 */
+	private List<OFStatistics> flowStats(short vlan){
+		List<OFStatistics> stats = new ArrayList<OFStatistics>(statsFlows);
+		for(int k = 0; k < statsFlows; k++){
+			short inPort = (short)(k % ports + 1);
+			OFFlowMod flow = BenchSwitches.flow(inPort, vlan, BenchSwitches.setVlanOutput(vlan, (short)(inPort % ports + 1)));
+			OFFlowStatisticsReply stat = new OFFlowStatisticsReply();
+			stat.setMatch(flow.getMatch());
+			stat.setActions(flow.getActions());
+			stat.setPriority((short)1000);
+			stat.setPacketCount(k);
+			stat.setByteCount(k * 64L);
+			stat.setLength((short)(OFFlowStatisticsReply.MINIMUM_LENGTH + flow.getLengthU() - OFFlowMod.MINIMUM_LENGTH));
+			stats.add(stat);
+		}
+		return stats;
+	}
+
+	private void report(List<SimulatedController> controllers, long elapsed){
+		double seconds = elapsed / (double)TimeUnit.SECONDS.toNanos(1);
+		System.out.println();
+		System.out.println(String.format("%-12s %14s %14s %14s %10s", "slice", "to proxy/s", "from proxy/s", "packet ins/s", "errors"));
+		for(SimulatedController controller : controllers){
+			System.out.println(String.format("%-12s %14.1f %14.1f %14.1f %10d", controller.getSliceName(),
+					controller.getSent() / seconds, controller.getReceived() / seconds,
+					controller.getPacketIns() / seconds, controller.getErrors()));
+		}
+		System.out.println();
+		System.out.println(String.format("%-30s %10s %10s %10s %10s %10s", "latency (us)", "count", "p50", "p99", "p999", "max"));
+		LatencyHistogram[] histograms = {toSwitch, toController, barrierReplies, statsReplies};
+		for(LatencyHistogram histogram : histograms){
+			System.out.println(String.format("%-30s %10d %10.1f %10.1f %10.1f %10.1f", histogram.getName(), histogram.getCount(),
+					micros(histogram.getPercentile(0.5)), micros(histogram.getPercentile(0.99)),
+					micros(histogram.getPercentile(0.999)), micros(histogram.getMax())));
+		}
+	}
+
+	private static double micros(long nanos){
+		return nanos / 1000.0;
+	}
+}
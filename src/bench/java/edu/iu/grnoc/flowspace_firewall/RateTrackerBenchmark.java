@@ -0,0 +1,63 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * benchmarks the rate limit check done for every flow mod
+ * and packet in, at a slice's usual rate (mostly denied once
+ * the burst is used) and at a rate that is never reached
+ * @author aragusa
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RateTrackerBenchmark {
+
+	@Param({"100", "100000000"})
+	public int rate;
+
+	private RateTracker tracker;
+
+	@Setup
+	public void setUp(){
+		tracker = new RateTracker(1000, rate);
+	}
+
+	@Benchmark
+	public boolean okToProcess(){
+		return tracker.okToProcess();
+	}
+
+	//every proxy thread of a slice shares its tracker
+	@Benchmark
+	@Threads(4)
+	public boolean okToProcessContended(){
+		return tracker.okToProcess();
+	}
+}
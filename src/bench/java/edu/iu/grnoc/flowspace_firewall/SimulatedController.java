@@ -0,0 +1,345 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.internal.OFMessageEncoder;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFEchoReply;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFFeaturesRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFHello;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsReply;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * a fake OpenFlow 1.0 controller for one slice, listening on loopback
+ * for the ControllerConnector to connect the slice's proxy to it.
+ * Once the proxy has connected it sends flow mod bursts, barriers
+ * and flow stats requests on a schedule, and times the barrier and
+ * stats replies and the packet ins from the simulated switch
+ * @author aragusa
+ *
+ */
+final class SimulatedController extends SimpleChannelHandler {
+
+	private static final Logger log = LoggerFactory.getLogger(SimulatedController.class);
+
+	private final String sliceName;
+	private final short vlan;
+	private final LoadGenerator load;
+
+	private volatile Channel channel;
+	private Channel serverChannel;
+	private final AtomicInteger xids = new AtomicInteger(1);
+	//send times of the barriers and stats requests waiting for a reply
+	private final ConcurrentHashMap<Integer, Long> pending = new ConcurrentHashMap<Integer, Long>();
+	private long bursts;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong packetIns = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * @param sliceName
+	 * @param vlan the vlan the slice's flow mods match and set
+	 * @param load the settings and histograms of the run
+	 */
+	SimulatedController(String sliceName, short vlan, LoadGenerator load){
+		this.sliceName = sliceName;
+		this.vlan = vlan;
+		this.load = load;
+	}
+
+	String getSliceName(){
+		return this.sliceName;
+	}
+
+	/**
+	 * starts listening on an ephemeral loopback port
+	 * @param factory
+	 * @return the address for the slice's controller
+	 */
+	InetSocketAddress listen(ChannelFactory factory){
+		ServerBootstrap bootstrap = new ServerBootstrap(factory);
+		bootstrap.setOption("child.tcpNoDelay", true);
+		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+			public ChannelPipeline getPipeline(){
+				ChannelPipeline pipe = Channels.pipeline();
+				pipe.addLast("ofmessagedecoder", new OFFrameDecoder());
+				pipe.addLast("ofmessageencoder", new OFMessageEncoder());
+				pipe.addLast("handler", SimulatedController.this);
+				return pipe;
+			}
+		});
+		serverChannel = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+		return (InetSocketAddress)serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * schedules the flow mod bursts and stats requests
+	 * @param timer
+	 */
+	void start(ScheduledExecutorService timer){
+		if(load.burstInterval > 0 && load.burstSize > 0){
+			timer.scheduleAtFixedRate(new Runnable() {
+				public void run(){
+					try{
+						sendBurst();
+					}catch(Exception e){
+						log.error("Slice " + sliceName + " flow mod burst failed: " + e.getMessage(), e);
+					}
+				}
+			}, load.burstInterval, load.burstInterval, TimeUnit.MILLISECONDS);
+		}
+		if(load.statsInterval > 0){
+			timer.scheduleAtFixedRate(new Runnable() {
+				public void run(){
+					try{
+						sendStatsRequest();
+					}catch(Exception e){
+						log.error("Slice " + sliceName + " stats request failed: " + e.getMessage(), e);
+					}
+				}
+			}, load.statsInterval, load.statsInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	void close(){
+		if(channel != null){
+			channel.close().awaitUninterruptibly();
+		}
+		if(serverChannel != null){
+			serverChannel.close().awaitUninterruptibly();
+		}
+	}
+
+	/**
+	 * forgets the counters, used at the end of the warmup
+	 */
+	void reset(){
+		sent.set(0);
+		received.set(0);
+		packetIns.set(0);
+		errors.set(0);
+	}
+
+	long getSent(){
+		return sent.get();
+	}
+
+	long getReceived(){
+		return received.get();
+	}
+
+	long getPacketIns(){
+		return packetIns.get();
+	}
+
+	long getErrors(){
+		return errors.get();
+	}
+
+	/**
+	 * every other burst deletes the flows the burst before it added
+	 * so the slice never goes over its flow limit
+	 */
+	private void sendBurst(){
+		if(!connected()){
+			return;
+		}
+		boolean delete = (bursts++ % 2) == 1;
+		List<OFMessage> burst = new ArrayList<OFMessage>(load.burstSize + 1);
+		List<OFBarrierRequest> barriers = new ArrayList<OFBarrierRequest>();
+		for(int i = 0; i < load.burstSize; i++){
+			burst.add(flowMod(i, delete ? OFFlowMod.OFPFC_DELETE_STRICT : OFFlowMod.OFPFC_ADD));
+			if(load.barrierEvery > 0 && (i + 1) % load.barrierEvery == 0){
+				OFBarrierRequest barrier = new OFBarrierRequest();
+				burst.add(barrier);
+				barriers.add(barrier);
+			}
+		}
+		if(load.barrierEvery == 0){
+			OFBarrierRequest barrier = new OFBarrierRequest();
+			burst.add(barrier);
+			barriers.add(barrier);
+		}
+
+		//stamp everything just before it goes out
+		long now = System.nanoTime();
+		for(OFMessage msg : burst){
+			if(msg instanceof OFFlowMod){
+				((OFFlowMod)msg).setCookie(now);
+			}
+		}
+		for(OFBarrierRequest barrier : barriers){
+			barrier.setXid(xids.getAndIncrement());
+			pending.put(barrier.getXid(), now);
+		}
+		send(burst);
+	}
+
+	private OFFlowMod flowMod(int i, short command){
+		short inPort = (short)(i % load.ports + 1);
+		OFFlowMod flow = BenchSwitches.flow(inPort, vlan, BenchSwitches.setVlanOutput(vlan, (short)(inPort % load.ports + 1)));
+		//each flow in a burst has its own source mac
+		OFMatch match = flow.getMatch();
+		match.setDataLayerSource(new byte[]{2, 0, (byte)(i >> 24), (byte)(i >> 16), (byte)(i >> 8), (byte)i});
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_SRC));
+		flow.setCommand(command);
+		flow.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		flow.setOutPort(OFPort.OFPP_NONE);
+		flow.setPriority((short)1000);
+		flow.setXid(xids.getAndIncrement());
+		return flow;
+	}
+
+	private void sendStatsRequest(){
+		if(!connected()){
+			return;
+		}
+		OFStatisticsRequest req = new OFStatisticsRequest();
+		req.setStatisticType(OFStatisticsType.FLOW);
+		int requestLength = req.getLengthU();
+		OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
+		specificReq.setMatch(new OFMatch().setWildcards(0xffffffff));
+		specificReq.setTableId((byte)0xff);
+		specificReq.setOutPort(OFPort.OFPP_NONE.getValue());
+		req.setStatistics(Collections.singletonList((OFStatistics)specificReq));
+		requestLength += specificReq.getLength();
+		req.setLengthU(requestLength);
+		req.setXid(xids.getAndIncrement());
+		pending.put(req.getXid(), System.nanoTime());
+		send(Collections.singletonList((OFMessage)req));
+	}
+
+	private boolean connected(){
+		Channel channel = this.channel;
+		return channel != null && channel.isConnected();
+	}
+
+	private void send(List<OFMessage> msgs){
+		sent.addAndGet(msgs.size());
+		this.channel.write(msgs);
+	}
+
+	@Override
+	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e){
+		this.channel = e.getChannel();
+		List<OFMessage> handshake = new ArrayList<OFMessage>();
+		OFHello hello = new OFHello();
+		hello.setXid(xids.getAndIncrement());
+		handshake.add(hello);
+		OFFeaturesRequest features = new OFFeaturesRequest();
+		features.setXid(xids.getAndIncrement());
+		handshake.add(features);
+		this.channel.write(handshake);
+	}
+
+	@Override
+	public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e){
+		log.info("Slice " + sliceName + " proxy disconnected");
+		pending.clear();
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e){
+		//everything in one read arrived at the same time
+		long now = System.nanoTime();
+		@SuppressWarnings("unchecked")
+		List<OFMessage> msgs = (List<OFMessage>)e.getMessage();
+		received.addAndGet(msgs.size());
+		for(OFMessage msg : msgs){
+			switch(msg.getType()){
+			case PACKET_IN:
+				//the switch put the time it sent the packet in the last 8 bytes
+				byte[] data = ((OFPacketIn)msg).getPacketData();
+				load.toController.record(now - ByteBuffer.wrap(data).getLong(data.length - 8));
+				packetIns.incrementAndGet();
+				break;
+			case BARRIER_REPLY:
+				Long barrierSent = pending.remove(msg.getXid());
+				if(barrierSent != null){
+					load.barrierReplies.record(now - barrierSent);
+				}
+				break;
+			case STATS_REPLY:
+				//only the last reply of a request finishes it
+				if((((OFStatisticsReply)msg).getFlags() & 0x0001) == 0){
+					Long statsSent = pending.remove(msg.getXid());
+					if(statsSent != null){
+						load.statsReplies.record(now - statsSent);
+					}
+				}
+				break;
+			case ECHO_REQUEST:
+				OFEchoRequest echo = (OFEchoRequest)msg;
+				OFEchoReply reply = new OFEchoReply();
+				reply.setXid(echo.getXid());
+				reply.setPayload(echo.getPayload());
+				reply.setLengthU(echo.getLengthU());
+				e.getChannel().write(Collections.singletonList((OFMessage)reply));
+				break;
+			case ERROR:
+				errors.incrementAndGet();
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e){
+		log.error("Slice " + sliceName + " controller error: " + e.getCause().getMessage(), e.getCause());
+		e.getChannel().close();
+	}
+}
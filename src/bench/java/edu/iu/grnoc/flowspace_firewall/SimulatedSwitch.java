@@ -0,0 +1,277 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.openflow.protocol.OFBarrierReply;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPhysicalPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * an in process OpenFlow 1.0 switch for the load generator
+ *
+ * it is a stub IOFSwitch the proxies write to like they write to the
+ * floodlight switch, and it sends packet ins and barrier replies back
+ * through the PacketInDemux and Proxy.toController the same way
+ * FlowSpaceFirewall.receive does.  Everything the switch sends is sent
+ * from one thread like a single switch connection in floodlight.  The
+ * stub is thread safe so writes from the proxies are serialized on it
+ * @author aragusa
+ *
+ */
+final class SimulatedSwitch {
+
+	private static final Logger log = LoggerFactory.getLogger(SimulatedSwitch.class);
+
+	static final long DPID = 1L;
+	//ethernet payload of a packet in, the send time is in its last 8 bytes
+	private static final int PAYLOAD_LENGTH = 64;
+	private static final short ETHER_TYPE = (short)0x88b5;
+	//most packet ins a slice falls behind before the generator gives up on them
+	private static final int MAX_BEHIND_MILLIS = 10;
+
+	private final int ports;
+	private final LatencyHistogram toSwitch;
+	private final IOFSwitch sw;
+	private final AtomicInteger xids = new AtomicInteger(1);
+	private final ScheduledExecutorService switchThread = Executors.newSingleThreadScheduledExecutor();
+
+	private volatile List<Proxy> proxies = new ArrayList<Proxy>();
+	private volatile PacketInDemux demux;
+
+	/**
+	 * @param ports the switch has ports 1 through ports
+	 * @param toSwitch records the time from a controller sending a flow
+	 * mod to the proxy writing it to the switch
+	 */
+	SimulatedSwitch(int ports, LatencyHistogram toSwitch){
+		this.ports = ports;
+		this.toSwitch = toSwitch;
+		this.sw = this.stubSwitch();
+	}
+
+	IOFSwitch getSwitch(){
+		return this.sw;
+	}
+
+	@SuppressWarnings("unchecked")
+	private IOFSwitch stubSwitch(){
+		IOFSwitch sw = createNiceMock(IOFSwitch.class);
+		List<ImmutablePort> portList = new ArrayList<ImmutablePort>();
+		for(short i = 1; i <= this.ports; i++){
+			//the features reply sent to the controllers is built from these
+			OFPhysicalPort phys = new OFPhysicalPort();
+			phys.setPortNumber(i);
+			phys.setName(BenchSwitches.portName(i));
+			phys.setHardwareAddress(new byte[]{0, 0, 0, 0, (byte)(i >> 8), (byte)i});
+
+			ImmutablePort port = createMock(ImmutablePort.class);
+			expect(port.getName()).andReturn(BenchSwitches.portName(i)).anyTimes();
+			expect(port.getPortNumber()).andReturn(i).anyTimes();
+			expect(port.toOFPhysicalPort()).andReturn(phys).anyTimes();
+			replay(port);
+			portList.add(port);
+			expect(sw.getPort(i)).andReturn(port).anyTimes();
+		}
+		expect(sw.getId()).andReturn(DPID).anyTimes();
+		expect(sw.getStringId()).andReturn("00:00:00:00:00:00:00:01").anyTimes();
+		expect(sw.getPorts()).andReturn(portList).anyTimes();
+		expect(sw.isActive()).andReturn(true).anyTimes();
+		expect(sw.getNextTransactionId()).andAnswer(new IAnswer<Integer>() {
+			public Integer answer(){
+				return xids.getAndIncrement();
+			}
+		}).anyTimes();
+
+		try{
+			sw.write(isA(OFMessage.class), EasyMock.<FloodlightContext>anyObject());
+			expectLastCall().andAnswer(new IAnswer<Object>() {
+				public Object answer(){
+					received((OFMessage)getCurrentArguments()[0]);
+					return null;
+				}
+			}).anyTimes();
+			sw.write(EasyMock.<List<OFMessage>>anyObject(), EasyMock.<FloodlightContext>anyObject());
+			expectLastCall().andAnswer(new IAnswer<Object>() {
+				public Object answer(){
+					for(OFMessage msg : (List<OFMessage>)getCurrentArguments()[0]){
+						received(msg);
+					}
+					return null;
+				}
+			}).anyTimes();
+		}catch(IOException e){
+			//nothing is written while recording the stub
+			throw new IllegalStateException(e);
+		}
+		replay(sw);
+		return sw;
+	}
+
+	/**
+	 * called for every message a proxy writes to the switch
+	 */
+	private void received(OFMessage msg){
+		switch(msg.getType()){
+		case FLOW_MOD:
+			//the controller put the time it sent the flow mod in the cookie
+			toSwitch.record(System.nanoTime() - ((OFFlowMod)msg).getCookie());
+			break;
+		case BARRIER_REQUEST:
+			final int xid = msg.getXid();
+			switchThread.execute(new Runnable() {
+				public void run(){
+					barrierReply(xid);
+				}
+			});
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void barrierReply(int xid){
+		for(Proxy p : this.proxies){
+			if(!p.getAdminStatus()){
+				continue;
+			}
+			//floodlight hands one reply to every proxy, each gets its own
+			//copy here as the proxy that sent the request rewrites the xid
+			OFBarrierReply reply = new OFBarrierReply();
+			reply.setXid(xid);
+			try{
+				p.toController(reply, null);
+			}catch(Exception e){
+				log.error("Barrier reply failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * starts sending packet ins to every slice
+	 * @param proxies the proxies connected to the switch
+	 * @param sliceVlans a vlan in each slice to tag its packet ins with
+	 * @param packetInRate packet ins per second for each slice, 0 for none
+	 */
+	void start(List<Proxy> proxies, short[] sliceVlans, final int packetInRate){
+		this.proxies = proxies;
+		this.demux = new PacketInDemux(this.sw, proxies);
+		if(packetInRate <= 0){
+			return;
+		}
+
+		final byte[][] packets = new byte[sliceVlans.length][];
+		for(int s = 0; s < sliceVlans.length; s++){
+			packets[s] = packet(sliceVlans[s]);
+		}
+		final long maxBehind = Math.max(1, (long)packetInRate * MAX_BEHIND_MILLIS / 1000);
+		final long started = System.nanoTime();
+		switchThread.scheduleAtFixedRate(new Runnable() {
+			private long sent;
+			public void run(){
+				try{
+					//catch up to where the rate says we should be
+					long due = (System.nanoTime() - started) * packetInRate / TimeUnit.SECONDS.toNanos(1);
+					if(due - sent > maxBehind){
+						sent = due - maxBehind;
+					}
+					for(; sent < due; sent++){
+						short inPort = (short)(sent % ports + 1);
+						for(byte[] packet : packets){
+							packetIn(inPort, packet);
+						}
+					}
+				}catch(Exception e){
+					//don't stop the generator, just log it
+					log.error("Packet in failed: " + e.getMessage(), e);
+				}
+			}
+		}, 0, 1, TimeUnit.MILLISECONDS);
+	}
+
+	void stop(){
+		switchThread.shutdownNow();
+	}
+
+	private static byte[] packet(short vlan){
+		Ethernet pkt = new Ethernet();
+		pkt.setVlanID(vlan);
+		pkt.setDestinationMACAddress("ff:ff:ff:ff:ff:ff");
+		pkt.setSourceMACAddress("00:00:00:00:00:01");
+		pkt.setEtherType(ETHER_TYPE);
+		pkt.setPayload(new Data(new byte[PAYLOAD_LENGTH]));
+		return pkt.serialize();
+	}
+
+	private void packetIn(short inPort, byte[] packet){
+		byte[] data = packet.clone();
+		ByteBuffer.wrap(data).putLong(data.length - 8, System.nanoTime());
+
+		OFPacketIn pcktIn = new OFPacketIn();
+		pcktIn.setInPort(inPort);
+		pcktIn.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		pcktIn.setReason(OFPacketInReason.NO_MATCH);
+		pcktIn.setPacketData(data);
+		pcktIn.setTotalLength((short)data.length);
+		pcktIn.setLengthU(OFPacketIn.MINIMUM_LENGTH + data.length);
+
+		//the same dispatch as FlowSpaceFirewall.packetInToController
+		Proxy[] owners = this.demux.getProxies(pcktIn);
+		if(owners == null){
+			return;
+		}
+		for(Proxy p : owners){
+			if(!p.getAdminStatus()){
+				continue;
+			}
+			if(owners.length == 1){
+				p.packetInToController(pcktIn, null);
+			}else{
+				p.toController(pcktIn, null);
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * benchmarks the VLANSlicer flow mod and packet out slicing
+ *
+ * the switch has one more port than the slice so in_port wildcarded
+ * flows are always expanded to one flow per port in the slice
+ * @author aragusa
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SlicerBenchmark {
+
+	@Param({"8", "48", "96"})
+	public int ports;
+
+	@Param({"10", "1000"})
+	public int vlans;
+
+	private VLANSlicer slicer;
+	private VLANSlicer managedSlicer;
+
+	private OFFlowMod exactFlow;
+	private OFFlowMod deniedFlow;
+	private OFFlowMod wildcardFlow;
+	private OFFlowMod outputAllFlow;
+	private OFFlowMod managedFlow;
+	private OFFlowMod managedWildcardFlow;
+
+	private OFPacketOut packetOut;
+	private OFPacketOut packetOutAll;
+	private OFPacketOut managedPacketOut;
+	private OFPacketOut managedPacketOutAll;
+
+	@Setup
+	public void setUp(){
+		IOFSwitch sw = BenchSwitches.stubSwitch(ports + 1);
+		slicer = BenchSwitches.slicer(sw, ports, vlans, false);
+		managedSlicer = BenchSwitches.slicer(sw, ports, vlans, true);
+
+		short vlan = BenchSwitches.FIRST_VLAN;
+		short lastVlan = (short)(BenchSwitches.FIRST_VLAN + vlans - 1);
+		exactFlow = BenchSwitches.flow((short)1, vlan, BenchSwitches.setVlanOutput(lastVlan, (short)2));
+		//the last port on the switch is not in the slice
+		deniedFlow = BenchSwitches.flow((short)1, vlan, BenchSwitches.setVlanOutput(lastVlan, (short)(ports + 1)));
+		wildcardFlow = BenchSwitches.flow((short)0, vlan, BenchSwitches.setVlanOutput(lastVlan, (short)2));
+		outputAllFlow = BenchSwitches.flow((short)0, vlan, BenchSwitches.setVlanOutput(lastVlan, OFPort.OFPP_ALL.getValue()));
+
+		List<OFAction> output = new ArrayList<OFAction>();
+		output.add(BenchSwitches.output((short)2));
+		managedFlow = BenchSwitches.flow((short)1, (short)-1, output);
+		managedWildcardFlow = BenchSwitches.flow((short)0, (short)-1, output);
+
+		packetOut = BenchSwitches.packetOut(vlan, output);
+		List<OFAction> outputAll = new ArrayList<OFAction>();
+		outputAll.add(BenchSwitches.output(OFPort.OFPP_ALL.getValue()));
+		packetOutAll = BenchSwitches.packetOut(vlan, outputAll);
+		managedPacketOut = BenchSwitches.packetOut((short)-1, output);
+		managedPacketOutAll = BenchSwitches.packetOut((short)-1, outputAll);
+	}
+
+	@Benchmark
+	public List<OFFlowMod> allowedFlowsExact(){
+		return slicer.allowedFlows(exactFlow);
+	}
+
+	@Benchmark
+	public List<OFFlowMod> allowedFlowsDenied(){
+		return slicer.allowedFlows(deniedFlow);
+	}
+
+	@Benchmark
+	public List<OFFlowMod> allowedFlowsWildcard(){
+		return slicer.allowedFlows(wildcardFlow);
+	}
+
+	@Benchmark
+	public List<OFFlowMod> allowedFlowsOutputAll(){
+		return slicer.allowedFlows(outputAllFlow);
+	}
+
+	@Benchmark
+	public List<OFFlowMod> managedFlowsExact(){
+		return managedSlicer.managedFlows(managedFlow);
+	}
+
+	@Benchmark
+	public List<OFFlowMod> managedFlowsWildcard(){
+		return managedSlicer.managedFlows(managedWildcardFlow);
+	}
+
+	@Benchmark
+	public List<OFMessage> allowedPacketOut(){
+		return slicer.allowedPacketOut(packetOut);
+	}
+
+	@Benchmark
+	public List<OFMessage> allowedPacketOutAll(){
+		return slicer.allowedPacketOut(packetOutAll);
+	}
+
+	@Benchmark
+	public List<OFMessage> managedPacketOut(){
+		return managedSlicer.managedPacketOut(managedPacketOut);
+	}
+
+	@Benchmark
+	public List<OFMessage> managedPacketOutAll(){
+		return managedSlicer.managedPacketOut(managedPacketOutAll);
+	}
+}
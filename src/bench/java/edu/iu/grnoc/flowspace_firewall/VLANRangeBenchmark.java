@@ -0,0 +1,79 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * benchmarks vlan lookups and the overlap check done
+ * for every pair of slices when the config is loaded
+ * @author aragusa
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VLANRangeBenchmark {
+
+	@Param({"10", "1000", "4094"})
+	public int vlans;
+
+	private VLANRange range;
+	//nothing in common with range so the whole bitset is checked
+	private VLANRange disjoint;
+	//shares the last vlan of range
+	private VLANRange overlapping;
+	private short next = VLANRange.MIN_VLAN;
+
+	@Setup
+	public void setUp(){
+		range = new VLANRange();
+		for(int i = 0; i < vlans; i++){
+			range.setVlanAvail((short)(VLANRange.MIN_VLAN + i), true);
+		}
+		disjoint = new VLANRange();
+		disjoint.setVlanAvail(VLANRange.UNTAGGED, true);
+		overlapping = new VLANRange();
+		overlapping.setVlanAvail((short)(VLANRange.MIN_VLAN + vlans - 1), true);
+	}
+
+	@Benchmark
+	public boolean getVlanAvail(){
+		//walk every tag so hits and misses match the range size
+		short vlan = next;
+		next = (vlan == VLANRange.MAX_VLAN) ? VLANRange.MIN_VLAN : (short)(vlan + 1);
+		return range.getVlanAvail(vlan);
+	}
+
+	@Benchmark
+	public boolean rangeOverlapDisjoint(){
+		return range.rangeOverlap(disjoint);
+	}
+
+	@Benchmark
+	public boolean rangeOverlapShared(){
+		return range.rangeOverlap(overlapping);
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * benchmarks the xid mapping done for every message sent to
+ * the switch, with the map already full like it is on a busy slice
+ * @author aragusa
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class XidMapBenchmark {
+
+	@Param({"1000", "10000"})
+	public int maxXids;
+
+	private XidMap xids;
+	private int next;
+
+	@Setup
+	public void setUp(){
+		xids = new XidMap(maxXids);
+		for(next = 0; next < maxXids; next++){
+			xids.put(next, next + 1);
+		}
+	}
+
+	//a request that gets its reply, the usual case
+	@Benchmark
+	public int putGetRemove(){
+		int xid = next++;
+		xids.put(xid, xid + 1);
+		int value = xids.get(xid);
+		return value + xids.remove(xid);
+	}
+
+	//a request that never gets a reply, the oldest xid is dropped
+	@Benchmark
+	public void putEvict(){
+		int xid = next++;
+		xids.put(xid, xid + 1);
+	}
+
+	@Benchmark
+	public boolean containsKeyHit(){
+		//the newest xid is always mapped
+		return xids.containsKey(next - 1);
+	}
+
+	@Benchmark
+	public boolean containsKeyMiss(){
+		return xids.containsKey(-1);
+	}
+}
@@ -130,6 +130,40 @@ public final class ConfigParser {
 	        
 	        	flowSpaceFirewallParams.setStatsPollInterval(statsPollInterval);
 	        }
+	        
+	        if(fsfwNode.getAttributes().getNamedItem("stats_poll_concurrency") != null){
+	        	try{
+	        		flowSpaceFirewallParams.setStatsPollConcurrency(Integer.parseInt(fsfwNode.getAttributes().getNamedItem("stats_poll_concurrency").getTextContent()));
+	        	}
+	        	catch (NumberFormatException e){
+	        		log.error("Problem parsing " + xmlFile + ": " + e.getMessage());
+	        		throw e;
+	        	}
+	        }
+	        
+	        if(fsfwNode.getAttributes().getNamedItem("stats_poll_timeout") != null){
+	        	try{
+	        		flowSpaceFirewallParams.setStatsPollTimeout(Integer.parseInt(fsfwNode.getAttributes().getNamedItem("stats_poll_timeout").getTextContent()));
+	        	}
+	        	catch (NumberFormatException e){
+	        		log.error("Problem parsing " + xmlFile + ": " + e.getMessage());
+	        		throw e;
+	        	}
+	        }
+	        
+	        if(fsfwNode.getAttributes().getNamedItem("cache_write_interval") != null){
+	        	try{
+	        		flowSpaceFirewallParams.setCacheWriteInterval(Integer.parseInt(fsfwNode.getAttributes().getNamedItem("cache_write_interval").getTextContent()));
+	        	}
+	        	catch (NumberFormatException e){
+	        		log.error("Problem parsing " + xmlFile + ": " + e.getMessage());
+	        		throw e;
+	        	}
+	        }
+	        
+	        if(fsfwNode.getAttributes().getNamedItem("audit_log") != null){
+	        	flowSpaceFirewallParams.setAuditLog(fsfwNode.getAttributes().getNamedItem("audit_log").getTextContent());
+	        }
 		}catch (SAXException e) {
 			log.error("Problems parsing " + xmlFile + ": " + e.getMessage());
 			throw e;
@@ -303,6 +337,33 @@ public final class ConfigParser {
 	        					do_timeouts = Boolean.parseBoolean(switchConfig.getAttributes().getNamedItem("do_timeouts").getTextContent());
 	        				}
 	        				slicer.setDoTimeouts(do_timeouts);
+	        				Node max_xids_node = switchConfig.getAttributes().getNamedItem("max_xids");
+	        				int max_xids = XidMap.DEFAULT_MAX_XIDS;
+	        				if(max_xids_node != null){
+	        					max_xids = Integer.parseInt(max_xids_node.getTextContent());
+	        				}
+	        				if(max_xids < 2){
+	        					//the XidMap needs room for at least 2 xids
+	        					throw new InvalidConfigException("max_xids must be at least 2 for Slice: " + slicer.getSliceName() +
+	        							", Switch: " + slicer.getSwitchName());
+	        				}
+	        				slicer.setMaxXids(max_xids);
+	        				long buffer_cache_bytes = PacketBufferCache.DEFAULT_MAX_BYTES;
+	        				Node buffer_cache_bytes_node = switchConfig.getAttributes().getNamedItem("buffer_cache_bytes");
+	        				if(buffer_cache_bytes_node != null){
+	        					buffer_cache_bytes = Long.parseLong(buffer_cache_bytes_node.getTextContent());
+	        				}
+	        				int buffer_cache_age = PacketBufferCache.DEFAULT_MAX_AGE;
+	        				Node buffer_cache_age_node = switchConfig.getAttributes().getNamedItem("buffer_cache_age");
+	        				if(buffer_cache_age_node != null){
+	        					buffer_cache_age = Integer.parseInt(buffer_cache_age_node.getTextContent());
+	        				}
+	        				PacketBufferCache.EvictionPolicy buffer_cache_policy = PacketBufferCache.EvictionPolicy.FIFO;
+	        				Node buffer_cache_policy_node = switchConfig.getAttributes().getNamedItem("buffer_cache_policy");
+	        				if(buffer_cache_policy_node != null){
+	        					buffer_cache_policy = PacketBufferCache.EvictionPolicy.valueOf(buffer_cache_policy_node.getTextContent().toUpperCase());
+	        				}
+	        				slicer.setBufferCache(new PacketBufferCache(buffer_cache_bytes, buffer_cache_age, buffer_cache_policy));
 	        				NodeList ports = switchConfig.getChildNodes();
 	        				//for every port create a port config
 	        				for(int k=0; k < ports.getLength(); k++){
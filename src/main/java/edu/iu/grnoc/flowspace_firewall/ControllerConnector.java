@@ -24,7 +24,6 @@ import java.util.List;
 import java.util.TimerTask;
 import java.util.concurrent.Executors;
 
-import net.floodlightcontroller.core.internal.OFMessageDecoder;
 import net.floodlightcontroller.core.internal.OFMessageEncoder;
 
 import org.jboss.netty.channel.ChannelHandler;
@@ -76,7 +75,7 @@ public class ControllerConnector extends TimerTask {
 	    ChannelHandler readTimeoutHandler = new ReadTimeoutHandler(timer, 30);
 	    OFControllerChannelHandler controllerHandler = new OFControllerChannelHandler();
 		
-        pipe.addLast("ofmessagedecoder", new OFMessageDecoder());
+        pipe.addLast("ofmessagedecoder", new OFFrameDecoder());
         pipe.addLast("ofmessageencoder", new OFMessageEncoder());
         pipe.addLast("idle", idleHandler);
         pipe.addLast("timeout", readTimeoutHandler);
@@ -18,6 +18,12 @@ public class FSFWOFFlowStatisticsReply extends OFFlowStatisticsReply{
 	private String sliceName;
 	private FSFWOFFlowStatisticsReply parentStat;
 	private boolean hasParent = false;
+	//poll the counters were last set by, not saved
+	private transient long generation = 0;
+	//links for the FlowStatCache last seen order, not saved
+	transient FSFWOFFlowStatisticsReply older;
+	transient FSFWOFFlowStatisticsReply newer;
+	transient Object lastSeenList;
 
 	
 	public static FSFWOFFlowStatisticsReply clone(OFFlowStatisticsReply stat) throws CloneNotSupportedException{
@@ -78,6 +84,14 @@ public class FSFWOFFlowStatisticsReply extends OFFlowStatisticsReply{
 		return this.sliceName;
 	}
 	
+	public long getGeneration(){
+		return this.generation;
+	}
+	
+	public void setGeneration(long generation){
+		this.generation = generation;
+	}
+	
 	public boolean hasParent(){
 		return this.hasParent;
 	}
@@ -0,0 +1,346 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.util.HexString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * audit trail of the flow mods each slice sent and whether they were
+ * accepted or denied.  The proxies only drop a small record into a
+ * ring buffer, a background thread formats the records as JSON lines
+ * and writes them to a file that is rolled over when it gets too big
+ *
+ * the ring buffer never blocks the proxies, when it is full the record
+ * is dropped and counted
+ * @author aragusa
+ *
+ */
+public class FlowAuditLog implements Runnable {
+
+	public static final String DEFAULT_FILE = "/var/log/fsfw/flow_audit.log";
+	public static final long DEFAULT_MAX_FILE_SIZE = 100 * 1024 * 1024;
+	public static final int DEFAULT_MAX_FILES = 5;
+	private static final int DEFAULT_CAPACITY = 65536;
+	private static final long DRAIN_INTERVAL = 100;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Logger log = LoggerFactory.getLogger(FlowAuditLog.class);
+
+	public enum Verdict {
+		ACCEPT, DENY
+	}
+
+	public enum Reason {
+		ALLOWED, NOT_IN_SLICE, FLOW_LIMIT, DELETE_ALL
+	}
+
+	private static class Record {
+		final long time;
+		final long dpid;
+		final String sliceName;
+		final short command;
+		final OFMatch match;
+		final Verdict verdict;
+		final Reason reason;
+		final int flows;
+
+		Record(long dpid, String sliceName, short command, OFMatch match, Verdict verdict, Reason reason, int flows){
+			this.time = System.currentTimeMillis();
+			this.dpid = dpid;
+			this.sliceName = sliceName;
+			this.command = command;
+			this.match = match;
+			this.verdict = verdict;
+			this.reason = reason;
+			this.flows = flows;
+		}
+	}
+
+	private final File file;
+	private final long maxFileSize;
+	private final int maxFiles;
+
+	private final AtomicReferenceArray<Record> ring;
+	private final int mask;
+	//next slot to write, claimed by the proxies
+	private final AtomicLong tail = new AtomicLong();
+	//next slot to read, only moved by the writer thread
+	private volatile long head = 0;
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+
+	private Writer out;
+	private long fileSize;
+	//only log the first of a run of write errors
+	private boolean failing = false;
+	private volatile boolean running;
+	private Thread thread;
+
+	public FlowAuditLog(File file){
+		this(file, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+	}
+
+	/**
+	 * @param file
+	 * @param capacity records the ring buffer holds, rounded up to a power of 2
+	 * @param maxFileSize bytes written before the file is rolled over
+	 * @param maxFiles rolled over files kept
+	 */
+	public FlowAuditLog(File file, int capacity, long maxFileSize, int maxFiles){
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.ring = new AtomicReferenceArray<Record>(size);
+		this.mask = size - 1;
+		this.file = file;
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+	}
+
+	/**
+	 * starts the thread writing the records to the file
+	 */
+	public synchronized void start(){
+		if(this.running){
+			return;
+		}
+		this.running = true;
+		this.thread = new Thread(this, "FlowAuditLog");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * stops the writer thread after it writes what is queued
+	 */
+	public void stop(){
+		Thread t;
+		synchronized(this){
+			this.running = false;
+			t = this.thread;
+			this.thread = null;
+		}
+		if(t != null){
+			t.interrupt();
+			try{
+				t.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * records the decision made on a flow mod from a slice
+	 * @param dpid
+	 * @param sliceName
+	 * @param flow
+	 * @param verdict
+	 * @param reason
+	 * @param flows number of flows sent to the switch
+	 * @return false if the record was dropped because the buffer is full
+	 */
+	public boolean record(long dpid, String sliceName, OFFlowMod flow, Verdict verdict, Reason reason, int flows){
+		//the match is formatted later so it can not change under us
+		OFMatch match = flow.getMatch() == null ? null : flow.getMatch().clone();
+		Record record = new Record(dpid, sliceName, flow.getCommand(), match, verdict, reason, flows);
+		long slot;
+		do{
+			slot = this.tail.get();
+			if(slot - this.head >= this.ring.length()){
+				this.dropped.incrementAndGet();
+				return false;
+			}
+		}while(!this.tail.compareAndSet(slot, slot + 1));
+		this.ring.lazySet((int)(slot & this.mask), record);
+		return true;
+	}
+
+	public long getDropped(){
+		return this.dropped.get();
+	}
+
+	public long getWritten(){
+		return this.written.get();
+	}
+
+	public void run(){
+		while(this.running){
+			try{
+				this.drain();
+				Thread.sleep(DRAIN_INTERVAL);
+			}catch(InterruptedException e){
+				//stopping
+			}catch(Exception e){
+				log.error("Error writing flow audit log: " + e.getMessage());
+			}
+		}
+		this.drain();
+		this.closeFile();
+	}
+
+	/**
+	 * writes every published record to the file
+	 * @return number of records written
+	 */
+	synchronized int drain(){
+		int count = 0;
+		long next = this.head;
+		Record record;
+		while((record = this.ring.get((int)(next & this.mask))) != null){
+			this.ring.set((int)(next & this.mask), null);
+			next++;
+			this.head = next;
+			this.write(record);
+			count++;
+		}
+		if(count > 0 && this.out != null){
+			try{
+				this.out.flush();
+			}catch(IOException e){
+				log.error("Unable to flush flow audit log " + this.file.getPath() + ": " + e.getMessage());
+				this.closeFile();
+			}
+		}
+		return count;
+	}
+
+	private void write(Record record){
+		String line = format(record);
+		try{
+			if(this.out == null){
+				this.openFile();
+			}else if(this.fileSize + line.length() > this.maxFileSize){
+				this.rollFile();
+			}
+			this.out.write(line);
+			this.fileSize += line.length();
+			this.written.incrementAndGet();
+			this.failing = false;
+		}catch(IOException e){
+			//keep going, the next record tries to open the file again
+			this.dropped.incrementAndGet();
+			if(!this.failing){
+				log.error("Unable to write flow audit log " + this.file.getPath() + ": " + e.getMessage());
+				this.failing = true;
+			}
+			this.closeFile();
+		}
+	}
+
+	private static String format(Record record){
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"time\":").append(record.time);
+		sb.append(",\"dpid\":\"").append(HexString.toHexString(record.dpid)).append('"');
+		sb.append(",\"slice\":");
+		appendString(sb, record.sliceName);
+		sb.append(",\"command\":\"").append(commandName(record.command)).append('"');
+		sb.append(",\"verdict\":\"").append(record.verdict.toString().toLowerCase()).append('"');
+		sb.append(",\"reason\":\"").append(record.reason.toString().toLowerCase()).append('"');
+		sb.append(",\"flows\":").append(record.flows);
+		sb.append(",\"match\":");
+		appendString(sb, record.match == null ? null : record.match.toString());
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static String commandName(short command){
+		switch(command){
+		case OFFlowMod.OFPFC_ADD:
+			return "add";
+		case OFFlowMod.OFPFC_MODIFY:
+			return "modify";
+		case OFFlowMod.OFPFC_MODIFY_STRICT:
+			return "modify_strict";
+		case OFFlowMod.OFPFC_DELETE:
+			return "delete";
+		case OFFlowMod.OFPFC_DELETE_STRICT:
+			return "delete_strict";
+		default:
+			return Short.toString(command);
+		}
+	}
+
+	private static void appendString(StringBuilder sb, String str){
+		if(str == null){
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for(int i = 0; i < str.length(); i++){
+			char c = str.charAt(i);
+			if(c == '"' || c == '\\'){
+				sb.append('\\').append(c);
+			}else if(c < 0x20){
+				sb.append(String.format("\\u%04x", (int)c));
+			}else{
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	private void openFile() throws IOException{
+		this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, true), UTF8));
+		this.fileSize = this.file.length();
+	}
+
+	private void rollFile() throws IOException{
+		this.closeFile();
+		//flow_audit.log.1 is the newest and .maxFiles the oldest
+		for(int i = this.maxFiles; i > 0; i--){
+			File rolled = new File(this.file.getPath() + "." + i);
+			if(!rolled.exists()){
+				continue;
+			}
+			if(i == this.maxFiles){
+				rolled.delete();
+			}else{
+				rolled.renameTo(new File(this.file.getPath() + "." + (i + 1)));
+			}
+		}
+		if(this.maxFiles > 0){
+			this.file.renameTo(new File(this.file.getPath() + ".1"));
+		}else{
+			this.file.delete();
+		}
+		this.openFile();
+	}
+
+	private void closeFile(){
+		if(this.out == null){
+			return;
+		}
+		try{
+			this.out.close();
+		}catch(IOException e){
+			log.error("Unable to close flow audit log " + this.file.getPath() + ": " + e.getMessage());
+		}
+		this.out = null;
+	}
+}
@@ -0,0 +1,531 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.factory.BasicFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * append only journal of the flow adds and deletes the slices send
+ * through FlowStatCache.  Every record has a sequence number, the snapshot
+ * stores the next sequence number for each switch when it was written so on
+ * startup only the records the snapshot does not already have are replayed.
+ *
+ * appending only encodes the record and queues it, a background thread
+ * writes the queue to the current segment (flowCache.journal.1, .2 ...).
+ * Compacting starts a new segment and deletes the old segments a snapshot
+ * has every record of, nothing is rewritten so appends never wait on it
+ *
+ * each record is its length, sequence number, type, dpid, slice name and
+ * then the openflow wire encoding of the flow mod and its expanded flows.
+ * A record cut short by a crash ends its segment and is truncated on open
+ * @author aragusa
+ *
+ */
+public class FlowCacheJournal implements Runnable {
+
+	public static final byte ADD = 1;
+	public static final byte DELETE = 2;
+
+	private static final Logger log = LoggerFactory.getLogger(FlowCacheJournal.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int LENGTH_OFFSET = 2;
+	//where the sequence number is in an encoded record
+	private static final int SEQ_OFFSET = 4;
+	private static final long FLUSH_WAIT = 100;
+
+	private static final Comparator<Record> BY_SEQ = new Comparator<Record>() {
+		public int compare(Record a, Record b){
+			return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	private final File file;
+	private final AtomicLong nextSeq = new AtomicLong();
+	private final LinkedBlockingQueue<ChannelBuffer> queue = new LinkedBlockingQueue<ChannelBuffer>();
+	//records queued and records the writer thread is done with
+	private final AtomicLong queued = new AtomicLong();
+	private long drained = 0;
+	private final Object flushLock = new Object();
+	//oldest first, the last one is current, both guarded by this
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	private volatile boolean running = true;
+	private final Thread thread;
+
+	/**
+	 * a flow add or delete read back from the journal
+	 */
+	public static class Record {
+		long seq;
+		byte type;
+		long dpid;
+		String sliceName;
+		OFFlowMod flow;
+		List<OFFlowMod> flows;
+	}
+
+	/**
+	 * one file of the journal, only the current segment is open
+	 */
+	private static class Segment {
+		final long number;
+		final File file;
+		RandomAccessFile raf;
+		FileChannel channel;
+		//highest sequence number written to the segment, -1 if none
+		long maxSeq = -1;
+
+		Segment(long number, File file){
+			this.number = number;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * opens the journal, creating it if needed
+	 * @param file the segments are this path with .1, .2 ... added
+	 * @throws IOException
+	 */
+	public FlowCacheJournal(File file) throws IOException{
+		this.file = file;
+		long last = 0;
+		for(Segment segment : this.findSegments()){
+			List<Record> records = new ArrayList<Record>();
+			RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+			try{
+				FileChannel channel = raf.getChannel();
+				//drop anything after the last whole record
+				long end = read(segment.file, channel, records);
+				if(end != channel.size()){
+					log.warn("Truncating flow cache journal " + segment.file.getPath() + " at " + end + " of " + channel.size() + " bytes");
+					channel.truncate(end);
+				}
+			}finally{
+				raf.close();
+			}
+			for(Record record : records){
+				segment.maxSeq = Math.max(segment.maxSeq, record.seq);
+			}
+			this.ensureNextSeq(segment.maxSeq + 1);
+			this.segments.add(segment);
+			last = segment.number;
+		}
+		this.current = this.openSegment(last + 1);
+		this.thread = new Thread(this, "FlowCacheJournal");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * the segments already on disk, oldest first
+	 */
+	private List<Segment> findSegments(){
+		List<Segment> found = new ArrayList<Segment>();
+		File dir = this.file.getAbsoluteFile().getParentFile();
+		String[] names = dir == null ? null : dir.list();
+		if(names == null){
+			return found;
+		}
+		String prefix = this.file.getName() + ".";
+		for(String name : names){
+			if(!name.startsWith(prefix)){
+				continue;
+			}
+			try{
+				long number = Long.parseLong(name.substring(prefix.length()));
+				if(number > 0){
+					found.add(new Segment(number, new File(this.file.getPath() + "." + number)));
+				}
+			}catch(NumberFormatException e){
+				//not one of ours
+			}
+		}
+		Collections.sort(found, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b){
+				return a.number < b.number ? -1 : (a.number == b.number ? 0 : 1);
+			}
+		});
+		return found;
+	}
+
+	private Segment openSegment(long number) throws IOException{
+		Segment segment = new Segment(number, new File(this.file.getPath() + "." + number));
+		segment.raf = new RandomAccessFile(segment.file, "rw");
+		segment.channel = segment.raf.getChannel();
+		segment.channel.truncate(0);
+		this.segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * returns the sequence number the next record will get
+	 * @return long
+	 */
+	public long getNextSeq(){
+		return this.nextSeq.get();
+	}
+
+	/**
+	 * makes sure new records are numbered after seq
+	 * @param seq
+	 */
+	public void ensureNextSeq(long seq){
+		long next = this.nextSeq.get();
+		while(seq > next && !this.nextSeq.compareAndSet(next, seq)){
+			next = this.nextSeq.get();
+		}
+	}
+
+	/**
+	 * takes the sequence number for a record.  FlowStatCache does this
+	 * while holding the lock of the switch so a snapshot of the switch
+	 * knows if it has the record, the append itself is done after
+	 * @return long
+	 */
+	public long reserveSeq(){
+		return this.nextSeq.getAndIncrement();
+	}
+
+	/**
+	 * appends a flow add or delete to the journal with the next sequence number
+	 * @param type ADD or DELETE
+	 * @param dpid
+	 * @param sliceName
+	 * @param flow
+	 * @param flows
+	 */
+	public void append(byte type, long dpid, String sliceName, OFFlowMod flow, List<OFFlowMod> flows){
+		this.append(this.reserveSeq(), type, dpid, sliceName, flow, flows);
+	}
+
+	/**
+	 * appends a flow add or delete numbered by reserveSeq.  The record is
+	 * only encoded and queued, the writer thread puts it on disk
+	 * @param seq
+	 * @param type ADD or DELETE
+	 * @param dpid
+	 * @param sliceName
+	 * @param flow
+	 * @param flows
+	 */
+	public void append(long seq, byte type, long dpid, String sliceName, OFFlowMod flow, List<OFFlowMod> flows){
+		if(!this.running){
+			log.warn("Flow cache journal " + this.file.getPath() + " is closed, dropping record " + seq);
+			return;
+		}
+		ChannelBuffer buffer = encode(seq, type, dpid, sliceName, flow, flows);
+		this.queued.incrementAndGet();
+		this.queue.offer(buffer);
+	}
+
+	private static ChannelBuffer encode(long seq, byte type, long dpid, String sliceName, OFFlowMod flow, List<OFFlowMod> flows){
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(256);
+		buffer.writeInt(0);
+		buffer.writeLong(seq);
+		buffer.writeByte(type);
+		buffer.writeLong(dpid);
+		byte[] name = sliceName.getBytes(UTF8);
+		buffer.writeShort(name.length);
+		buffer.writeBytes(name);
+		writeFlowMod(buffer, flow);
+		buffer.writeInt(flows.size());
+		for(OFFlowMod sent_flow : flows){
+			writeFlowMod(buffer, sent_flow);
+		}
+		buffer.setInt(0, buffer.writerIndex() - 4);
+		return buffer;
+	}
+
+	private static void writeFlowMod(ChannelBuffer buffer, OFFlowMod flow){
+		int start = buffer.writerIndex();
+		flow.writeTo(buffer);
+		//the length is whatever was actually written
+		buffer.setShort(start + LENGTH_OFFSET, buffer.writerIndex() - start);
+	}
+
+	/**
+	 * the writer thread, writes whatever is queued in one go until closed
+	 */
+	public void run(){
+		List<ChannelBuffer> batch = new ArrayList<ChannelBuffer>();
+		while(this.running || !this.queue.isEmpty()){
+			try{
+				batch.add(this.queue.take());
+			}catch(InterruptedException e){
+				continue;
+			}
+			this.queue.drainTo(batch);
+			this.write(batch);
+			batch.clear();
+		}
+	}
+
+	private void write(List<ChannelBuffer> batch){
+		List<ByteBuffer> data = new ArrayList<ByteBuffer>(batch.size());
+		long maxSeq = -1;
+		for(ChannelBuffer buffer : batch){
+			//close wakes the thread with an empty buffer
+			if(!buffer.readable()){
+				continue;
+			}
+			maxSeq = Math.max(maxSeq, buffer.getLong(SEQ_OFFSET));
+			data.add(buffer.toByteBuffer());
+		}
+		if(!data.isEmpty()){
+			synchronized(this){
+				Segment segment = this.current;
+				long position = 0;
+				try{
+					position = segment.channel.position();
+					write(segment.channel, data.toArray(new ByteBuffer[data.size()]));
+					segment.maxSeq = Math.max(segment.maxSeq, maxSeq);
+				}catch(IOException e){
+					log.error("Error writing " + data.size() + " records to flow cache journal " + segment.file.getPath() + ": " + e.getMessage());
+					//do not leave part of a record behind
+					try{
+						segment.channel.truncate(position);
+						segment.channel.position(position);
+					}catch(IOException e2){
+						log.error("Error truncating flow cache journal " + segment.file.getPath() + ": " + e2.getMessage());
+					}
+				}
+			}
+		}
+		synchronized(this.flushLock){
+			this.drained += data.size();
+			this.flushLock.notifyAll();
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer[] data) throws IOException{
+		long remaining = 0;
+		for(ByteBuffer buffer : data){
+			remaining += buffer.remaining();
+		}
+		while(remaining > 0){
+			remaining -= channel.write(data);
+		}
+	}
+
+	/**
+	 * waits until every record appended so far has been written
+	 */
+	public void flush(){
+		long target = this.queued.get();
+		synchronized(this.flushLock){
+			while(this.drained < target && this.thread.isAlive()){
+				try{
+					this.flushLock.wait(FLUSH_WAIT);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * reads every whole record in the journal once what is queued is written
+	 * @return List of records, by sequence number
+	 * @throws IOException
+	 */
+	public List<Record> read() throws IOException{
+		this.flush();
+		List<Record> records = new ArrayList<Record>();
+		synchronized(this){
+			for(Segment segment : this.segments){
+				RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+				try{
+					read(segment.file, raf.getChannel(), records);
+				}finally{
+					raf.close();
+				}
+			}
+		}
+		//records are numbered under the switch lock but queued after it
+		//so they can reach the file a little out of order
+		Collections.sort(records, BY_SEQ);
+		return records;
+	}
+
+	/**
+	 * reads the records into records and returns the offset just past the last whole one
+	 */
+	private static long read(File file, FileChannel channel, List<Record> records) throws IOException{
+		long size = channel.size();
+		if(size == 0){
+			return 0;
+		}
+		ChannelBuffer data = ChannelBuffers.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		int end = 0;
+		while(data.readableBytes() >= 4){
+			int length = data.readInt();
+			if(length <= 0 || length > data.readableBytes()){
+				break;
+			}
+			try{
+				records.add(readRecord(data.readSlice(length)));
+			}catch(RuntimeException e){
+				log.warn("Bad record in flow cache journal " + file.getPath() + " at " + end);
+				break;
+			}catch(IOException e){
+				log.warn("Bad record in flow cache journal " + file.getPath() + " at " + end + ": " + e.getMessage());
+				break;
+			}
+			end = data.readerIndex();
+		}
+		return end;
+	}
+
+	private static Record readRecord(ChannelBuffer data) throws IOException{
+		Record record = new Record();
+		record.seq = data.readLong();
+		record.type = data.readByte();
+		if(record.type != ADD && record.type != DELETE){
+			throw new IOException("Unknown record type " + record.type);
+		}
+		record.dpid = data.readLong();
+		byte[] name = new byte[data.readUnsignedShort()];
+		data.readBytes(name);
+		record.sliceName = new String(name, UTF8);
+		record.flow = readFlowMod(data);
+		int count = data.readInt();
+		if(count < 0){
+			throw new IOException("Invalid flow count " + count);
+		}
+		record.flows = new ArrayList<OFFlowMod>();
+		for(int i = 0; i < count; i++){
+			record.flows.add(readFlowMod(data));
+		}
+		if(data.readable()){
+			throw new IOException("Record length does not match its contents");
+		}
+		return record;
+	}
+
+	private static OFFlowMod readFlowMod(ChannelBuffer data) throws IOException{
+		int length = data.getUnsignedShort(data.readerIndex() + LENGTH_OFFSET);
+		if(length < OFFlowMod.MINIMUM_LENGTH || length > data.readableBytes()){
+			throw new IOException("Invalid flow mod length " + length);
+		}
+		OFFlowMod flow = new OFFlowMod();
+		flow.setActionFactory(BasicFactory.getInstance());
+		flow.readFrom(data.readSlice(length));
+		return flow;
+	}
+
+	/**
+	 * drops the records before seq, called once a snapshot that has all
+	 * of them is on disk.  New records go to a new segment and the old
+	 * segments with nothing at or after seq are deleted, records appended
+	 * meanwhile are queued and written to the new segment
+	 * @param seq
+	 * @throws IOException
+	 */
+	public void compact(long seq) throws IOException{
+		//the records the snapshot has should be in the segments being closed
+		this.flush();
+		List<Segment> covered = new ArrayList<Segment>();
+		synchronized(this){
+			if(this.current.maxSeq >= 0){
+				Segment old = this.current;
+				this.current = this.openSegment(old.number + 1);
+				try{
+					old.raf.close();
+				}catch(IOException e){
+					log.error("Error closing flow cache journal " + old.file.getPath() + ": " + e.getMessage());
+				}
+			}
+			Iterator<Segment> it = this.segments.iterator();
+			while(it.hasNext()){
+				Segment segment = it.next();
+				if(segment != this.current && segment.maxSeq < seq){
+					it.remove();
+					covered.add(segment);
+				}
+			}
+		}
+		//replay skips what the snapshot has so a segment left behind does no harm
+		IOException error = null;
+		for(Segment segment : covered){
+			if(!segment.file.delete() && segment.file.exists()){
+				error = new IOException("Unable to delete " + segment.file.getPath());
+			}
+		}
+		if(error != null){
+			throw error;
+		}
+	}
+
+	/**
+	 * the segment files oldest first
+	 * @return List of files
+	 */
+	synchronized List<File> getSegmentFiles(){
+		List<File> files = new ArrayList<File>();
+		for(Segment segment : this.segments){
+			files.add(segment.file);
+		}
+		return files;
+	}
+
+	/**
+	 * writes what is queued and flushes the journal to disk
+	 * @throws IOException
+	 */
+	public void force() throws IOException{
+		this.flush();
+		synchronized(this){
+			this.current.channel.force(false);
+		}
+	}
+
+	/**
+	 * writes what is queued, stops the writer thread and closes the journal
+	 * @throws IOException
+	 */
+	public void close() throws IOException{
+		this.running = false;
+		this.queue.offer(ChannelBuffers.EMPTY_BUFFER);
+		try{
+			this.thread.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		synchronized(this){
+			this.current.raf.close();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+
+/**
+ * binary snapshot of the FlowStatCache
+ *
+ * the file is a header (magic, version, switch count) followed by one
+ * length prefixed record per switch.  Each switch record has the next
+ * FlowCacheJournal sequence number when it was taken, the sliced stats
+ * grouped by slice and then the mapped flows with the index of their
+ * parent stat.  Every stat is stored as its flags, slice name and then the
+ * openflow wire encoding of the flow stats reply (match, counters, actions)
+ *
+ * switches are added one at a time so the caller only has to hold the lock
+ * for the switch being encoded, the file is written to a temp file and renamed
+ * into place so a crash never leaves a partial snapshot
+ * @author aragusa
+ *
+ */
+final class FlowCacheSnapshot {
+
+	static final int MAGIC = 0x46535743;
+	static final short VERSION = 2;
+	//version 1 had no journal sequence numbers
+	private static final short VERSION_NO_JOURNAL = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HEADER_LENGTH = 10;
+	private static final int FLAG_VERIFIED = 0x01;
+	private static final int FLAG_DELETED = 0x02;
+	private static final int NO_PARENT = -1;
+
+	private final ChannelBuffer buffer;
+	private int switchCount = 0;
+
+	FlowCacheSnapshot(){
+		buffer = ChannelBuffers.dynamicBuffer(64 * 1024);
+		buffer.writeInt(MAGIC);
+		buffer.writeShort(VERSION);
+		//switch count, set as switches are added
+		buffer.writeInt(0);
+	}
+
+	/**
+	 * encodes the cache of one switch
+	 * @param dpid
+	 * @param journalSeq the first journal record not in the cache
+	 * @param sliced the sliced stats by slice name
+	 * @param map the mapped flows by match
+	 */
+	void addSwitch(long dpid, long journalSeq, Map<String, List<OFStatistics>> sliced, Map<OFMatch, FSFWOFFlowStatisticsReply> map){
+		buffer.writeLong(dpid);
+		int lengthIndex = buffer.writerIndex();
+		buffer.writeInt(0);
+		buffer.writeLong(journalSeq);
+
+		IdentityHashMap<FSFWOFFlowStatisticsReply, Integer> parents = new IdentityHashMap<FSFWOFFlowStatisticsReply, Integer>();
+		buffer.writeInt(sliced.size());
+		for(Map.Entry<String, List<OFStatistics>> slice : sliced.entrySet()){
+			writeString(slice.getKey());
+			buffer.writeInt(slice.getValue().size());
+			for(OFStatistics stat : slice.getValue()){
+				FSFWOFFlowStatisticsReply flowStat = (FSFWOFFlowStatisticsReply) stat;
+				parents.put(flowStat, parents.size());
+				writeStat(flowStat);
+			}
+		}
+
+		buffer.writeInt(map.size());
+		for(FSFWOFFlowStatisticsReply flowStat : map.values()){
+			Integer parent = null;
+			if(flowStat.hasParent()){
+				parent = parents.get(flowStat.getParentStat());
+			}
+			buffer.writeInt(parent == null ? NO_PARENT : parent);
+			writeStat(flowStat);
+		}
+
+		buffer.setInt(lengthIndex, buffer.writerIndex() - lengthIndex - 4);
+		switchCount++;
+		buffer.setInt(HEADER_LENGTH - 4, switchCount);
+	}
+
+	private void writeStat(FSFWOFFlowStatisticsReply stat){
+		int flags = 0;
+		if(stat.isVerified()){
+			flags |= FLAG_VERIFIED;
+		}
+		if(stat.toBeDeleted()){
+			flags |= FLAG_DELETED;
+		}
+		buffer.writeByte(flags);
+		writeString(stat.getSliceName());
+		int start = buffer.writerIndex();
+		stat.writeTo(buffer);
+		//the length is whatever was actually written
+		buffer.setShort(start, buffer.writerIndex() - start);
+	}
+
+	private void writeString(String str){
+		if(str == null){
+			buffer.writeShort(-1);
+			return;
+		}
+		byte[] bytes = str.getBytes(UTF8);
+		buffer.writeShort(bytes.length);
+		buffer.writeBytes(bytes);
+	}
+
+	/**
+	 * writes the snapshot to a temp file next to file and renames it into place
+	 * @param file
+	 * @throws IOException
+	 */
+	void writeTo(File file) throws IOException{
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try{
+			FileChannel channel = fos.getChannel();
+			ByteBuffer data = buffer.toByteBuffer();
+			while(data.hasRemaining()){
+				channel.write(data);
+			}
+			channel.force(false);
+		}finally{
+			fos.close();
+		}
+		if(!tmp.renameTo(file)){
+			tmp.delete();
+			throw new IOException("Unable to rename " + tmp.getPath() + " to " + file.getPath());
+		}
+	}
+
+	/**
+	 * reads a snapshot through a memory map of the file
+	 * @param file
+	 * @param sliced filled with the sliced stats for each switch
+	 * @param map filled with the mapped flows for each switch
+	 * @param journalSeqs filled with the first journal record not in the snapshot for each switch
+	 * @throws IOException if the file is not a valid snapshot
+	 */
+	static void read(File file, Map<Long, HashMap<String, List<OFStatistics>>> sliced, Map<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>> map, Map<Long, Long> journalSeqs) throws IOException{
+		FileInputStream fis = new FileInputStream(file);
+		ChannelBuffer data;
+		try{
+			FileChannel channel = fis.getChannel();
+			data = ChannelBuffers.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}finally{
+			fis.close();
+		}
+		read(data, sliced, map, journalSeqs);
+	}
+
+	static void read(ChannelBuffer data, Map<Long, HashMap<String, List<OFStatistics>>> sliced, Map<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>> map, Map<Long, Long> journalSeqs) throws IOException{
+		try{
+			if(data.readableBytes() < HEADER_LENGTH || data.readInt() != MAGIC){
+				throw new IOException("Not a flow cache snapshot");
+			}
+			short version = data.readShort();
+			if(version != VERSION && version != VERSION_NO_JOURNAL){
+				throw new IOException("Unsupported flow cache snapshot version " + version);
+			}
+			int switches = data.readInt();
+			for(int i = 0; i < switches; i++){
+				long dpid = data.readLong();
+				int length = data.readInt();
+				if(length < 0 || length > data.readableBytes()){
+					throw new IOException("Truncated flow cache snapshot");
+				}
+				int end = data.readerIndex() + length;
+				long journalSeq = 0;
+				if(version != VERSION_NO_JOURNAL){
+					journalSeq = data.readLong();
+				}
+
+				List<FSFWOFFlowStatisticsReply> parents = new ArrayList<FSFWOFFlowStatisticsReply>();
+				HashMap<String, List<OFStatistics>> sliceStats = new HashMap<String, List<OFStatistics>>();
+				int slices = data.readInt();
+				for(int j = 0; j < slices; j++){
+					String sliceName = readString(data);
+					int count = data.readInt();
+					List<OFStatistics> stats = new ArrayList<OFStatistics>();
+					for(int k = 0; k < count; k++){
+						FSFWOFFlowStatisticsReply stat = readStat(data);
+						parents.add(stat);
+						stats.add(stat);
+					}
+					sliceStats.put(sliceName, stats);
+				}
+
+				HashMap<OFMatch, FSFWOFFlowStatisticsReply> switchMap = new HashMap<OFMatch, FSFWOFFlowStatisticsReply>();
+				int mapped = data.readInt();
+				for(int j = 0; j < mapped; j++){
+					int parent = data.readInt();
+					FSFWOFFlowStatisticsReply stat = readStat(data);
+					if(parent != NO_PARENT){
+						if(parent < 0 || parent >= parents.size()){
+							throw new IOException("Invalid parent in flow cache snapshot");
+						}
+						stat.setParentStat(parents.get(parent));
+					}
+					switchMap.put(stat.getMatch(), stat);
+				}
+
+				if(data.readerIndex() != end){
+					throw new IOException("Corrupt switch record in flow cache snapshot");
+				}
+				sliced.put(dpid, sliceStats);
+				map.put(dpid, switchMap);
+				journalSeqs.put(dpid, journalSeq);
+			}
+		}catch(IndexOutOfBoundsException e){
+			throw new IOException("Truncated flow cache snapshot");
+		}
+	}
+
+	private static FSFWOFFlowStatisticsReply readStat(ChannelBuffer data) throws IOException{
+		int flags = data.readUnsignedByte();
+		String sliceName = readString(data);
+		int length = data.getUnsignedShort(data.readerIndex());
+		if(length < OFFlowStatisticsReply.MINIMUM_LENGTH || length > data.readableBytes()){
+			throw new IOException("Invalid flow stat length " + length + " in flow cache snapshot");
+		}
+		FSFWOFFlowStatisticsReply stat = new FSFWOFFlowStatisticsReply();
+		stat.setActionFactory(BasicFactory.getInstance());
+		stat.readFrom(data.readSlice(length));
+		stat.setSliceName(sliceName);
+		stat.setVerified((flags & FLAG_VERIFIED) != 0);
+		stat.setToBeDeleted((flags & FLAG_DELETED) != 0);
+		return stat;
+	}
+
+	private static String readString(ChannelBuffer data){
+		short length = data.readShort();
+		if(length < 0){
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		data.readBytes(bytes);
+		return new String(bytes, UTF8);
+	}
+}
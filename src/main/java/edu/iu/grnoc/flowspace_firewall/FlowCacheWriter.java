@@ -0,0 +1,101 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TimerTask that writes the FlowStatCache to disk on its own
+ * thread, but only when the cache has changed since the last
+ * snapshot was written.  Scheduling it with a fixed delay gives
+ * the minimum time between writes.  Once a snapshot is written
+ * the journal records it already has are compacted away
+ * @author aragusa
+ *
+ */
+
+public class FlowCacheWriter extends TimerTask{
+
+	public static final int DEFAULT_WRITE_INTERVAL = 10;
+	private static final Logger log = LoggerFactory.getLogger(FlowCacheWriter.class);
+	
+	private final FlowStatCache statsCache;
+	private final File cacheFile;
+	private final FlowCacheJournal journal;
+	//cache version in the last snapshot written
+	private long writtenVersion;
+	
+	public FlowCacheWriter(FlowStatCache statsCache, File cacheFile){
+		this(statsCache, cacheFile, null);
+	}
+	
+	public FlowCacheWriter(FlowStatCache statsCache, File cacheFile, FlowCacheJournal journal){
+		this.statsCache = statsCache;
+		this.cacheFile = cacheFile;
+		this.journal = journal;
+		//whatever was loaded at startup is already on disk
+		this.writtenVersion = statsCache.getVersion();
+	}
+	
+	/**
+	 * the TimerTask run method called by the Timer
+	 * writes a snapshot if the cache changed
+	 */
+	public void run(){
+		this.write();
+	}
+	
+	/**
+	 * writes a snapshot of the cache if it changed since the last one
+	 * @return true if a snapshot was written
+	 */
+	public synchronized boolean write(){
+		//read the version first so changes made while writing are picked up next time
+		long version = statsCache.getVersion();
+		if(version == this.writtenVersion){
+			return false;
+		}
+		//every journal record before this is in the cache before the snapshot is taken
+		long journalSeq = 0;
+		if(journal != null){
+			journalSeq = journal.getNextSeq();
+		}
+		try {
+			FlowCacheSnapshot snapshot = new FlowCacheSnapshot();
+			statsCache.writeSnapshot(snapshot);
+			snapshot.writeTo(cacheFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.error("Error occured writing statsCache");
+			return false;
+		}
+		this.writtenVersion = version;
+		
+		if(journal != null){
+			try {
+				journal.compact(journalSeq);
+			} catch (IOException e) {
+				log.error("Error compacting flow cache journal: " + e.getMessage());
+			}
+		}
+		return true;
+	}
+}
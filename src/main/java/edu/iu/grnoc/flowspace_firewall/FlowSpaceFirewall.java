@@ -15,6 +15,7 @@
 */
 package edu.iu.grnoc.flowspace_firewall;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -44,6 +45,7 @@ import net.floodlightcontroller.restserver.IRestApiService;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.Wildcards;
 import org.openflow.protocol.statistics.OFStatistics;
@@ -67,14 +69,18 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
     protected IFloodlightProviderService floodlightProvider;
 
     private Timer statsTimer;
+    private Timer cacheWriterTimer;
     private Timer controllerConnectTimer;
+    private Timer flowTimeoutTimer;
     
     private ArrayList<HashMap<Long, Slicer>> slices;
     private List<IOFSwitch> switches;
     private FlowStatCacher statsCacher;
     private ControllerConnector controllerConnector;
+    private FlowAuditLog auditLog;
     private HashMap<Long, SwitchConfig> switchConfigs;
     private FlowSpaceFirewallParams flowSpaceFirewallParams;
+    private HashMap<Long, PacketInDemux> packetInDemuxes = new HashMap<Long, PacketInDemux>();
     protected IRestApiService restApi;
     
     
@@ -153,9 +159,12 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
         	if(slice.containsKey(switchId)){
         		Slicer vlanSlicer = slice.get(switchId);
         		//build the controller channel
-        		controllerConnector.addProxy(switchId, new Proxy(sw, vlanSlicer, this));
+        		Proxy p = new Proxy(sw, vlanSlicer, this);
+        		p.setAuditLog(this.auditLog);
+        		controllerConnector.addProxy(switchId, p);
         	}
         }
+        this.invalidatePacketInDemux(switchId);
 	}
 	
 	public void addFlowCache(long switchId, String sliceName, OFFlowMod flowMod, List<OFFlowMod> flows){
@@ -246,6 +255,7 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
 				it.remove();
 			}
 		}
+		this.invalidatePacketInDemux(switchId);
 	}
 	
 	public HashMap<Long, Slicer> getSlice(String name){
@@ -282,12 +292,52 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
 	
 	public void removeProxy(Long switchId, Proxy p){
 		this.controllerConnector.removeProxy(switchId, p);
+		this.invalidatePacketInDemux(switchId);
 	}
 
 	@Override
 	public void switchPortChanged(long switchId, ImmutablePort port,
 			PortChangeType type) {
-		//nothing to do here
+		//port numbers may have changed so the packet in index has to be rebuilt
+		this.invalidatePacketInDemux(switchId);
+	}
+	
+	/**
+	 * returns the packet in demultiplexer for the switch building it
+	 * from the current proxies if it does not exist yet
+	 * @param sw
+	 * @return PacketInDemux
+	 */
+	private PacketInDemux getPacketInDemux(IOFSwitch sw){
+		synchronized(this.packetInDemuxes){
+			PacketInDemux demux = this.packetInDemuxes.get(sw.getId());
+			if(demux == null){
+				logger.debug("Building packet in index for switch: " + sw.getStringId());
+				demux = new PacketInDemux(sw, controllerConnector.getSwitchProxies(sw.getId()));
+				this.packetInDemuxes.put(sw.getId(), demux);
+			}
+			return demux;
+		}
+	}
+	
+	/**
+	 * throws away the packet in demultiplexer for a switch
+	 * should be called any time the ports or proxies of the switch change
+	 * @param switchId
+	 */
+	private void invalidatePacketInDemux(long switchId){
+		synchronized(this.packetInDemuxes){
+			this.packetInDemuxes.remove(switchId);
+		}
+	}
+	
+	/**
+	 * throws away the packet in demultiplexer for every switch
+	 */
+	private void invalidatePacketInDemuxes(){
+		synchronized(this.packetInDemuxes){
+			this.packetInDemuxes.clear();
+		}
 	}
 
 	@Override
@@ -369,7 +419,9 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
 							logger.debug("Switch was not connected... can't add the proxy");
 						}else{
 							Slicer vlanSlicer = slice.get(dpid);
-							controllerConnector.addProxy(dpid, new Proxy(sw, vlanSlicer, this));						
+							Proxy p = new Proxy(sw, vlanSlicer, this);
+							p.setAuditLog(this.auditLog);
+							controllerConnector.addProxy(dpid, p);
 						}
 					}
 				}
@@ -381,6 +433,9 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
 				this.removeSlice(p.getSwitch().getId(), p.getSlicer().getSliceName());
 			}
 			
+			//slices have changed so all of the packet in indexes are stale
+			this.invalidatePacketInDemuxes();
+			
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
@@ -416,6 +471,10 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
 			return Command.CONTINUE;
 		}
 
+		if(msg.getType() == OFType.PACKET_IN){
+			this.packetInToController(sw, (OFPacketIn)msg, cntx);
+			return Command.CONTINUE;
+		}
 		
 		for(Proxy p : proxies){
 			if(!p.getAdminStatus()){
@@ -432,6 +491,39 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
 		}
 		return Command.CONTINUE;
 	}
+	
+	/**
+	 * sends a packet in only to the slice(s) that own the
+	 * in_port/vlan of the packet instead of asking every slice
+	 * @param sw
+	 * @param pcktIn
+	 * @param cntx
+	 */
+	private void packetInToController(IOFSwitch sw, OFPacketIn pcktIn, FloodlightContext cntx){
+		Proxy[] owners = this.getPacketInDemux(sw).getProxies(pcktIn);
+		if(owners == null){
+			logger.debug("Packet in from switch: " + sw.getStringId() + " is not part of any slice");
+			return;
+		}
+		
+		for(Proxy p : owners){
+			if(!p.getAdminStatus()){
+				logger.debug("slice disabled... skipping");
+				continue;
+			}
+			try{
+				if(owners.length == 1){
+					p.packetInToController(pcktIn, cntx);
+				}else{
+					//overlapping slices, let each one check its own policy
+					p.toController(pcktIn, cntx);
+				}
+			}catch (Exception e){
+				//don't die please... just keep going and error the stack trace
+				logger.error("FSFW experienced an error:" + e.getMessage(), e);
+			}
+		}
+	}
 
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() {
@@ -538,17 +630,31 @@ public class FlowSpaceFirewall implements IFloodlightModule, IOFMessageListener,
 		floodlightProvider.addOFMessageListener(OFType.ERROR,this);
 		floodlightProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
 		switches = Collections.synchronizedList(new ArrayList<IOFSwitch>());
+		//flow mod decisions are written out on their own thread
+		auditLog = new FlowAuditLog(new File(this.flowSpaceFirewallParams.getAuditLog()));
+		auditLog.start();
 		//start up the stats collector timer
 		statsTimer = new Timer("StatsTimer");
 		statsCacher = new FlowStatCacher(this);
+		this.statsCacher.setMaxConcurrentPolls(this.flowSpaceFirewallParams.getStatsPollConcurrency());
+		this.statsCacher.setPollTimeout(this.flowSpaceFirewallParams.getStatsPollTimeout());
 		this.statsCacher.loadCache();
 		statsTimer.scheduleAtFixedRate(statsCacher, 0, this.flowSpaceFirewallParams.getStatsPollInterval() * 1000);
 		
+		//write the stats cache to disk on its own thread so polling never waits on it
+		cacheWriterTimer = new Timer("FlowCacheWriterTimer");
+		long cacheWriteInterval = this.flowSpaceFirewallParams.getCacheWriteInterval() * 1000L;
+		cacheWriterTimer.schedule(this.statsCacher.getCacheWriter(), cacheWriteInterval, cacheWriteInterval);
+		
 		//start up the controller connector timer
 		controllerConnectTimer = new Timer("ControllerConnectionTimer");
 		controllerConnector = new ControllerConnector();
 		controllerConnectTimer.scheduleAtFixedRate(controllerConnector, 0, 10 * 1000);
 		
+		//fire software hard timeouts on time instead of at the next stats poll
+		flowTimeoutTimer = new Timer("FlowTimeoutTimer");
+		flowTimeoutTimer.schedule(new FlowTimeoutChecker(controllerConnector), FlowTimeoutChecker.CHECK_INTERVAL, FlowTimeoutChecker.CHECK_INTERVAL);
+		
 		restApi.addRestletRoutable(new FlowSpaceFirewallWebRoutable());
 		
 	}
@@ -2,9 +2,17 @@ package edu.iu.grnoc.flowspace_firewall;
 
 public class FlowSpaceFirewallParams {
 	private int stats_poll_interval;
+	private int stats_poll_concurrency;
+	private int stats_poll_timeout;
+	private int cache_write_interval;
+	private String audit_log;
 	
 	public FlowSpaceFirewallParams(){
 		this.stats_poll_interval = 10; // 10 seconds is the default polling interval.
+		this.stats_poll_concurrency = FlowStatCacher.DEFAULT_MAX_CONCURRENT_POLLS;
+		this.stats_poll_timeout = FlowStatCacher.DEFAULT_POLL_TIMEOUT;
+		this.cache_write_interval = FlowCacheWriter.DEFAULT_WRITE_INTERVAL;
+		this.audit_log = FlowAuditLog.DEFAULT_FILE;
 	}
 
 	public void setStatsPollInterval(int newInterval){
@@ -14,4 +22,36 @@ public class FlowSpaceFirewallParams {
 	public int getStatsPollInterval(){
 		return this.stats_poll_interval;
 	}
+	
+	public void setStatsPollConcurrency(int concurrency){
+		this.stats_poll_concurrency = concurrency;
+	}
+	
+	public int getStatsPollConcurrency(){
+		return this.stats_poll_concurrency;
+	}
+	
+	public void setStatsPollTimeout(int timeout){
+		this.stats_poll_timeout = timeout;
+	}
+	
+	public int getStatsPollTimeout(){
+		return this.stats_poll_timeout;
+	}
+	
+	public void setCacheWriteInterval(int interval){
+		this.cache_write_interval = interval;
+	}
+	
+	public int getCacheWriteInterval(){
+		return this.cache_write_interval;
+	}
+	
+	public void setAuditLog(String file){
+		this.audit_log = file;
+	}
+	
+	public String getAuditLog(){
+		return this.audit_log;
+	}
 }
@@ -15,14 +15,21 @@
 */
 package edu.iu.grnoc.flowspace_firewall;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.core.IOFSwitch;
 
@@ -40,8 +47,9 @@ import org.openflow.protocol.Wildcards;
 /**
  * Stores the stats for all of the switches
  * for quick retreiveal without overloading
- * the switches.  The Synchronized methods give
- * essentially a mutex for accessing the data
+ * the switches.  Each switch has its own SwitchCache
+ * and the methods synchronize on that, so work on one
+ * switch never waits on another
  * @author aragusa
  *
  */
@@ -50,68 +58,212 @@ public class FlowStatCache{
 
 	//the logger
 	private static final Logger log = LoggerFactory.getLogger(FlowStatCache.class);
-	//the cache
-	private HashMap<Long, List<OFStatistics>> flowStats;
-	private HashMap<Long, HashMap<Short, OFStatistics>> portStats;
-	private HashMap<Long, HashMap<String, List<OFStatistics>>> sliced;
-	private HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>> map;
+	//the cache for each switch
+	private final ConcurrentHashMap<Long, SwitchCache> switchCaches;
+	//bumped whenever flows are added, deleted or removed
+	private final AtomicLong version = new AtomicLong();
+	//records the flow adds and deletes between snapshots
+	private volatile FlowCacheJournal journal;
 	
 
 	private FlowSpaceFirewall parent;
 	
-	public FlowStatCache(FlowSpaceFirewall parent){
+	/**
+	 * everything cached for a single switch
+	 * guarded by synchronizing on the SwitchCache itself
+	 */
+	private static class SwitchCache {
 		//this is the raw flowStats from the switch
-		flowStats = new HashMap<Long, List<OFStatistics>>();
-		//this is the raw portStat from the switch
-		portStats = new HashMap<Long, HashMap<Short, OFStatistics>>();
-		//this is the mapping from DPID OFMatch to FlowMod
-		map = new HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>>();
+		List<OFStatistics> flowStats;
+		//this is the raw portStat from the switch, replaced whole so it needs no lock
+		volatile HashMap<Short, OFStatistics> portStats;
 		//this is the results to be returned when requested
-		sliced = new HashMap<Long, HashMap<String, List<OFStatistics>>>();
-		//need one more to track the lastSeen time
+		HashMap<String, List<OFStatistics>> sliced = new HashMap<String, List<OFStatistics>>();
+		//this is the mapping from OFMatch to FlowMod
+		HashMap<OFMatch, FSFWOFFlowStatisticsReply> map = new HashMap<OFMatch, FSFWOFFlowStatisticsReply>();
+		//the expanded flows in map for each sliced stat
+		IdentityHashMap<FSFWOFFlowStatisticsReply, List<FSFWOFFlowStatisticsReply>> children = new IdentityHashMap<FSFWOFFlowStatisticsReply, List<FSFWOFFlowStatisticsReply>>();
+		//the stats in sliced and map, oldest lastSeen first
+		LastSeenList slicedOrder = new LastSeenList();
+		LastSeenList mapOrder = new LastSeenList();
+		//stats flagged for delete since the last poll
+		List<FSFWOFFlowStatisticsReply> deleted = new ArrayList<FSFWOFFlowStatisticsReply>();
+		//bumped every time the switch is polled
+		long generation = 0;
+		//the first journal record that is not part of this cache
+		long journalSeq = 0;
+		
+		/**
+		 * adds the stat to the list of children of its parent
+		 * @param child
+		 */
+		void addChild(FSFWOFFlowStatisticsReply child){
+			if(!child.hasParent()){
+				return;
+			}
+			List<FSFWOFFlowStatisticsReply> siblings = children.get(child.getParentStat());
+			if(siblings == null){
+				siblings = new ArrayList<FSFWOFFlowStatisticsReply>();
+				children.put(child.getParentStat(), siblings);
+			}
+			siblings.add(child);
+		}
+		
+		/**
+		 * rebuilds the children index from map
+		 */
+		void indexChildren(){
+			children.clear();
+			for(FSFWOFFlowStatisticsReply stat : map.values()){
+				addChild(stat);
+			}
+		}
+		
+		/**
+		 * rebuilds the last seen order from sliced and map
+		 */
+		void indexLastSeen(){
+			slicedOrder = new LastSeenList();
+			mapOrder = new LastSeenList();
+			deleted.clear();
+			for(List<OFStatistics> stats : sliced.values()){
+				for(OFStatistics stat : stats){
+					FSFWOFFlowStatisticsReply flowStat = (FSFWOFFlowStatisticsReply)stat;
+					slicedOrder.touch(flowStat);
+					if(flowStat.toBeDeleted()){
+						deleted.add(flowStat);
+					}
+				}
+			}
+			for(FSFWOFFlowStatisticsReply stat : map.values()){
+				mapOrder.touch(stat);
+				if(stat.toBeDeleted()){
+					deleted.add(stat);
+				}
+			}
+		}
+		
+		/**
+		 * flags the stat for delete so the next poll removes it
+		 * @param stat
+		 */
+		void markDeleted(FSFWOFFlowStatisticsReply stat){
+			if(!stat.toBeDeleted()){
+				stat.setToBeDeleted(true);
+				deleted.add(stat);
+			}
+		}
+	}
+	
+	/**
+	 * stats linked in the order they were last seen, oldest first
+	 * moving a stat to the end whenever its lastSeen is set keeps the list sorted
+	 * so the stale stats are always at the front
+	 */
+	private static class LastSeenList {
+		FSFWOFFlowStatisticsReply oldest;
+		FSFWOFFlowStatisticsReply newest;
+		
+		boolean contains(FSFWOFFlowStatisticsReply stat){
+			return stat.lastSeenList == this;
+		}
+		
+		/**
+		 * moves the stat to the newest end of the list, adding it if needed
+		 * @param stat
+		 */
+		void touch(FSFWOFFlowStatisticsReply stat){
+			if(this.contains(stat)){
+				if(stat == newest){
+					return;
+				}
+				remove(stat);
+			}else if(stat.lastSeenList != null){
+				((LastSeenList)stat.lastSeenList).remove(stat);
+			}
+			stat.lastSeenList = this;
+			stat.older = newest;
+			stat.newer = null;
+			if(newest == null){
+				oldest = stat;
+			}else{
+				newest.newer = stat;
+			}
+			newest = stat;
+		}
+		
+		void remove(FSFWOFFlowStatisticsReply stat){
+			if(!this.contains(stat)){
+				return;
+			}
+			if(stat.older == null){
+				oldest = stat.newer;
+			}else{
+				stat.older.newer = stat.newer;
+			}
+			if(stat.newer == null){
+				newest = stat.older;
+			}else{
+				stat.newer.older = stat.older;
+			}
+			stat.older = null;
+			stat.newer = null;
+			stat.lastSeenList = null;
+		}
+	}
+	
+	public FlowStatCache(FlowSpaceFirewall parent){
+		switchCaches = new ConcurrentHashMap<Long, SwitchCache>();
 		this.parent = parent;
 	}
 	
+	/**
+	 * returns the cache for the switch, creating it if needed
+	 * @param dpid
+	 * @return SwitchCache
+	 */
+	private SwitchCache getSwitchCache(long dpid){
+		SwitchCache cache = switchCaches.get(dpid);
+		if(cache == null){
+			SwitchCache newCache = new SwitchCache();
+			cache = switchCaches.putIfAbsent(dpid, newCache);
+			if(cache == null){
+				cache = newCache;
+			}
+		}
+		return cache;
+	}
+	
 	
 	//lets us write out object to disk
-	public synchronized void writeObject(ObjectOutputStream aOutputStream) throws IOException{
-		//need to clone it so that we can make changes while serializing
-		aOutputStream.writeObject(sliced.clone());
-		aOutputStream.writeObject(map.clone());
+	public void writeObject(ObjectOutputStream aOutputStream) throws IOException{
+		//copy each switch under its own lock so that we can make changes while serializing
+		HashMap<Long, HashMap<String, List<OFStatistics>>> sliced = new HashMap<Long, HashMap<String, List<OFStatistics>>>();
+		HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>> map = new HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>>();
+		for(Entry<Long, SwitchCache> entry : switchCaches.entrySet()){
+			SwitchCache cache = entry.getValue();
+			synchronized(cache){
+				HashMap<String, List<OFStatistics>> sliceStats = new HashMap<String, List<OFStatistics>>();
+				for(Entry<String, List<OFStatistics>> slice : cache.sliced.entrySet()){
+					sliceStats.put(slice.getKey(), new ArrayList<OFStatistics>(slice.getValue()));
+				}
+				sliced.put(entry.getKey(), sliceStats);
+				map.put(entry.getKey(), new HashMap<OFMatch, FSFWOFFlowStatisticsReply>(cache.map));
+			}
+		}
+		aOutputStream.writeObject(sliced);
+		aOutputStream.writeObject(map);
 	}
 	
 	//lets us read our object from disk
 	@SuppressWarnings("unchecked")
-	public synchronized void readObject(ObjectInputStream aInputStream) throws IOException{
+	public void readObject(ObjectInputStream aInputStream) throws IOException{
 		HashMap<Long, HashMap<String, List<OFStatistics>>> cache;
 		HashMap<Long,HashMap<OFMatch,FSFWOFFlowStatisticsReply>> tmpMap;
 		try {
 			cache = (HashMap<Long, HashMap<String, List<OFStatistics>>>) aInputStream.readObject();
-			this.sliced = cache;
-
-			
-			
 			tmpMap = (HashMap<Long,HashMap<OFMatch,FSFWOFFlowStatisticsReply>>) aInputStream.readObject();
-			this.map = tmpMap;
-			
-			long time = System.currentTimeMillis();
-			for(long dpid : this.sliced.keySet()){
-				HashMap<String, List<OFStatistics>> sliceMap = this.sliced.get(dpid);
-				for(String sliceName : sliceMap.keySet()){
-					List<OFStatistics> stats = sliceMap.get(sliceName);
-					for(OFStatistics stat: stats){
-						FSFWOFFlowStatisticsReply flowStat = (FSFWOFFlowStatisticsReply)stat;
-						flowStat.setLastSeen(time);
-					}
-				}
-				
-				HashMap<OFMatch,FSFWOFFlowStatisticsReply> switchMap = this.map.get(dpid);
-				for(OFMatch match : switchMap.keySet()){
-					FSFWOFFlowStatisticsReply stat = switchMap.get(match);
-					stat.setLastSeen(time);
-				}
-			}
-			
+			this.restore(cache, tmpMap, new HashMap<Long, Long>());
 		} catch (ClassNotFoundException e) {
 			// TODO Auto-generated catch block
 			log.error("Error reading in cache file!  Starting from clean cache!");
@@ -119,24 +271,184 @@ public class FlowStatCache{
 		}
 	}
 	
-	public synchronized void delFlowMod(long dpid, String sliceName, OFFlowMod flow,List<OFFlowMod> flows){
-		log.error("Deleting flow " + flow.toString());
-		if(!map.containsKey(dpid)){
+	/**
+	 * returns a number that changes whenever the flows in the cache change
+	 * byte and packet counts alone do not change it
+	 * @return long
+	 */
+	public long getVersion(){
+		return version.get();
+	}
+	
+	/**
+	 * encodes every switch into the snapshot, locking one switch at a time
+	 * @param snapshot
+	 */
+	public void writeSnapshot(FlowCacheSnapshot snapshot){
+		FlowCacheJournal journal = this.journal;
+		for(Entry<Long, SwitchCache> entry : switchCaches.entrySet()){
+			SwitchCache cache = entry.getValue();
+			synchronized(cache){
+				//journal records for this switch are only numbered while holding its lock
+				long journalSeq = journal == null ? 0 : journal.getNextSeq();
+				snapshot.addSwitch(entry.getKey(), journalSeq, cache.sliced, cache.map);
+			}
+		}
+	}
+	
+	/**
+	 * sets the journal flow adds and deletes are recorded in
+	 * @param journal
+	 */
+	public void setJournal(FlowCacheJournal journal){
+		this.journal = journal;
+	}
+	
+	/**
+	 * applies the journal records that are newer than the cache of their switch
+	 * called at startup after the snapshot is loaded and before setJournal
+	 * @param journal
+	 * @return the number of records replayed
+	 * @throws IOException
+	 */
+	public int replayJournal(FlowCacheJournal journal) throws IOException{
+		//new records have to be numbered after everything in the snapshot
+		for(SwitchCache cache : switchCaches.values()){
+			synchronized(cache){
+				journal.ensureNextSeq(cache.journalSeq);
+			}
+		}
+		
+		int replayed = 0;
+		for(FlowCacheJournal.Record record : journal.read()){
+			SwitchCache cache = this.getSwitchCache(record.dpid);
+			synchronized(cache){
+				if(record.seq < cache.journalSeq){
+					continue;
+				}
+				if(record.type == FlowCacheJournal.ADD){
+					addFlowMod(cache, record.sliceName, record.flow, record.flows);
+				}else{
+					delFlowMod(cache, record.sliceName, record.flow, record.flows);
+				}
+				replayed++;
+			}
+		}
+		return replayed;
+	}
+	
+	/**
+	 * loads the cache from a snapshot file
+	 * @param file
+	 * @throws IOException if the file can not be read or is not a valid snapshot
+	 */
+	public void readSnapshot(File file) throws IOException{
+		HashMap<Long, HashMap<String, List<OFStatistics>>> cache = new HashMap<Long, HashMap<String, List<OFStatistics>>>();
+		HashMap<Long,HashMap<OFMatch,FSFWOFFlowStatisticsReply>> tmpMap = new HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>>();
+		HashMap<Long, Long> journalSeqs = new HashMap<Long, Long>();
+		FlowCacheSnapshot.read(file, cache, tmpMap, journalSeqs);
+		this.restore(cache, tmpMap, journalSeqs);
+	}
+	
+	/**
+	 * replaces the cache of every switch in the loaded stats
+	 * @param cache the sliced stats for each switch
+	 * @param tmpMap the mapped flows for each switch
+	 * @param journalSeqs the first journal record not in the cache of each switch
+	 */
+	private void restore(HashMap<Long, HashMap<String, List<OFStatistics>>> cache, HashMap<Long,HashMap<OFMatch,FSFWOFFlowStatisticsReply>> tmpMap, HashMap<Long, Long> journalSeqs){
+		long time = System.currentTimeMillis();
+		for(long dpid : cache.keySet()){
+			HashMap<String, List<OFStatistics>> sliceMap = cache.get(dpid);
+			for(String sliceName : sliceMap.keySet()){
+				List<OFStatistics> stats = sliceMap.get(sliceName);
+				for(OFStatistics stat: stats){
+					FSFWOFFlowStatisticsReply flowStat = (FSFWOFFlowStatisticsReply)stat;
+					flowStat.setLastSeen(time);
+				}
+			}
+			
+			HashMap<OFMatch,FSFWOFFlowStatisticsReply> switchMap = tmpMap.get(dpid);
+			if(switchMap == null){
+				switchMap = new HashMap<OFMatch, FSFWOFFlowStatisticsReply>();
+			}
+			for(OFMatch match : switchMap.keySet()){
+				FSFWOFFlowStatisticsReply stat = switchMap.get(match);
+				stat.setLastSeen(time);
+			}
+			
+			SwitchCache switchCache = this.getSwitchCache(dpid);
+			synchronized(switchCache){
+				switchCache.sliced = sliceMap;
+				switchCache.map = switchMap;
+				switchCache.indexChildren();
+				switchCache.indexLastSeen();
+				if(journalSeqs.containsKey(dpid)){
+					switchCache.journalSeq = journalSeqs.get(dpid);
+				}
+			}
+		}
+		
+		//mappings for switches without any sliced stats
+		for(long dpid : tmpMap.keySet()){
+			if(cache.containsKey(dpid)){
+				continue;
+			}
+			HashMap<OFMatch,FSFWOFFlowStatisticsReply> switchMap = tmpMap.get(dpid);
+			for(OFMatch match : switchMap.keySet()){
+				switchMap.get(match).setLastSeen(time);
+			}
+			SwitchCache switchCache = this.getSwitchCache(dpid);
+			synchronized(switchCache){
+				switchCache.map = switchMap;
+				switchCache.indexChildren();
+				switchCache.indexLastSeen();
+				if(journalSeqs.containsKey(dpid)){
+					switchCache.journalSeq = journalSeqs.get(dpid);
+				}
+			}
+		}
+	}
+	
+	public void delFlowMod(long dpid, String sliceName, OFFlowMod flow,List<OFFlowMod> flows){
+		SwitchCache cache = switchCaches.get(dpid);
+		if(cache == null){
 			log.debug("No map exists!");
 			return;
 		}
+		FlowCacheJournal journal = this.journal;
+		long journalSeq = 0;
+		synchronized(cache){
+			delFlowMod(cache, sliceName, flow, flows);
+			if(journal != null){
+				journalSeq = journal.reserveSeq();
+			}
+		}
+		//the journal write is queued outside the switch lock
+		if(journal != null){
+			journal.append(journalSeq, FlowCacheJournal.DELETE, dpid, sliceName, flow, flows);
+		}
+	}
+	
+	private void delFlowMod(SwitchCache cache, String sliceName, OFFlowMod flow,List<OFFlowMod> flows){
+		if(log.isDebugEnabled()){
+			log.debug("Deleting flow " + flow.toString());
+		}
+		version.incrementAndGet();
 				
-		HashMap<OFMatch, FSFWOFFlowStatisticsReply> flowMap = map.get(dpid);
+		HashMap<OFMatch, FSFWOFFlowStatisticsReply> flowMap = cache.map;
 		log.debug("Total Flows: " + flows.size());
 		for(OFFlowMod sent_flow : flows){
-			log.debug("attempting to delete flow we sent: " + sent_flow.toString());
+			if(log.isDebugEnabled()){
+				log.debug("attempting to delete flow we sent: " + sent_flow.toString());
+			}
 			if(flowMap.containsKey(sent_flow.getMatch())){
 				FSFWOFFlowStatisticsReply stat = flowMap.get(sent_flow.getMatch());
 				if(stat.hasParent()){
 					log.debug("Setting parent to deleted");
-					stat.getParentStat().setToBeDeleted(true);
+					cache.markDeleted(stat.getParentStat());
 				}
-				stat.setToBeDeleted(true);
+				cache.markDeleted(stat);
 				log.debug("Setting flow mod and parent to be deleted");
 			}else{
 				//already gone nothing to do!
@@ -146,14 +458,12 @@ public class FlowStatCache{
 		
 		//belt and suspenders!
 		//set the controller side of this just in case it exists but no actual flow stat did
-		if(this.sliced.containsKey(dpid)){
-			if(this.sliced.get(dpid).containsKey(sliceName)){
-				List<OFStatistics> stats = this.sliced.get(dpid).get(sliceName);
-				for(OFStatistics stat : stats){
-					FSFWOFFlowStatisticsReply fsfwStat = (FSFWOFFlowStatisticsReply) stat;
-					if(fsfwStat.getMatch().equals(flow.getMatch())){
-						fsfwStat.setToBeDeleted(true);
-					}
+		if(cache.sliced.containsKey(sliceName)){
+			List<OFStatistics> stats = cache.sliced.get(sliceName);
+			for(OFStatistics stat : stats){
+				FSFWOFFlowStatisticsReply fsfwStat = (FSFWOFFlowStatisticsReply) stat;
+				if(fsfwStat.getMatch().equals(flow.getMatch())){
+					cache.markDeleted(fsfwStat);
 				}
 			}
 		}		
@@ -190,47 +500,58 @@ public class FlowStatCache{
 	 * @param flows
 	 */
 	
-	public synchronized void addFlowMod(Long dpid, String sliceName, OFFlowMod flow, List<OFFlowMod> flows){
+	public void addFlowMod(Long dpid, String sliceName, OFFlowMod flow, List<OFFlowMod> flows){
+		SwitchCache cache = this.getSwitchCache(dpid);
+		FlowCacheJournal journal = this.journal;
+		long journalSeq = 0;
+		synchronized(cache){
+			addFlowMod(cache, sliceName, flow, flows);
+			if(journal != null){
+				journalSeq = journal.reserveSeq();
+			}
+		}
+		//the journal write is queued outside the switch lock
+		if(journal != null){
+			journal.append(journalSeq, FlowCacheJournal.ADD, dpid, sliceName, flow, flows);
+		}
+	}
+	
+	private void addFlowMod(SwitchCache cache, String sliceName, OFFlowMod flow, List<OFFlowMod> flows){
+		version.incrementAndGet();
 		//create a flow stat reply and set the cache to it
 		FSFWOFFlowStatisticsReply flowStat = buildFlowStatFromFlowMod(flow);
 		flowStat.setSliceName(sliceName);
 		
-		if(sliced.containsKey(dpid)){
-			HashMap<String, List<OFStatistics>> sliceStats = sliced.get(dpid);
-			if(sliceStats.containsKey(sliceName)){
-				log.debug("Adding Flow to the cache!");
-				sliceStats.get(sliceName).add(flowStat);
-				log.debug("sliced stats size: " + sliceStats.get(sliceName).size());
-			}else{
-				List<OFStatistics> stats = new ArrayList<OFStatistics>();
-				log.debug("Adding flow to the cache! Created the Slice hash");
-				stats.add(flowStat);		
-				sliceStats.put(sliceName, stats);
-			}
-			
+		HashMap<String, List<OFStatistics>> sliceStats = cache.sliced;
+		if(sliceStats.containsKey(sliceName)){
+			log.debug("Adding Flow to the cache!");
+			sliceStats.get(sliceName).add(flowStat);
+			log.debug("sliced stats size: " + sliceStats.get(sliceName).size());
 		}else{
-			HashMap<String, List<OFStatistics>> sliceStats = new HashMap<String, List<OFStatistics>>();
 			List<OFStatistics> stats = new ArrayList<OFStatistics>();
+			log.debug("Adding flow to the cache! Created the Slice hash");
+			stats.add(flowStat);		
 			sliceStats.put(sliceName, stats);
-			stats.add(flowStat);
-			sliced.put(dpid, sliceStats);
 		}
 		//need to update last seen
-		log.debug("Added Flow: " + flowStat.toString() + " to cache!");
-		flowStat.setLastSeen(System.currentTimeMillis());
-		
-		if(!map.containsKey(dpid)){
-			HashMap<OFMatch, FSFWOFFlowStatisticsReply> tmpHash = new HashMap<OFMatch, FSFWOFFlowStatisticsReply>();
-			map.put(dpid, tmpHash);
+		if(log.isDebugEnabled()){
+			log.debug("Added Flow: " + flowStat.toString() + " to cache!");
 		}
+		flowStat.setLastSeen(System.currentTimeMillis());
+		cache.slicedOrder.touch(flowStat);
 		
-		HashMap<OFMatch, FSFWOFFlowStatisticsReply> switchMap = map.get(dpid);
+		HashMap<OFMatch, FSFWOFFlowStatisticsReply> switchMap = cache.map;
 		for(OFFlowMod sent_flow : flows){
 			FSFWOFFlowStatisticsReply sentFlowStat = buildFlowStatFromFlowMod(sent_flow);
 			sentFlowStat.setSliceName(sliceName);
 			sentFlowStat.setParentStat(flowStat);
 			sentFlowStat.setLastSeen(System.currentTimeMillis());
-			switchMap.put(sentFlowStat.getMatch(), sentFlowStat);
+			FSFWOFFlowStatisticsReply replaced = switchMap.put(sentFlowStat.getMatch(), sentFlowStat);
+			if(replaced != null){
+				cache.mapOrder.remove(replaced);
+			}
+			cache.mapOrder.touch(sentFlowStat);
+			cache.addChild(sentFlowStat);
 		}
 	}	
 	
@@ -246,15 +567,20 @@ public class FlowStatCache{
 	 * @param switchId
 	 */
 	
-	public synchronized void clearFlowCache(Long switchId){
-		flowStats.remove(switchId);
-		
-		if(this.sliced.containsKey(switchId)){
-			HashMap<String, List<OFStatistics>> sliceStats = this.sliced.get(switchId);
+	public void clearFlowCache(Long switchId){
+		SwitchCache cache = switchCaches.get(switchId);
+		if(cache == null){
+			return;
+		}
+		synchronized(cache){
+			cache.flowStats = null;
+			version.incrementAndGet();
+			
+			HashMap<String, List<OFStatistics>> sliceStats = cache.sliced;
 			Iterator<String> it = sliceStats.keySet().iterator();
 			while(it.hasNext()){
 				String slice = (String)it.next();
-				List<OFStatistics> ofStats = this.sliced.get(switchId).get(slice);
+				List<OFStatistics> ofStats = sliceStats.get(slice);
 				Iterator<OFStatistics> itStat = ofStats.iterator();
 				while(itStat.hasNext()){
 					OFStatistics stat = (OFStatistics)itStat.next();
@@ -263,13 +589,11 @@ public class FlowStatCache{
 					flowStat.setLastSeen(System.currentTimeMillis());
 				}
 			}
-		}
-		
-		if(this.map.containsKey(switchId)){
-			HashMap<OFMatch, FSFWOFFlowStatisticsReply> flowMap = this.map.get(switchId);
-			Iterator<OFMatch> it = flowMap.keySet().iterator();
-			while(it.hasNext()){
-				FSFWOFFlowStatisticsReply stat = flowMap.get(it.next());
+			
+			HashMap<OFMatch, FSFWOFFlowStatisticsReply> flowMap = cache.map;
+			Iterator<OFMatch> itMatch = flowMap.keySet().iterator();
+			while(itMatch.hasNext()){
+				FSFWOFFlowStatisticsReply stat = flowMap.get(itMatch.next());
 				stat.setVerified(false);
 				stat.setLastSeen(System.currentTimeMillis());
 			}
@@ -283,7 +607,7 @@ public class FlowStatCache{
 	 * @param newStat
 	 */
 	
-	private boolean updateFlowStatData(OFStatistics cachedStat, OFFlowStatisticsReply newStat, HashMap<String, Integer> flowCount){
+	private boolean updateFlowStatData(SwitchCache cache, OFStatistics cachedStat, OFFlowStatisticsReply newStat, HashMap<String, Integer> flowCount){
 		
 		FSFWOFFlowStatisticsReply cachedFlowStat = (FSFWOFFlowStatisticsReply) cachedStat;
 		if(cachedFlowStat.toBeDeleted()){
@@ -291,13 +615,24 @@ public class FlowStatCache{
 			return false;
 		}
 
-		//update the data
-		cachedFlowStat.setByteCount(cachedFlowStat.getByteCount() + newStat.getByteCount());
-		cachedFlowStat.setPacketCount(cachedFlowStat.getPacketCount() + newStat.getPacketCount());
+		//update the data, the first flow this poll replaces the old counters
+		if(cachedFlowStat.getGeneration() != cache.generation){
+			cachedFlowStat.setGeneration(cache.generation);
+			cachedFlowStat.setByteCount(newStat.getByteCount());
+			cachedFlowStat.setPacketCount(newStat.getPacketCount());
+		}else{
+			cachedFlowStat.setByteCount(cachedFlowStat.getByteCount() + newStat.getByteCount());
+			cachedFlowStat.setPacketCount(cachedFlowStat.getPacketCount() + newStat.getPacketCount());
+		}
 		cachedFlowStat.setDurationNanoseconds(newStat.getDurationNanoseconds());
 		cachedFlowStat.setDurationSeconds(newStat.getDurationSeconds());
 		cachedFlowStat.setLastSeen(System.currentTimeMillis());
 		cachedFlowStat.setVerified(true);
+		if(cachedFlowStat.hasParent()){
+			cache.mapOrder.touch(cachedFlowStat);
+		}else{
+			cache.slicedOrder.touch(cachedFlowStat);
+		}
 		
 		String sliceName = ((FSFWOFFlowStatisticsReply) cachedStat).getSliceName();
 		if(cachedFlowStat.hasParent()){
@@ -309,7 +644,7 @@ public class FlowStatCache{
 		
 			//update the parent cache
 			FSFWOFFlowStatisticsReply parentStat = cachedFlowStat.getParentStat();
-			updateFlowStatData(parentStat,newStat,flowCount);
+			updateFlowStatData(cache, parentStat,newStat,flowCount);
 		}
 				
 		return true;
@@ -392,14 +727,9 @@ public class FlowStatCache{
 	 * @param flowCount
 	 */
 	
-	private void processFlow(Long switchId, OFFlowStatisticsReply flowStat, long time, HashMap<String, Integer> flowCount){
+	private void processFlow(SwitchCache cache, Long switchId, OFFlowStatisticsReply flowStat, long time, HashMap<String, Integer> flowCount){
 		
-		if(!map.containsKey(switchId)){
-			HashMap<OFMatch, FSFWOFFlowStatisticsReply> tmpMap = new HashMap<OFMatch, FSFWOFFlowStatisticsReply>();
-			map.put(switchId, tmpMap);
-		}
-		
-		HashMap<OFMatch, FSFWOFFlowStatisticsReply> flowMap = map.get(switchId);
+		HashMap<OFMatch, FSFWOFFlowStatisticsReply> flowMap = cache.map;
 		
 		if(flowMap.containsKey(flowStat.getMatch())){
 			//found our match in the expected stats
@@ -408,7 +738,7 @@ public class FlowStatCache{
 
 			//if the actions match we are good to update
 			if(cachedStat.compareActions(flowStat.getActions())){
-				if(this.updateFlowStatData(cachedStat, flowStat, flowCount)){
+				if(this.updateFlowStatData(cache, cachedStat, flowStat, flowCount)){
 					return;
 				}else{	
 					//uh oh this was set to be deleted...
@@ -441,7 +771,7 @@ public class FlowStatCache{
 					log.error("Allowed Flows!'");
 					flows = slice.allowedFlows(flow);
 				}
-				this.delFlowMod(switchId, slice.getSliceName(),flow, flows);
+				this.delFlowMod(cache, slice.getSliceName(),flow, flows);
 			}
 		}else{
 			//ok so our flow match didn't even show up
@@ -492,18 +822,18 @@ public class FlowStatCache{
 						}
 						newFlow.setActions(newActions);
 						newFlow.setLength((short)(OFFlowMod.MINIMUM_LENGTH + length));
-						this.addFlowMod(switchId, slice.getSliceName(), newFlow, flows);
+						this.addFlowMod(cache, slice.getSliceName(), newFlow, flows);
 					} catch (CloneNotSupportedException e) {
 						log.warn("Unable to clone flowMod!");
 						return;
 					}
 				}else{
 					flows.add(flow);
-					this.addFlowMod(switchId, slice.getSliceName(), flow, flows);
+					this.addFlowMod(cache, slice.getSliceName(), flow, flows);
 				}
 				//ok we added it to our cache now update the flows
 				FSFWOFFlowStatisticsReply cachedStat = (FSFWOFFlowStatisticsReply) flowMap.get(flowStat.getMatch());
-				if(this.updateFlowStatData(cachedStat, flowStat, flowCount)){
+				if(this.updateFlowStatData(cache, cachedStat, flowStat, flowCount)){
 					return;
 				}else{
 					log.warn("error adding a flow we didn't expect to the cache and then updating it");
@@ -518,24 +848,40 @@ public class FlowStatCache{
 	 * @param switchId
 	 * @param stats
 	 */
-	public synchronized void setFlowCache(Long switchId, List <OFStatistics> stats){
-		flowStats.put(switchId, stats);
-		log.debug("Setting Flow Cache! Switch: " + switchId + " Total Stats: " + stats.size());
+	public void setFlowCache(Long switchId, List <OFStatistics> stats){
+		SwitchCache cache = this.getSwitchCache(switchId);
+		HashMap <String, Integer> flowCounts;
+		synchronized(cache){
+			flowCounts = setFlowCache(cache, switchId, stats);
+		}
 		
-		//first thing is to set all counters for all stats to 0
-		if(this.sliced.containsKey(switchId)){
-			//loop through our current cache and set all packet/byte counts to 0
-			Iterator<String> it = this.sliced.get(switchId).keySet().iterator();
-			while(it.hasNext()){
-				String slice = (String)it.next();
-				List<OFStatistics> ofStats = this.sliced.get(switchId).get(slice);
-				for(OFStatistics stat : ofStats){
-					OFFlowStatisticsReply flowStat = (OFFlowStatisticsReply) stat;
-					flowStat.setByteCount(0);
-					flowStat.setPacketCount(0);
-				}
+		//update all proxies for this switch so that they have the proper flow count
+		//ISSUE=10641
+		List<HashMap<Long, Slicer>> slices = new ArrayList<HashMap<Long,Slicer>>(parent.getSlices());
+
+		for(HashMap<Long,Slicer> tmpSlices : slices){
+			if(!tmpSlices.containsKey(switchId)){
+				//switch not part of this slice
+				continue;
+			}
+			Proxy p = this.parent.getProxy(switchId, tmpSlices.get(switchId).getSliceName());
+			if(p == null){
+				continue;
+			}
+			if(flowCounts.containsKey(p.getSlicer().getSliceName())){
+				p.setFlowCount(flowCounts.get(p.getSlicer().getSliceName()));
+			}else{
+				log.error("Problem updating flow counts for slice: " + p.getSlicer().getSwitchName() + ":" + p.getSlicer().getSliceName());
 			}
 		}
+	}
+	
+	private HashMap<String, Integer> setFlowCache(SwitchCache cache, Long switchId, List <OFStatistics> stats){
+		cache.flowStats = stats;
+		log.debug("Setting Flow Cache! Switch: " + switchId + " Total Stats: " + stats.size());
+		
+		//new generation, counters of stats not seen in this poll are no longer current
+		cache.generation++;
 		
 		HashMap <String, Integer> flowCounts = new HashMap<String, Integer>();
 		//now update process all the flows find their mapping and cache them
@@ -544,102 +890,102 @@ public class FlowStatCache{
 		for(OFStatistics stat : stats){
 			OFFlowStatisticsReply flowStat = (OFFlowStatisticsReply) stat;
 			log.debug("Processing Flow: " + flowStat.toString());
-			this.processFlow(switchId, flowStat, time, flowCounts);
+			this.processFlow(cache, switchId, flowStat, time, flowCounts);
 		}
 		
 		//are there any flows that need to go away (ie... we didn't see them since the last poll cycle)		
 		long timeToRemove = time - 60000;
-		if(this.sliced.containsKey(switchId)){
-			HashMap<String, List<OFStatistics>> sliceStats = this.sliced.get(switchId);
-			Iterator<String> it = sliceStats.keySet().iterator();
-			while(it.hasNext()){
-				String slice = (String)it.next();
-				List<OFStatistics> ofStats = this.sliced.get(switchId).get(slice);
-				Iterator<OFStatistics> itStat = ofStats.iterator();
-				while(itStat.hasNext()){
-					OFStatistics stat = (OFStatistics)itStat.next();
-					FSFWOFFlowStatisticsReply flowStat = (FSFWOFFlowStatisticsReply)stat;
-					if(flowStat.lastSeen() < timeToRemove){
-						log.debug("Removing flowStat: " + stat.toString());
-						itStat.remove();
-							//have to also find all flows that point to this flow :(
-						this.removeMappedCache(switchId, flowStat);
-					}else if(flowStat.toBeDeleted()){
-						itStat.remove();
-						this.removeMappedCache(switchId, flowStat);
-					}
-				}
-			}
+		Set<FSFWOFFlowStatisticsReply> removed = Collections.newSetFromMap(new IdentityHashMap<FSFWOFFlowStatisticsReply, Boolean>());
+		for(FSFWOFFlowStatisticsReply flowStat : cache.deleted){
+			this.removeStat(cache, flowStat, removed);
 		}
+		cache.deleted.clear();
 		
-		if(this.map.containsKey(switchId)){
-			HashMap<OFMatch, FSFWOFFlowStatisticsReply> flowMap = this.map.get(switchId);
-			Iterator<OFMatch> it = flowMap.keySet().iterator();
-			while(it.hasNext()){
-				FSFWOFFlowStatisticsReply stat = flowMap.get(it.next());
-				if(stat.lastSeen() < timeToRemove){
-					log.debug("Removing mapping flowStat: " + stat.toString());
-					it.remove();
-				}else if(stat.toBeDeleted()){
-					it.remove();
-				}
-			}
+		//the stale stats are all at the front of the last seen order
+		FSFWOFFlowStatisticsReply flowStat;
+		while((flowStat = cache.slicedOrder.oldest) != null && flowStat.lastSeen() < timeToRemove){
+			log.debug("Removing flowStat: " + flowStat.toString());
+			this.removeStat(cache, flowStat, removed);
+		}
+		while((flowStat = cache.mapOrder.oldest) != null && flowStat.lastSeen() < timeToRemove){
+			log.debug("Removing mapping flowStat: " + flowStat.toString());
+			this.removeStat(cache, flowStat, removed);
 		}
 		
-		//update all proxies for this switch so that they have the proper flow count
-		//ISSUE=10641
-		List<HashMap<Long, Slicer>> slices = new ArrayList<HashMap<Long,Slicer>>(parent.getSlices());
-
-		for(HashMap<Long,Slicer> tmpSlices : slices){
-			if(!tmpSlices.containsKey(switchId)){
-				//switch not part of this slice
-				continue;
+		//only the slices that lost a stat need to be compacted
+		if(!removed.isEmpty()){
+			Set<String> sliceNames = new HashSet<String>();
+			for(FSFWOFFlowStatisticsReply stat : removed){
+				sliceNames.add(stat.getSliceName());
 			}
-			Proxy p = this.parent.getProxy(switchId, tmpSlices.get(switchId).getSliceName());
-			if(p == null){
-				continue;
+			for(String sliceName : sliceNames){
+				List<OFStatistics> ofStats = cache.sliced.get(sliceName);
+				if(ofStats != null){
+					ofStats.removeAll(removed);
+				}
 			}
-			if(flowCounts.containsKey(p.getSlicer().getSliceName())){
-				p.setFlowCount(flowCounts.get(p.getSlicer().getSliceName()));
-			}else{
-				log.error("Problem updating flow counts for slice: " + p.getSlicer().getSwitchName() + ":" + p.getSlicer().getSliceName());
+		}
+		
+		return flowCounts;
+	}
+	
+	/**
+	 * removeStat
+	 * removes a sliced stat (and the flows mapped to it) or a mapped flow from the cache
+	 * sliced stats are added to removed so they can be taken out of their slice list
+	 * @param cache
+	 * @param stat
+	 * @param removed
+	 */
+	
+	private void removeStat(SwitchCache cache, FSFWOFFlowStatisticsReply stat, Set<FSFWOFFlowStatisticsReply> removed){
+		version.incrementAndGet();
+		if(cache.slicedOrder.contains(stat)){
+			cache.slicedOrder.remove(stat);
+			removed.add(stat);
+			//have to also remove all flows that point to this flow
+			this.removeMappedCache(cache, stat);
+		}else if(cache.mapOrder.contains(stat)){
+			cache.mapOrder.remove(stat);
+			if(cache.map.get(stat.getMatch()) == stat){
+				cache.map.remove(stat.getMatch());
 			}
 		}
 	}
 	
 	/**
 	 * removeMappedCache
-	 * @param switchId
+	 * @param cache
 	 * @param stat
 	 * 
 	 * removes the flows that are mapped to this stats
+	 * only touches the children of the stat, not the whole map
 	 * 
 	 */
 	
-	private void removeMappedCache(long switchId, OFStatistics stat){
-		if(map.containsKey(switchId)){
-			HashMap<OFMatch, FSFWOFFlowStatisticsReply> switchMap = map.get(switchId);
-			//well crap no easy way to do this...
-			Iterator<Entry<OFMatch, FSFWOFFlowStatisticsReply>> it = switchMap.entrySet().iterator();
-			while(it.hasNext()){
-				Entry<OFMatch, FSFWOFFlowStatisticsReply> entry = (Entry<OFMatch, FSFWOFFlowStatisticsReply>) it.next();
-				if(entry.getValue().hasParent()){
-					if(entry.getValue().getParentStat().equals(stat)){
-						it.remove();
-					}
-				}
+	private void removeMappedCache(SwitchCache cache, FSFWOFFlowStatisticsReply stat){
+		List<FSFWOFFlowStatisticsReply> children = cache.children.remove(stat);
+		if(children == null){
+			return;
+		}
+		HashMap<OFMatch, FSFWOFFlowStatisticsReply> switchMap = cache.map;
+		for(FSFWOFFlowStatisticsReply child : children){
+			//the match may have been remapped to a newer flow since
+			if(switchMap.get(child.getMatch()) == child){
+				switchMap.remove(child.getMatch());
 			}
-			
+			cache.mapOrder.remove(child);
 		}
 	}
 	
 	/**
-	 * tries to find expired flows and then signals that they need to be removed!
+	 * returns the idle timeouts of every slice on the switch, these are the
+	 * flows that might have expired depending on their packet counts
 	 * @param switchId
 	 * @return
 	 */
 	
-	public synchronized List<FlowTimeout> getPossibleExpiredFlows(Long switchId){
+	public List<FlowTimeout> getPossibleExpiredFlows(Long switchId){
 		List<FlowTimeout> flowTimeouts = new ArrayList<FlowTimeout>();
 		List<HashMap<Long, Slicer>> slices = new ArrayList<HashMap<Long,Slicer>>(parent.getSlices());
 
@@ -652,7 +998,7 @@ public class FlowStatCache{
 			if(proxy == null){
 				return flowTimeouts;
 			}
-			flowTimeouts.addAll( proxy.getTimeouts());
+			flowTimeouts.addAll( proxy.getIdleTimeouts());
 		}
 			
 		return flowTimeouts;
@@ -685,19 +1031,29 @@ public class FlowStatCache{
 	 * @param switchId
 	 * @return
 	 */
-	public synchronized List <OFStatistics> getSwitchFlowStats(Long switchId){
+	public List <OFStatistics> getSwitchFlowStats(Long switchId){
 		log.debug("Looking for switch stats: " + switchId);
-		return flowStats.get(switchId);
+		SwitchCache cache = switchCaches.get(switchId);
+		if(cache == null){
+			return null;
+		}
+		synchronized(cache){
+			return cache.flowStats;
+		}
 	}
 	
 
-	public synchronized List <OFStatistics> getSlicedFlowStats(Long switchId, String sliceName){
+	public List <OFStatistics> getSlicedFlowStats(Long switchId, String sliceName){
 		log.debug("Getting sliced stats for switch: " + switchId + " and slice " + sliceName);
-		if(!flowStats.containsKey(switchId)){
+		SwitchCache cache = switchCaches.get(switchId);
+		if(cache == null){
 			return null;
 		}
-		if(sliced.containsKey(switchId)){
-			HashMap<String, List<OFStatistics>> tmpStats = sliced.get(switchId);
+		synchronized(cache){
+			if(cache.flowStats == null){
+				return null;
+			}
+			HashMap<String, List<OFStatistics>> tmpStats = cache.sliced;
 			if(tmpStats.containsKey(sliceName)){				
 				//create a copy of the array so we can manipulate it
 				List<OFStatistics> slicedStats = new ArrayList<OFStatistics>();				
@@ -712,6 +1068,11 @@ public class FlowStatCache{
 					}else{
 						try{
 							FSFWOFFlowStatisticsReply tmpFlowStat = FSFWOFFlowStatisticsReply.clone(flowStat);
+							//not seen in the last poll so it has no counts
+							if(flowStat.getGeneration() != cache.generation){
+								tmpFlowStat.setByteCount(0);
+								tmpFlowStat.setPacketCount(0);
+							}
 							slicedStats.add(tmpFlowStat);
 						}catch(CloneNotSupportedException e){
 							log.error("Unable to clone FlowStat!");
@@ -725,25 +1086,27 @@ public class FlowStatCache{
 			log.debug("Switch cache has no slice cache named: " + sliceName);
 			return new ArrayList<OFStatistics>();
 		}
-		log.debug("Switch cache does not even exist");
-		return new ArrayList<OFStatistics>();
 	}
 	
 	
-	public synchronized void setPortCache(Long switchId, HashMap<Short, OFStatistics> stats){
-		portStats.put(switchId, stats);
+	public void setPortCache(Long switchId, HashMap<Short, OFStatistics> stats){
+		this.getSwitchCache(switchId).portStats = stats;
 	}
 	
-	public synchronized OFStatistics getPortStats(Long switchId, short portId){
-		HashMap<Short, OFStatistics> nodeStats = portStats.get(switchId);
+	public OFStatistics getPortStats(Long switchId, short portId){
+		HashMap<Short, OFStatistics> nodeStats = this.getPortStats(switchId);
 		if(nodeStats != null){
 			return nodeStats.get(portId);
 		}
 		return null;
 	}
 	
-	public synchronized HashMap<Short, OFStatistics> getPortStats(Long switchId){
-		return portStats.get(switchId);
+	public HashMap<Short, OFStatistics> getPortStats(Long switchId){
+		SwitchCache cache = switchCaches.get(switchId);
+		if(cache == null){
+			return null;
+		}
+		return cache.portStats;
 	}
 	
 	
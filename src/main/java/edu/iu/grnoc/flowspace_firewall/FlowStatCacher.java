@@ -16,19 +16,18 @@
 package edu.iu.grnoc.flowspace_firewall;
 
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.TimerTask;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import net.floodlightcontroller.core.IOFSwitch;
 
@@ -53,8 +52,19 @@ import org.slf4j.LoggerFactory;
 
 public class FlowStatCacher extends TimerTask{
 
-	private static String cacheFile = "/var/run/fsfw/flowCache.ser";
+	private static String cacheFile = "/var/run/fsfw/flowCache.snap";
+	//cache written by older versions, only read if there is no snapshot
+	private static String legacyCacheFile = "/var/run/fsfw/flowCache.ser";
+	//flow adds and deletes since the snapshot
+	private static String journalFile = "/var/run/fsfw/flowCache.journal";
+	public static final int DEFAULT_MAX_CONCURRENT_POLLS = 16;
+	public static final int DEFAULT_POLL_TIMEOUT = 10;
+	//how long to wait between checks on the outstanding requests
+	private static final long POLL_WAIT = 10;
+	private int maxConcurrentPolls = DEFAULT_MAX_CONCURRENT_POLLS;
+	private int pollTimeout = DEFAULT_POLL_TIMEOUT;
 	FlowStatCache statsCache;
+	private FlowCacheJournal journal;
 	private static final Logger log = LoggerFactory.getLogger(FlowStatCacher.class);
 	
 	/**
@@ -70,70 +80,166 @@ public class FlowStatCacher extends TimerTask{
 	}
 	/**
 	 * the TimerTask run method called by the Timer
-	 * Loops through the array of Switches and pulls the stats
-	 * stores the stats in the statsCache object
+	 * Sends the flow and port stats requests to the switches
+	 * (at most maxConcurrentPolls at a time) and stores the stats
+	 * in the statsCache object as each reply comes in
+	 * writing the cache to disk is left to the FlowCacheWriter
 	 */
 	public void run(){
 		
-		List<IOFSwitch> switches = this.statsCache.getSwitches();
-		Iterator <IOFSwitch> it = switches.iterator();
-		while(it.hasNext()){
-			IOFSwitch sw = it.next();
-			try{
-				
-				log.debug("Getting stats for switch: " + sw.getStringId() );
-				List<OFStatistics> statsReply = getFlowStatsForSwitch(sw);
-				statsCache.setFlowCache(sw.getId(), statsReply);
-				HashMap<Short, OFStatistics> portStatsReply = getPortStatsForSwitch(sw);
-				statsCache.setPortCache(sw.getId(), portStatsReply);
-				
-				//check for anything that has expired
-				List<FlowTimeout> timeouts = statsCache.getPossibleExpiredFlows(sw.getId());
-				this.updateExpire(timeouts, sw.getId());
-				statsCache.checkExpireFlows(sw.getId());
-			}catch(Exception e){
-				log.error("Exception thrown in Stat collection handler...");
-				log.error(e.getMessage());
-				StackTraceElement[] trace = e.getStackTrace();
-				for(int i=0; i< trace.length; i++){
-					log.error(trace[i].toString());
+		LinkedList<IOFSwitch> waiting = new LinkedList<IOFSwitch>(this.statsCache.getSwitches());
+		List<SwitchPoll> active = new ArrayList<SwitchPoll>();
+		while(!waiting.isEmpty() || !active.isEmpty()){
+			while(active.size() < this.maxConcurrentPolls && !waiting.isEmpty()){
+				active.add(this.startPoll(waiting.removeFirst()));
+			}
+			
+			boolean finished = false;
+			Iterator<SwitchPoll> it = active.iterator();
+			while(it.hasNext()){
+				if(this.checkPoll(it.next())){
+					it.remove();
+					finished = true;
 				}
-				statsCache.clearFlowCache(sw.getId());
 			}
-
-		}	
+			
+			if(!finished && !active.isEmpty()){
+				try {
+					Thread.sleep(POLL_WAIT);
+				} catch (InterruptedException e) {
+					log.error("Interrupted while waiting for stats");
+					for(SwitchPoll poll : active){
+						poll.cancel();
+					}
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
 		
 		
-		//write our cache to disk!
-		FileOutputStream fos;
-		ObjectOutputStream oos;
+	}
+	
+	/**
+	 * builds the task that writes the cache to disk when it changes
+	 * @return FlowCacheWriter
+	 */
+	public FlowCacheWriter getCacheWriter(){
+		return new FlowCacheWriter(this.statsCache, new File(cacheFile), this.journal);
+	}
+	
+	/**
+	 * sends the flow and port stats requests to the switch
+	 * @param sw
+	 * @return SwitchPoll
+	 */
+	private SwitchPoll startPoll(IOFSwitch sw){
+		log.debug("Getting stats for switch: " + sw.getStringId() );
+		SwitchPoll poll = new SwitchPoll(sw, System.currentTimeMillis() + (this.pollTimeout * 1000L));
 		try {
-			fos = new FileOutputStream(cacheFile);
-			oos = new ObjectOutputStream(fos);
-			statsCache.writeObject(oos);
-			oos.flush();
-			oos.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-			log.error("Error occured writing statsCache");
+			poll.flowFuture = sw.queryStatistics(buildFlowStatsRequest());
+		} catch (Exception e) {
+			log.error("Failure retrieving statistics from switch " + sw, e);
 		}
-		
-		
+		try {
+			poll.portFuture = sw.queryStatistics(buildPortStatsRequest());
+		} catch (Exception e) {
+			log.error("Failure retrieving statistics from switch " + sw, e);
+		}
+		return poll;
+	}
+	
+	/**
+	 * caches whichever replies have come in for the switch
+	 * once both are in (or the deadline passed) checks for expired flows
+	 * @param poll
+	 * @return true if nothing is left to wait on for this switch
+	 */
+	private boolean checkPoll(SwitchPoll poll){
+		IOFSwitch sw = poll.sw;
+		boolean expired = System.currentTimeMillis() >= poll.deadline;
+		try{
+			if(!poll.flowDone && (expired || poll.flowFuture == null || poll.flowFuture.isDone())){
+				poll.flowDone = true;
+				List<OFStatistics> statsReply = collectFlowStats(sw, poll.flowFuture);
+				statsCache.setFlowCache(sw.getId(), statsReply);
+			}
+			if(!poll.portDone && (expired || poll.portFuture == null || poll.portFuture.isDone())){
+				poll.portDone = true;
+				HashMap<Short, OFStatistics> portStatsReply = collectPortStats(sw, poll.portFuture);
+				statsCache.setPortCache(sw.getId(), portStatsReply);
+			}
+			if(!poll.flowDone || !poll.portDone){
+				return false;
+			}
+			
+			//check for anything that has expired
+			List<FlowTimeout> timeouts = statsCache.getPossibleExpiredFlows(sw.getId());
+			this.updateExpire(timeouts, sw.getId());
+			statsCache.checkExpireFlows(sw.getId());
+		}catch(Exception e){
+			log.error("Exception thrown in Stat collection handler...");
+			log.error(e.getMessage());
+			StackTraceElement[] trace = e.getStackTrace();
+			for(int i=0; i< trace.length; i++){
+				log.error(trace[i].toString());
+			}
+			poll.cancel();
+			statsCache.clearFlowCache(sw.getId());
+		}
+		return true;
+	}
+	
+	/**
+	 * sets the most switches that will have stats requests
+	 * outstanding at the same time
+	 * @param maxConcurrentPolls
+	 */
+	public void setMaxConcurrentPolls(int maxConcurrentPolls){
+		this.maxConcurrentPolls = Math.max(1, maxConcurrentPolls);
+	}
+	
+	public int getMaxConcurrentPolls(){
+		return this.maxConcurrentPolls;
+	}
+	
+	/**
+	 * sets how many seconds a switch has to answer the stats requests
+	 * @param pollTimeout
+	 */
+	public void setPollTimeout(int pollTimeout){
+		this.pollTimeout = pollTimeout;
+	}
+	
+	public int getPollTimeout(){
+		return this.pollTimeout;
 	}
 	
 	public void updateExpire(List<FlowTimeout> timeouts, Long switchId){
+		if(timeouts.isEmpty()){
+			return;
+		}
+		List<OFStatistics> stats = statsCache.getSwitchFlowStats(switchId);
+		if(stats == null){
+			return;
+		}
+		//index the stats by match once instead of searching them for every timeout
+		HashMap<OFMatch, OFFlowStatisticsReply> statsByMatch = new HashMap<OFMatch, OFFlowStatisticsReply>(stats.size() * 2);
+		for(OFStatistics stat : stats){
+			OFFlowStatisticsReply flowStat = (OFFlowStatisticsReply) stat;
+			statsByMatch.put(flowStat.getMatch(), flowStat);
+		}
 		for(FlowTimeout timeout : timeouts){
 			if(!timeout.isHard()){
-				for(OFStatistics stat : statsCache.getSwitchFlowStats(switchId)){
-					OFFlowStatisticsReply flowStat = (OFFlowStatisticsReply) stat;
-					if(flowStat.getMatch().equals(timeout.getFlow().getMatch())){
-						if(timeout.getPacketCount() == flowStat.getPacketCount()){
-							//hasn't changed... so it has been idle
-						}else{
-							timeout.setPacketCount(flowStat.getPacketCount());
-							timeout.updateLastUsed();
-						}
-					}
+				OFFlowStatisticsReply flowStat = statsByMatch.get(timeout.getFlow().getMatch());
+				if(flowStat == null){
+					continue;
+				}
+				if(timeout.getPacketCount() == flowStat.getPacketCount()){
+					//hasn't changed... so it has been idle
+				}else{
+					timeout.setPacketCount(flowStat.getPacketCount());
+					timeout.updateLastUsed();
 				}
 			}
 		}
@@ -173,15 +279,10 @@ public class FlowStatCacher extends TimerTask{
 	}
 	
 	/**
-	 * Retrieves FlowStats for everything on the switch
-	 * and returns them.
-	 * @param sw
-	 * @return List of OFStatistics objects
+	 * builds the stats request for every flow on the switch
+	 * @return OFStatisticsRequest
 	 */
-	private List<OFStatistics> getFlowStatsForSwitch(IOFSwitch sw){
-		List <OFStatistics> statsReply = new ArrayList<OFStatistics>();
-		List <OFStatistics> values = null;
-		Future<List<OFStatistics>> future;
+	private OFStatisticsRequest buildFlowStatsRequest(){
 		// Statistics request object for getting flows
         OFStatisticsRequest req = new OFStatisticsRequest();
 	    req.setStatisticType(OFStatisticsType.FLOW);
@@ -193,29 +294,14 @@ public class FlowStatCacher extends TimerTask{
         req.setStatistics(Collections.singletonList((OFStatistics)specificReq));
         requestLength += specificReq.getLength();
         req.setLengthU(requestLength);
-        
-        try {
-        	future = sw.queryStatistics(req);
-        	log.debug(future.toString());
-        	values = future.get(10, TimeUnit.SECONDS);
-        	log.debug(values.toString());
-        	if(values != null){
-            	for(OFStatistics stat : values){
-            		log.debug("Adding Stat");
-            		statsReply.add(stat);
-            	}
-            }
-        } catch (Exception e) {
-            log.error("Failure retrieving statistics from switch " + sw, e);
-        }
-        log.debug("Stats cached for switch: " + sw.getId() + ". Total flows cached: " + statsReply.size());
-        return statsReply;
+        return req;
 	}
 	
-	private HashMap<Short, OFStatistics> getPortStatsForSwitch(IOFSwitch sw){
-		List <OFStatistics> values = null;
-		Future<List<OFStatistics>> future;
-		// Statistics request object for getting flows
+	/**
+	 * builds the stats request for every port on the switch
+	 * @return OFStatisticsRequest
+	 */
+	private OFStatisticsRequest buildPortStatsRequest(){
         OFStatisticsRequest req = new OFStatisticsRequest();
 	    req.setStatisticType(OFStatisticsType.PORT);
 	    int requestLength = req.getLengthU();
@@ -224,26 +310,89 @@ public class FlowStatCacher extends TimerTask{
         req.setStatistics(Collections.singletonList((OFStatistics)specificReq));
         requestLength += specificReq.getLength();
         req.setLengthU(requestLength);
+        return req;
+	}
+	
+	/**
+	 * returns the reply of a finished stats request, or null if the
+	 * request failed or never finished (in which case it is cancelled)
+	 * @param sw
+	 * @param future
+	 * @return List of OFStatistics objects
+	 */
+	private List<OFStatistics> getReply(IOFSwitch sw, Future<List<OFStatistics>> future){
+		if(future == null){
+			return null;
+		}
+		if(!future.isDone()){
+			future.cancel(true);
+			log.error("Failure retrieving statistics from switch " + sw + ": timed out after " + this.pollTimeout + " seconds");
+			return null;
+		}
+		try {
+			return future.get();
+		} catch (Exception e) {
+			log.error("Failure retrieving statistics from switch " + sw, e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Retrieves the FlowStats for everything on the switch
+	 * from the finished request and returns them.
+	 * @param sw
+	 * @param future
+	 * @return List of OFStatistics objects
+	 */
+	private List<OFStatistics> collectFlowStats(IOFSwitch sw, Future<List<OFStatistics>> future){
+		List <OFStatistics> statsReply = new ArrayList<OFStatistics>();
+		List <OFStatistics> values = getReply(sw, future);
+    	if(values != null){
+        	statsReply.addAll(values);
+        }
+        log.debug("Stats cached for switch: " + sw.getId() + ". Total flows cached: " + statsReply.size());
+        return statsReply;
+	}
+	
+	private HashMap<Short, OFStatistics> collectPortStats(IOFSwitch sw, Future<List<OFStatistics>> future){
         HashMap<Short, OFStatistics> statsReply = new HashMap<Short, OFStatistics>();
-        
-        try {
-        	future = sw.queryStatistics(req);
-        	log.debug(future.toString());
-        	values = future.get(10, TimeUnit.SECONDS);
-        	log.debug(values.toString());
-        	if(values != null){
-            	for(OFStatistics stat : values){
-            		OFPortStatisticsReply portStat = (OFPortStatisticsReply) stat;
-            		log.debug("Adding Stat");
-            		statsReply.put(portStat.getPortNumber(), stat);
-            	}
-            }
-        } catch (Exception e) {
-            log.error("Failure retrieving statistics from switch " + sw, e);
+		List <OFStatistics> values = getReply(sw, future);
+    	if(values != null){
+        	for(OFStatistics stat : values){
+        		OFPortStatisticsReply portStat = (OFPortStatisticsReply) stat;
+        		statsReply.put(portStat.getPortNumber(), stat);
+        	}
         }
         log.debug("Stats cached for switch: " + sw.getId() + ". Total ports stats cached: " + statsReply.size());
         return statsReply;
 	}
+	
+	/**
+	 * the outstanding stats requests for one switch
+	 */
+	private static class SwitchPoll {
+		final IOFSwitch sw;
+		final long deadline;
+		Future<List<OFStatistics>> flowFuture;
+		Future<List<OFStatistics>> portFuture;
+		boolean flowDone;
+		boolean portDone;
+		
+		SwitchPoll(IOFSwitch sw, long deadline){
+			this.sw = sw;
+			this.deadline = deadline;
+		}
+		
+		void cancel(){
+			if(this.flowFuture != null && !this.flowFuture.isDone()){
+				this.flowFuture.cancel(true);
+			}
+			if(this.portFuture != null && !this.portFuture.isDone()){
+				this.portFuture.cancel(true);
+			}
+		}
+	}
+	
 	public void addFlowCache(long switchId, String sliceName, OFFlowMod flowMod, List<OFFlowMod> flows) {
 		this.statsCache.addFlowMod(switchId, sliceName, flowMod,flows);
 	}
@@ -254,12 +403,33 @@ public class FlowStatCacher extends TimerTask{
 	//load the cache from disk
 	//this only happens during startup of FSFW
 	public void loadCache(){
+		File snapshot = new File(cacheFile);
+		if(snapshot.exists()){
+			try{
+				statsCache.readSnapshot(snapshot);
+			}catch(IOException e){
+				log.error("Error reading in cache file " + cacheFile + ": " + e.getMessage() + "  Starting from clean cache!");
+			}
+		}else{
+			try{
+				FileInputStream fis = new FileInputStream(legacyCacheFile);
+				ObjectInputStream ois = new ObjectInputStream(fis);
+				statsCache.readObject(ois);
+				ois.close();
+			}catch(IOException e){
+				
+			}
+		}
+		
+		//replay the flow adds and deletes made after the snapshot
 		try{
-			FileInputStream fis = new FileInputStream(cacheFile);
-			ObjectInputStream ois = new ObjectInputStream(fis);
-			statsCache.readObject(ois);
+			FlowCacheJournal journal = new FlowCacheJournal(new File(journalFile));
+			int replayed = statsCache.replayJournal(journal);
+			log.info("Replayed " + replayed + " flow cache journal records");
+			statsCache.setJournal(journal);
+			this.journal = journal;
 		}catch(IOException e){
-			
+			log.error("Unable to open flow cache journal " + journalFile + ": " + e.getMessage());
 		}
 	}
 	
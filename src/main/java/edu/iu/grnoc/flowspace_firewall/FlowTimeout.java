@@ -15,8 +15,6 @@
 */
 package edu.iu.grnoc.flowspace_firewall;
 
-import java.sql.Timestamp;
-
 import net.floodlightcontroller.core.FloodlightContext;
 
 import org.openflow.protocol.OFFlowMod;
@@ -25,8 +23,13 @@ import org.slf4j.LoggerFactory;
 
 public class FlowTimeout {
 
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
 	private OFFlowMod flow;
-	private Timestamp expires;
+	//System.nanoTime() when the flow expires
+	private volatile long expires;
+	//expires when this was put on the FlowTimeoutQueue
+	long queuedExpires;
 	//to track idle timeout
 	private int timeout;
 	//is a hard timeout or an idle timeout?
@@ -40,9 +43,9 @@ public class FlowTimeout {
 		this.flow = flow;
 		this.hard = hard;
 		this.context = context;
-		this.expires = new Timestamp( System.currentTimeMillis() + (timeout  * 1000) );
-		log.debug("I expire at: " + this.expires.toString());
 		this.timeout = timeout;
+		this.expires = System.nanoTime() + (timeout * NANOS_PER_SECOND);
+		log.debug("I expire in: " + timeout + " seconds");
 		this.packetCount = 0;
 	}
 	
@@ -55,12 +58,24 @@ public class FlowTimeout {
 	}
 	
 	public boolean isExpired(){
-		Timestamp now = new Timestamp(System.currentTimeMillis());
-		if(this.expires.before(now)){
-			return true;
-		}else{
-			return false;
-		}
+		return this.isExpired(System.nanoTime());
+	}
+	
+	/**
+	 * is the flow expired at now
+	 * @param now a System.nanoTime() value
+	 * @return boolean
+	 */
+	public boolean isExpired(long now){
+		return now - this.expires > 0;
+	}
+	
+	/**
+	 * returns the System.nanoTime() value when the flow expires
+	 * @return long
+	 */
+	public long getExpires(){
+		return this.expires;
 	}
 
 	public boolean isHard(){
@@ -76,7 +91,7 @@ public class FlowTimeout {
 	}
 	
 	public void updateLastUsed(){
-		this.expires = new Timestamp(System.currentTimeMillis() + (timeout * 1000));
+		this.expires = System.nanoTime() + (timeout * NANOS_PER_SECOND);
 	}
 	
 }
@@ -0,0 +1,55 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TimerTask that removes flows whose software hard timeout
+ * has passed without waiting for the next stats poll.  Idle
+ * timeouts still wait for the poll since they need the packet counts
+ * @author aragusa
+ *
+ */
+
+public class FlowTimeoutChecker extends TimerTask{
+
+	public static final long CHECK_INTERVAL = 1000;
+	private static final Logger log = LoggerFactory.getLogger(FlowTimeoutChecker.class);
+	
+	private final ControllerConnector controllerConnector;
+	
+	public FlowTimeoutChecker(ControllerConnector controllerConnector){
+		this.controllerConnector = controllerConnector;
+	}
+	
+	/**
+	 * the TimerTask run method called by the Timer
+	 * checks every proxy for expired hard timeouts
+	 */
+	public void run(){
+		for(Proxy p : controllerConnector.getAllProxies()){
+			try{
+				p.checkHardTimeouts();
+			}catch(Exception e){
+				log.error("Error checking hard timeouts: " + e.getMessage());
+			}
+		}
+	}
+}
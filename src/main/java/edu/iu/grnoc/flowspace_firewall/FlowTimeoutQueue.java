@@ -0,0 +1,121 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * the software idle/hard timeouts of a slice ordered by when they expire
+ * so finding the expired flows only looks at the expired flows
+ *
+ * idle timeouts are pushed back by updateLastUsed after they are queued,
+ * instead of re-sorting on every update a timeout stays queued at the
+ * expiration it had when it was added and gets re-queued at its new
+ * expiration if it turns out to still be in use when it reaches the head
+ * @author aragusa
+ *
+ */
+public class FlowTimeoutQueue {
+
+	private static final Comparator<FlowTimeout> EXPIRES_ORDER = new Comparator<FlowTimeout>(){
+		public int compare(FlowTimeout a, FlowTimeout b){
+			long diff = a.queuedExpires - b.queuedExpires;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	};
+
+	private final PriorityQueue<FlowTimeout> hard;
+	private final PriorityQueue<FlowTimeout> idle;
+
+	public FlowTimeoutQueue(){
+		hard = new PriorityQueue<FlowTimeout>(11, EXPIRES_ORDER);
+		idle = new PriorityQueue<FlowTimeout>(11, EXPIRES_ORDER);
+	}
+
+	public synchronized void add(FlowTimeout timeout){
+		timeout.queuedExpires = timeout.getExpires();
+		if(timeout.isHard()){
+			hard.add(timeout);
+		}else{
+			idle.add(timeout);
+		}
+	}
+
+	public synchronized int size(){
+		return hard.size() + idle.size();
+	}
+
+	/**
+	 * returns a copy of every queued timeout, in no particular order
+	 * @return List of FlowTimeouts
+	 */
+	public synchronized List<FlowTimeout> getTimeouts(){
+		List<FlowTimeout> timeouts = new ArrayList<FlowTimeout>(this.size());
+		timeouts.addAll(hard);
+		timeouts.addAll(idle);
+		return timeouts;
+	}
+
+	/**
+	 * returns a copy of the queued idle timeouts
+	 * @return List of FlowTimeouts
+	 */
+	public synchronized List<FlowTimeout> getIdleTimeouts(){
+		return new ArrayList<FlowTimeout>(idle);
+	}
+
+	/**
+	 * removes and returns every timeout that has expired
+	 * @param now a System.nanoTime() value
+	 * @return List of expired FlowTimeouts
+	 */
+	public synchronized List<FlowTimeout> pollExpired(long now){
+		List<FlowTimeout> expired = new ArrayList<FlowTimeout>();
+		pollExpired(hard, now, expired);
+		pollExpired(idle, now, expired);
+		return expired;
+	}
+
+	/**
+	 * removes and returns the hard timeouts that have expired, these do
+	 * not depend on the flow stats so they can be checked at any time
+	 * @param now a System.nanoTime() value
+	 * @return List of expired FlowTimeouts
+	 */
+	public synchronized List<FlowTimeout> pollExpiredHard(long now){
+		List<FlowTimeout> expired = new ArrayList<FlowTimeout>();
+		pollExpired(hard, now, expired);
+		return expired;
+	}
+
+	private static void pollExpired(PriorityQueue<FlowTimeout> queue, long now, List<FlowTimeout> expired){
+		FlowTimeout timeout = queue.peek();
+		while(timeout != null && now - timeout.queuedExpires > 0){
+			queue.poll();
+			if(timeout.isExpired(now)){
+				expired.add(timeout);
+			}else{
+				//used since it was queued
+				timeout.queuedExpires = timeout.getExpires();
+				queue.add(timeout);
+			}
+			timeout = queue.peek();
+		}
+	}
+}
@@ -20,7 +20,12 @@ import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.ImmutablePort;
@@ -65,6 +70,39 @@ class OFControllerChannelHandler
     // needs to check if the handshake is complete
     private volatile ChannelState state;
 
+    /** most messages written to the controller in one channel write */
+    private static final int MAX_WRITE_BATCH = 1000;
+    /** messages waiting to be written to the controller */
+    private final ConcurrentLinkedQueue<OFMessage> pendingMessages =
+            new ConcurrentLinkedQueue<OFMessage>();
+    /** only one thread writes the pending messages at a time */
+    private final AtomicBoolean writingMessages = new AtomicBoolean(false);
+    /** true while a flush of the pending messages is waiting to run */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    /** writes the messages sent from outside messageReceived, shared
+     * by every controller channel */
+    private static final Executor DEFAULT_FLUSH_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ControllerWriter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final Executor flushExecutor;
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushScheduled.set(false);
+            flushMessages();
+        }
+    };
+    /** the thread working through messageReceived, its sends wait
+     * until the whole train of messages has been processed */
+    private volatile Thread receiveThread;
+    /** false when the decoder found the header length of the
+     * message being processed did not match the message */
+    private boolean currentMessageValid = true;
+
     /** transaction Ids to use during handshake. Since only one thread
      * calls into the OFChannelHandler we don't need atomic.
      * We will count down
@@ -321,15 +359,15 @@ class OFControllerChannelHandler
         }
         
         void processOFStatsRequest(OFControllerChannelHandler h, OFMessage m) throws IOException{
-        	h.proxy.toSwitch(m,null);
+        	h.forwardToSwitch(m);
         }
 
         void processOFBarrierRequest(OFControllerChannelHandler h, OFMessage m) throws IOException{
-        	h.proxy.toSwitch(m, null );
+        	h.forwardToSwitch(m);
         }
         
         void processOFFlowMod(OFControllerChannelHandler h, OFMessage m) throws IOException{
-        	h.proxy.toSwitch(m,null);
+        	h.forwardToSwitch(m);
         }
         
         void processOFQueueGetRequest(OFControllerChannelHandler h, OFMessage m) throws IOException{
@@ -342,7 +380,7 @@ class OFControllerChannelHandler
         }
         
         void processOFPacketOut(OFControllerChannelHandler h, OFMessage m) throws IOException{
-        	h.proxy.toSwitch(m, null);
+        	h.forwardToSwitch(m);
         }
         
         void processSetConfig(OFControllerChannelHandler h, OFMessage m) throws IOException{
@@ -470,8 +508,17 @@ class OFControllerChannelHandler
      * 
      */
     OFControllerChannelHandler() {
-        this.state = ChannelState.INIT;    
-        
+        this(DEFAULT_FLUSH_EXECUTOR);
+    }
+    
+    /**
+     * Create a new unconnected OFChannelHandler that writes messages
+     * sent from other threads with flushExecutor
+     * @param flushExecutor
+     */
+    OFControllerChannelHandler(Executor flushExecutor) {
+        this.state = ChannelState.INIT;
+        this.flushExecutor = flushExecutor;
     }
 
     public void setSwitch(IOFSwitch sw){
@@ -513,7 +560,7 @@ class OFControllerChannelHandler
                    explanation="The specified controller has disconnected.")
     public void channelDisconnected(ChannelHandlerContext ctx,
                                     ChannelStateEvent e) throws Exception {
-        
+        pendingMessages.clear();
 
     }
 
@@ -634,25 +681,38 @@ class OFControllerChannelHandler
         if (e.getMessage() instanceof List) {
             @SuppressWarnings("unchecked")
             List<OFMessage> msglist = (List<OFMessage>)e.getMessage();
+            OFFrameDecoder.DecodedMessages decoded = null;
+            if (msglist instanceof OFFrameDecoder.DecodedMessages) {
+                decoded = (OFFrameDecoder.DecodedMessages)msglist;
+            }
 
-            for (OFMessage ofm : msglist) {
-                
-                try {
-                                        // Do the actual packet processing
-                    state.processOFMessage(this, ofm);
-
-                }
-                catch (Exception ex) {
-                    // We are the last handler in the stream, so run the
-                    // exception through the channel again by passing in
-                    // ctx.getChannel().
-                    Channels.fireExceptionCaught(ctx.getChannel(), ex);
+            // everything this train of messages sends to the switch
+            // or the controller goes out in one write
+            receiveThread = Thread.currentThread();
+            proxy.startSwitchBatch();
+            try {
+                for (OFMessage ofm : msglist) {
+                    
+                    try {
+                        currentMessageValid = decoded == null || decoded.isValid(ofm);
+                                            // Do the actual packet processing
+                        state.processOFMessage(this, ofm);
+
+                    }
+                    catch (Exception ex) {
+                        // We are the last handler in the stream, so run the
+                        // exception through the channel again by passing in
+                        // ctx.getChannel().
+                        Channels.fireExceptionCaught(ctx.getChannel(), ex);
+                    }
                 }
+            } finally {
+                // Flush all thread local queues etc. generated by this train
+                // of messages.
+                receiveThread = null;
+                proxy.endSwitchBatch();
+                flushMessages();
             }
-
-           
-            // Flush all thread local queues etc. generated by this train
-            // of messages.
             
         }
         else {
@@ -706,15 +766,96 @@ class OFControllerChannelHandler
         return null;
     }
 
+    /**
+     * hands a message from the controller to the proxy to be sliced
+     * and sent to the switch, unless its header was bad
+     * @param m
+     */
+    void forwardToSwitch(OFMessage m){
+        if(!currentMessageValid){
+            //invalid packet don't send it back so we cant send an error
+            //just log and drop it
+            log.info("Slice " + proxy.getSlicer().getSliceName() + " to switch " + proxy.getSlicer().getSwitchName() + "  Invalid Header Rejecting!");
+            return;
+        }
+        proxy.toSwitch(m, null);
+    }
+
     public void sendMessage(OFMessage m) throws IOException{
-    	log.debug("attempting to send message: " + m.toString());
+    	if(log.isDebugEnabled()){
+    		log.debug("attempting to send message: " + m.toString());
+    	}
     	if(channel != null && channel.isConnected()){
-    		channel.write(Collections.singletonList(m));
+    		pendingMessages.add(m);
+    		if(receiveThread != Thread.currentThread()){
+    			scheduleFlush();
+    		}
     	}else{
     		log.debug("Channel is not connected can not send message!!!");
     	}
     }
     
+    /**
+     * sends a group of messages to the controller in as few
+     * channel writes as possible
+     * @param msgs
+     * @throws IOException
+     */
+    public void sendMessages(List<OFMessage> msgs) throws IOException{
+    	if(channel != null && channel.isConnected()){
+    		pendingMessages.addAll(msgs);
+    		if(receiveThread != Thread.currentThread()){
+    			scheduleFlush();
+    		}
+    	}else{
+    		log.debug("Channel is not connected can not send messages!!!");
+    	}
+    }
+    
+    /**
+     * hands the pending messages to the flush executor instead of
+     * writing them on the sending thread.  The switch sends all of its
+     * packet ins from one thread, anything it queues before the flush
+     * runs goes out in the same write, and the switch thread never
+     * waits on the controller channel
+     */
+    private void scheduleFlush(){
+    	if(flushScheduled.compareAndSet(false, true)){
+    		try{
+    			flushExecutor.execute(flushTask);
+    		}catch(RejectedExecutionException e){
+    			flushScheduled.set(false);
+    			flushMessages();
+    		}
+    	}
+    }
+    
+    /**
+     * writes out the pending messages.  If another thread is
+     * already writing it picks up anything queued here before
+     * it lets go, so messages from a burst share a write
+     */
+    private void flushMessages(){
+    	while(!pendingMessages.isEmpty() && writingMessages.compareAndSet(false, true)){
+    		try{
+    			List<OFMessage> batch = new ArrayList<OFMessage>();
+    			OFMessage m;
+    			while((m = pendingMessages.poll()) != null){
+    				batch.add(m);
+    				if(batch.size() >= MAX_WRITE_BATCH){
+    					channel.write(batch);
+    					batch = new ArrayList<OFMessage>();
+    				}
+    			}
+    			if(!batch.isEmpty()){
+    				channel.write(batch);
+    			}
+    		}finally{
+    			writingMessages.set(false);
+    		}
+    	}
+    }
+    
     @SuppressWarnings("unused")
 	private void dispatchMessage(OFMessage m) throws IOException {
         // handleMessage will count
@@ -0,0 +1,107 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.factory.MessageParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * decodes the messages from a controller one openflow frame at a time.
+ * Each message is parsed from exactly the bytes its header claims, and
+ * if the parser does not use all of them the header length is wrong.
+ * Those messages are flagged on the returned list so the channel
+ * handler can drop them without having to serialize the message again.
+ * @author aragusa
+ *
+ */
+class OFFrameDecoder extends FrameDecoder {
+
+	private static final Logger log = LoggerFactory.getLogger(OFFrameDecoder.class);
+	private static final int LENGTH_OFFSET = 2;
+	
+	private final BasicFactory factory = BasicFactory.getInstance();
+	
+	/**
+	 * the messages decoded from one read, along with which of
+	 * them had a header length that did not match the message
+	 */
+	static class DecodedMessages extends ArrayList<OFMessage> {
+		private static final long serialVersionUID = 1L;
+		private Set<OFMessage> invalid;
+		
+		void add(OFMessage msg, boolean valid){
+			this.add(msg);
+			if(!valid){
+				if(this.invalid == null){
+					this.invalid = Collections.newSetFromMap(new IdentityHashMap<OFMessage, Boolean>());
+				}
+				this.invalid.add(msg);
+			}
+		}
+		
+		boolean isValid(OFMessage msg){
+			return this.invalid == null || !this.invalid.contains(msg);
+		}
+	}
+	
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+		if(!channel.isConnected()){
+			return null;
+		}
+		DecodedMessages messages = null;
+		while(buffer.readableBytes() >= OFMessage.MINIMUM_LENGTH){
+			int length = buffer.getUnsignedShort(buffer.readerIndex() + LENGTH_OFFSET);
+			if(length < OFMessage.MINIMUM_LENGTH){
+				//nothing after this can be framed
+				throw new MessageParseException("Invalid OpenFlow message length " + length);
+			}
+			if(buffer.readableBytes() < length){
+				break;
+			}
+			ChannelBuffer frame = buffer.readSlice(length);
+			if(messages == null){
+				messages = new DecodedMessages();
+			}
+			List<OFMessage> parsed;
+			try{
+				parsed = factory.parseMessage(frame);
+			}catch(Exception e){
+				//the header claims fewer bytes than the message needs
+				log.info("Unable to parse " + length + " byte message from controller, dropping it: " + e.getMessage());
+				continue;
+			}
+			if(parsed == null || parsed.isEmpty()){
+				continue;
+			}
+			messages.add(parsed.get(0), parsed.size() == 1 && !frame.readable());
+		}
+		return messages;
+	}
+}
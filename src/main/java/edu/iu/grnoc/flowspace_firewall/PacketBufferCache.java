@@ -0,0 +1,230 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * holds the packet data of the packet ins sent to a slice controller
+ * by buffer id, so a packet out for a buffer id can be sent with the
+ * packet data instead.  The cache is bounded by the total bytes it holds
+ * and by how long a buffer is kept, lookups never take a lock
+ *
+ * buffers are evicted in the order they were added (FIFO) or, with LRU,
+ * a buffer that was used since it was added gets a second chance and is
+ * moved to the back instead of being evicted
+ * @author aragusa
+ *
+ */
+public class PacketBufferCache {
+
+	public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+	public static final int DEFAULT_MAX_AGE = 10;
+	//rough heap cost of an entry on top of the packet data
+	private static final int ENTRY_OVERHEAD = 64;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	public enum EvictionPolicy {
+		FIFO, LRU
+	}
+
+	private static class Entry {
+		final int bufferId;
+		final byte[] data;
+		final long size;
+		final long added;
+		volatile boolean referenced;
+
+		Entry(int bufferId, byte[] data, long added){
+			this.bufferId = bufferId;
+			this.data = data;
+			this.size = data.length + ENTRY_OVERHEAD;
+			this.added = added;
+		}
+	}
+
+	private final ConcurrentHashMap<Integer, Entry> buffers = new ConcurrentHashMap<Integer, Entry>();
+	//entries in the order they are up for eviction, may hold replaced entries
+	private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	private final long maxBytes;
+	private final int maxAge;
+	private final long maxAgeNanos;
+	private final EvictionPolicy policy;
+
+	public PacketBufferCache(){
+		this(DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE, EvictionPolicy.FIFO);
+	}
+
+	/**
+	 * @param maxBytes most bytes of packet data to hold
+	 * @param maxAge seconds a buffer is kept
+	 * @param policy
+	 */
+	public PacketBufferCache(long maxBytes, int maxAge, EvictionPolicy policy){
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+		this.maxAgeNanos = maxAge * NANOS_PER_SECOND;
+		this.policy = policy;
+	}
+
+	/**
+	 * adds the packet data for a buffer id, evicting old buffers if needed
+	 * @param bufferId
+	 * @param data
+	 */
+	public void put(int bufferId, byte[] data){
+		if(data == null){
+			return;
+		}
+		Entry entry = new Entry(bufferId, data, System.nanoTime());
+		if(entry.size > this.maxBytes){
+			//would never fit
+			this.evictions.incrementAndGet();
+			return;
+		}
+		Entry replaced = this.buffers.put(bufferId, entry);
+		if(replaced != null){
+			this.bytes.addAndGet(-replaced.size);
+		}
+		this.bytes.addAndGet(entry.size);
+		this.order.add(entry);
+		this.evict(entry.added);
+	}
+
+	/**
+	 * returns the packet data for the buffer id or null if it is not cached
+	 * @param bufferId
+	 * @return byte[]
+	 */
+	public byte[] get(int bufferId){
+		Entry entry = this.buffers.get(bufferId);
+		if(entry == null){
+			this.misses.incrementAndGet();
+			return null;
+		}
+		if(System.nanoTime() - entry.added > this.maxAgeNanos){
+			if(this.buffers.remove(bufferId, entry)){
+				this.bytes.addAndGet(-entry.size);
+				this.expirations.incrementAndGet();
+			}
+			this.misses.incrementAndGet();
+			return null;
+		}
+		if(!entry.referenced){
+			entry.referenced = true;
+		}
+		this.hits.incrementAndGet();
+		return entry.data;
+	}
+
+	/**
+	 * removes buffers from the head of the order until the cache is
+	 * back under its byte budget and the head has not aged out
+	 */
+	private void evict(long now){
+		synchronized(this.order){
+			Entry head;
+			while((head = this.order.peek()) != null){
+				if(this.buffers.get(head.bufferId) != head){
+					//already removed or replaced
+					this.order.poll();
+					continue;
+				}
+				boolean aged = now - head.added > this.maxAgeNanos;
+				if(!aged && this.bytes.get() <= this.maxBytes){
+					return;
+				}
+				this.order.poll();
+				if(!aged && this.policy == EvictionPolicy.LRU && head.referenced){
+					head.referenced = false;
+					this.order.add(head);
+					continue;
+				}
+				if(this.buffers.remove(head.bufferId, head)){
+					this.bytes.addAndGet(-head.size);
+					if(aged){
+						this.expirations.incrementAndGet();
+					}else{
+						this.evictions.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	public int size(){
+		return this.buffers.size();
+	}
+
+	public long getBytes(){
+		return this.bytes.get();
+	}
+
+	public long getHits(){
+		return this.hits.get();
+	}
+
+	public long getMisses(){
+		return this.misses.get();
+	}
+
+	public long getEvictions(){
+		return this.evictions.get();
+	}
+
+	public long getExpirations(){
+		return this.expirations.get();
+	}
+
+	public long getMaxBytes(){
+		return this.maxBytes;
+	}
+
+	public int getMaxAge(){
+		return this.maxAge;
+	}
+
+	public EvictionPolicy getPolicy(){
+		return this.policy;
+	}
+
+	/**
+	 * returns the cache counters for the status api
+	 * @return HashMap of counter name to value
+	 */
+	public HashMap<String, Object> getStats(){
+		HashMap<String, Object> stats = new HashMap<String, Object>();
+		stats.put("buffers", this.size());
+		stats.put("bytes", this.getBytes());
+		stats.put("max_bytes", this.maxBytes);
+		stats.put("max_age", this.maxAge);
+		stats.put("policy", this.policy.toString().toLowerCase());
+		stats.put("hits", this.getHits());
+		stats.put("misses", this.getMisses());
+		stats.put("evictions", this.getEvictions());
+		stats.put("expirations", this.getExpirations());
+		return stats;
+	}
+}
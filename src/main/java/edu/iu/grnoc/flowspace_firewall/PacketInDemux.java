@@ -0,0 +1,178 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+
+import org.openflow.protocol.OFPacketIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps an (in_port, vlan) pair from a packet in to the proxies
+ * whose slice owns that flowspace on a single switch.  Built from
+ * the PortConfig/VLANRange of every slicer on the switch so a
+ * packet in only has to be looked at once instead of once per slice.
+ *
+ * The index is immutable, when ports or slices change a new one is built
+ * @author aragusa
+ *
+ */
+public class PacketInDemux {
+
+	private static final Logger log = LoggerFactory.getLogger(PacketInDemux.class);
+
+	private static final int ETHERTYPE_OFFSET = 12;
+	private static final int VLAN_TCI_OFFSET = 14;
+	private static final int ETHERTYPE_8021Q = 0x8100;
+
+	//sorted port ids
+	private final short[] ports;
+	//sorted vlan ids for each port
+	private final short[][] vlans;
+	//proxies owning each port/vlan pair
+	private final Proxy[][][] owners;
+
+	public PacketInDemux(IOFSwitch sw, List<Proxy> proxies){
+		TreeMap<Short, TreeMap<Short, List<Proxy>>> index = new TreeMap<Short, TreeMap<Short, List<Proxy>>>();
+
+		if(proxies != null){
+			for(Proxy p : proxies){
+				Slicer slicer = p.getSlicer();
+				for(ImmutablePort port : sw.getPorts()){
+					PortConfig pConfig = slicer.getPortConfig(port.getName());
+					if(pConfig == null){
+						continue;
+					}
+					TreeMap<Short, List<Proxy>> portVlans = index.get(port.getPortNumber());
+					if(portVlans == null){
+						portVlans = new TreeMap<Short, List<Proxy>>();
+						index.put(port.getPortNumber(), portVlans);
+					}
+					for(Short vlan : pConfig.getVlanRange().getAvailableTags()){
+						List<Proxy> vlanOwners = portVlans.get(vlan);
+						if(vlanOwners == null){
+							vlanOwners = new ArrayList<Proxy>(1);
+							portVlans.put(vlan, vlanOwners);
+						}
+						if(!vlanOwners.contains(p)){
+							vlanOwners.add(p);
+						}
+					}
+				}
+			}
+		}
+
+		//single owner arrays are shared so a slice with thousands of
+		//vlans does not cost an array per vlan
+		Map<Proxy, Proxy[]> singles = new HashMap<Proxy, Proxy[]>();
+
+		this.ports = new short[index.size()];
+		this.vlans = new short[index.size()][];
+		this.owners = new Proxy[index.size()][][];
+		int i = 0;
+		for(Map.Entry<Short, TreeMap<Short, List<Proxy>>> portEntry : index.entrySet()){
+			TreeMap<Short, List<Proxy>> portVlans = portEntry.getValue();
+			this.ports[i] = portEntry.getKey();
+			this.vlans[i] = new short[portVlans.size()];
+			this.owners[i] = new Proxy[portVlans.size()][];
+			int j = 0;
+			for(Map.Entry<Short, List<Proxy>> vlanEntry : portVlans.entrySet()){
+				List<Proxy> vlanOwners = vlanEntry.getValue();
+				this.vlans[i][j] = vlanEntry.getKey();
+				if(vlanOwners.size() == 1){
+					Proxy p = vlanOwners.get(0);
+					Proxy[] single = singles.get(p);
+					if(single == null){
+						single = new Proxy[]{p};
+						singles.put(p, single);
+					}
+					this.owners[i][j] = single;
+				}else{
+					log.warn("Switch: " + sw.getStringId() + " port " + portEntry.getKey() + " vlan " + vlanEntry.getKey() + " is part of " + vlanOwners.size() + " slices");
+					this.owners[i][j] = vlanOwners.toArray(new Proxy[vlanOwners.size()]);
+				}
+				j++;
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * returns the proxies whose slice owns the port/vlan the packet in
+	 * arrived on, or null if the packet does not belong to any slice
+	 * @param pcktIn
+	 * @return Proxy[] the owning proxies (usually only one)
+	 */
+
+	public Proxy[] getProxies(OFPacketIn pcktIn){
+		return getProxies(pcktIn.getInPort(), getVlan(pcktIn.getPacketData()));
+	}
+
+	/**
+	 * returns the proxies whose slice owns the given port/vlan pair
+	 * or null if no slice does
+	 * @param inPort
+	 * @param vlan (-1 for untagged)
+	 * @return Proxy[]
+	 */
+
+	public Proxy[] getProxies(short inPort, short vlan){
+		//vlan 0 is never part of a slice
+		if(vlan == 0){
+			return null;
+		}
+		int portIdx = Arrays.binarySearch(this.ports, inPort);
+		if(portIdx < 0){
+			return null;
+		}
+		int vlanIdx = Arrays.binarySearch(this.vlans[portIdx], vlan);
+		if(vlanIdx < 0){
+			return null;
+		}
+		return this.owners[portIdx][vlanIdx];
+	}
+
+	/**
+	 * reads the vlan id straight out of the ethernet header
+	 * returns -1 for untagged packets and 0 (never allowed) when the
+	 * packet is too short to have an ethernet header
+	 * @param data the raw packet
+	 * @return vlan id
+	 */
+
+	public static short getVlan(byte[] data){
+		if(data == null || data.length < VLAN_TCI_OFFSET){
+			return 0;
+		}
+		int etherType = ((data[ETHERTYPE_OFFSET] & 0xff) << 8) | (data[ETHERTYPE_OFFSET + 1] & 0xff);
+		if(etherType != ETHERTYPE_8021Q){
+			return VLANRange.UNTAGGED;
+		}
+		if(data.length < VLAN_TCI_OFFSET + 2){
+			return 0;
+		}
+		return (short)(((data[VLAN_TCI_OFFSET] & 0x0f) << 8) | (data[VLAN_TCI_OFFSET + 1] & 0xff));
+	}
+}
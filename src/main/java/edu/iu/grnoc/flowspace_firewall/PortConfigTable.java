@@ -0,0 +1,127 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import java.util.Collection;
+import java.util.Map;
+
+import net.floodlightcontroller.core.ImmutablePort;
+
+/**
+ * immutable openflow port id to PortConfig table
+ * uses open addressing on the primitive port id so a lookup
+ * never boxes the id or touches the port names
+ * @author aragusa
+ *
+ */
+final class PortConfigTable {
+
+	public static final PortConfigTable EMPTY = new PortConfigTable(new short[1], new PortConfig[1]);
+
+	private final short[] keys;
+	private final PortConfig[] values;
+	private final int mask;
+
+	private PortConfigTable(short[] keys, PortConfig[] values){
+		this.keys = keys;
+		this.values = values;
+		this.mask = keys.length - 1;
+	}
+
+	/**
+	 * builds a table of the ports on the switch that have a
+	 * configuration in this slice
+	 * @param ports the ports currently on the switch
+	 * @param portList the port name to PortConfig map of the slice
+	 * @return PortConfigTable
+	 */
+	public static PortConfigTable build(Collection<ImmutablePort> ports, Map<String, PortConfig> portList){
+		if(ports == null || ports.isEmpty()){
+			return EMPTY;
+		}
+		int capacity = 2;
+		while(capacity < ports.size() * 2){
+			capacity <<= 1;
+		}
+		PortConfigTable table = new PortConfigTable(new short[capacity], new PortConfig[capacity]);
+		for(ImmutablePort port : ports){
+			PortConfig ptCfg = portList.get(port.getName());
+			if(ptCfg != null){
+				table.insert(port.getPortNumber(), ptCfg);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * returns a copy of this table with portId pointing at ptCfg
+	 * @param portId
+	 * @param ptCfg
+	 * @return PortConfigTable
+	 */
+	public PortConfigTable with(short portId, PortConfig ptCfg){
+		int size = 1;
+		for(PortConfig value : this.values){
+			if(value != null){
+				size++;
+			}
+		}
+		int capacity = 2;
+		while(capacity < size * 2){
+			capacity <<= 1;
+		}
+		PortConfigTable table = new PortConfigTable(new short[capacity], new PortConfig[capacity]);
+		for(int i=0; i < this.values.length; i++){
+			if(this.values[i] != null && this.keys[i] != portId){
+				table.insert(this.keys[i], this.values[i]);
+			}
+		}
+		table.insert(portId, ptCfg);
+		return table;
+	}
+
+	private void insert(short portId, PortConfig ptCfg){
+		int i = hash(portId) & mask;
+		while(values[i] != null && keys[i] != portId){
+			i = (i + 1) & mask;
+		}
+		keys[i] = portId;
+		values[i] = ptCfg;
+	}
+
+	/**
+	 * returns the PortConfig for the port id or null
+	 * if the port is not part of the slice
+	 * @param portId
+	 * @return PortConfig
+	 */
+	public PortConfig get(short portId){
+		int i = hash(portId) & mask;
+		PortConfig value;
+		while((value = values[i]) != null){
+			if(keys[i] == portId){
+				return value;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	private static int hash(short portId){
+		int h = (portId & 0xffff) * 0x9E3779B1;
+		return h ^ (h >>> 16);
+	}
+}
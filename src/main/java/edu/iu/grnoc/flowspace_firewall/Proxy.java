@@ -18,7 +18,6 @@ package edu.iu.grnoc.flowspace_firewall;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.Iterator;
@@ -80,7 +79,16 @@ public class Proxy {
 	private Integer flowCount;
 	private Boolean adminStatus;
 	private RateTracker packetInRate;
-	private List<FlowTimeout> timeouts;
+	private FlowTimeoutQueue timeouts;
+	private volatile FlowAuditLog auditLog;
+	
+	//messages bound for the switch collected while the controller
+	//channel works through one batch of messages
+	private static final int MAX_SWITCH_BATCH = 1000;
+	private static final long MAX_SWITCH_BATCH_NANOS = 10000000L;
+	private final List<OFMessage> switchBatch = new ArrayList<OFMessage>();
+	private Thread switchBatchThread;
+	private long switchBatchStarted;
 		
 	public Proxy(IOFSwitch switchImp, Slicer slicer, FlowSpaceFirewall fsf){
 		mySlicer = slicer;
@@ -88,10 +96,10 @@ public class Proxy {
 		mySlicer.setSwitch(mySwitch);
 		parent = fsf;
 		flowCount = 0;
-		xidMap = new XidMap();
+		xidMap = new XidMap(slicer.getMaxXids());
 		adminStatus = mySlicer.getAdminState();
 		packetInRate = new RateTracker(10000,slicer.getPacketInRate());
-		timeouts = Collections.synchronizedList( new ArrayList<FlowTimeout>());
+		timeouts = new FlowTimeoutQueue();
 		
 	}
 	
@@ -118,8 +126,16 @@ public class Proxy {
 		return this.packetInRate.getRate();
 	}
 	
+	public void setAuditLog(FlowAuditLog auditLog){
+		this.auditLog = auditLog;
+	}
+	
 	public List<FlowTimeout> getTimeouts(){
-		return this.timeouts;
+		return this.timeouts.getTimeouts();
+	}
+	
+	public List<FlowTimeout> getIdleTimeouts(){
+		return this.timeouts.getIdleTimeouts();
 	}
 	
 	public void removeFlows(){
@@ -146,11 +162,7 @@ public class Proxy {
 			deletes.add(flow);
 			this.flowCount = this.flowCount - 1;
 		}
-		try {
-			this.mySwitch.write(deletes, null);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		this.writeToSwitch(deletes, null);
 		
 	}
 	
@@ -249,6 +261,7 @@ public class Proxy {
 		this.mySlicer = newSlicer;
 		this.mySlicer.setSwitch(this.mySwitch);
 		this.packetInRate.setRate(this.getSlicer().getPacketInRate());
+		this.xidMap.setMaxSize(this.getSlicer().getMaxXids());
 	}
 	
 	/**
@@ -317,20 +330,28 @@ public class Proxy {
 	
 	public void checkExpiredFlows(){
 		log.debug("Checking for expired flows");
-		Iterator<FlowTimeout> it = this.timeouts.iterator();
-		while(it.hasNext()){
-			FlowTimeout timeout = it.next();
-			if(timeout.isExpired()){
-				log.debug("Removing Flow that has timed out");
-				it.remove();
-				OFFlowMod flow = timeout.getFlow();
-				flow.setOutPort(OFPort.OFPP_NONE);
-				flow.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
-				flow.setHardTimeout((short)0);
-				flow.setIdleTimeout((short)0);
-				flow.setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM);
-				this.toSwitch((OFMessage) flow,  timeout.getContext());				
-			}
+		this.removeTimedOutFlows(this.timeouts.pollExpired(System.nanoTime()));
+	}
+	
+	/*
+	 * hard timeouts do not need the flow stats
+	 * so these are checked between stats polls
+	 */
+	
+	public void checkHardTimeouts(){
+		this.removeTimedOutFlows(this.timeouts.pollExpiredHard(System.nanoTime()));
+	}
+	
+	private void removeTimedOutFlows(List<FlowTimeout> expired){
+		for(FlowTimeout timeout : expired){
+			log.debug("Removing Flow that has timed out");
+			OFFlowMod flow = timeout.getFlow();
+			flow.setOutPort(OFPort.OFPP_NONE);
+			flow.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+			flow.setHardTimeout((short)0);
+			flow.setIdleTimeout((short)0);
+			flow.setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM);
+			this.toSwitch((OFMessage) flow,  timeout.getContext());
 		}
 	}
 	
@@ -340,6 +361,7 @@ public class Proxy {
 		OFFlowMod tmpFlow = (OFFlowMod)msg;
 		if(tmpFlow.getCommand() == OFFlowMod.OFPFC_DELETE && tmpFlow.getMatch().equals(new OFMatch())){
 			//this is a delete all flow path
+			this.audit(tmpFlow, FlowAuditLog.Verdict.ACCEPT, FlowAuditLog.Reason.DELETE_ALL, 0);
 			this.removeFlows();
 			return;
 		}
@@ -347,25 +369,35 @@ public class Proxy {
 		if(this.mySlicer.getTagManagement()){
 			flows = this.mySlicer.managedFlows(tmpFlow);
 			if(flows.size() ==0){
-				log.warn("Slice: " + this.mySlicer.getSliceName() + ":" + this.getSlicer().getSwitchName() + " denied flow: " + ((OFFlowMod)msg).toString());
+				if(log.isDebugEnabled()){
+					log.debug("Slice: " + this.mySlicer.getSliceName() + ":" + this.getSlicer().getSwitchName() + " denied flow: " + ((OFFlowMod)msg).toString());
+				}
+				this.audit(tmpFlow, FlowAuditLog.Verdict.DENY, FlowAuditLog.Reason.NOT_IN_SLICE, 0);
 				OFError error = new OFError(OFError.OFErrorType.OFPET_BAD_REQUEST);
 				error.setErrorCode(OFBadRequestCode.OFPBRC_EPERM);
 				this.sendError((OFMessage)msg,error );
 				return;
 			}else{
-				log.info("Slice: " + this.mySlicer.getSliceName() + ":" + this.getSlicer().getSwitchName() + " Sent Flow: " + ((OFFlowMod)msg).toString());
+				if(log.isDebugEnabled()){
+					log.debug("Slice: " + this.mySlicer.getSliceName() + ":" + this.getSlicer().getSwitchName() + " Sent Flow: " + ((OFFlowMod)msg).toString());
+				}
 			}
 		}else{
 			flows = this.mySlicer.allowedFlows(tmpFlow);
 			if(flows.size() == 0){
 				//really we need to send a perm error
-				log.warn("Slice: " + this.mySlicer.getSliceName() + ":" + this.getSlicer().getSwitchName() + " denied flow: " + ((OFFlowMod)msg).toString());
+				if(log.isDebugEnabled()){
+					log.debug("Slice: " + this.mySlicer.getSliceName() + ":" + this.getSlicer().getSwitchName() + " denied flow: " + ((OFFlowMod)msg).toString());
+				}
+				this.audit(tmpFlow, FlowAuditLog.Verdict.DENY, FlowAuditLog.Reason.NOT_IN_SLICE, 0);
 				OFError error = new OFError(OFError.OFErrorType.OFPET_BAD_REQUEST);
 				error.setErrorCode(OFBadRequestCode.OFPBRC_EPERM);
 				this.sendError((OFMessage)msg,error);
 				return;
 			}else{
-				log.info("Slice: " + this.mySlicer.getSliceName() + ":" + this.getSlicer().getSwitchName() + " Sent Flow: " + ((OFFlowMod)msg).toString());
+				if(log.isDebugEnabled()){
+					log.debug("Slice: " + this.mySlicer.getSliceName() + ":" + this.getSlicer().getSwitchName() + " Sent Flow: " + ((OFFlowMod)msg).toString());
+				}
 			}
 		}
 		
@@ -386,7 +418,8 @@ public class Proxy {
 			case OFFlowMod.OFPFC_ADD:
 
 				if( this.mySlicer.isGreaterThanMaxFlows(this.flowCount + 1) ) {
-					log.warn("Switch: "+this.getSlicer().getSwitchName()+" Slice: "+this.mySlicer.getSliceName()+" Flow count is already at threshold. Skipping flow mod");
+					log.debug("Switch: "+this.getSlicer().getSwitchName()+" Slice: "+this.mySlicer.getSliceName()+" Flow count is already at threshold. Skipping flow mod");
+					this.audit(tmpFlow, FlowAuditLog.Verdict.DENY, FlowAuditLog.Reason.FLOW_LIMIT, 0);
 					OFError error = new OFError(OFError.OFErrorType.OFPET_FLOW_MOD_FAILED);
 					error.setErrorCode(OFError.OFFlowModFailedCode.OFPFMFC_ALL_TABLES_FULL);
 					this.sendError((OFMessage)msg, error);
@@ -413,7 +446,8 @@ public class Proxy {
 			case OFFlowMod.OFPFF_CHECK_OVERLAP:
 
 				if( this.mySlicer.isGreaterThanMaxFlows(this.flowCount + 1) ) {
-					log.warn("Switch: "+this.getSlicer().getSwitchName()+" Slice: "+this.mySlicer.getSliceName()+"Flow count is already at threshold. Skipping flow mod");
+					log.debug("Switch: "+this.getSlicer().getSwitchName()+" Slice: "+this.mySlicer.getSliceName()+" Flow count is already at threshold. Skipping flow mod");
+					this.audit(tmpFlow, FlowAuditLog.Verdict.DENY, FlowAuditLog.Reason.FLOW_LIMIT, 0);
 					OFError error = new OFError(OFError.OFErrorType.OFPET_FLOW_MOD_FAILED);
 					error.setErrorCode(OFError.OFFlowModFailedCode.OFPFMFC_ALL_TABLES_FULL);
 					this.sendError((OFMessage)msg,error);
@@ -448,14 +482,22 @@ public class Proxy {
 			}
 			messages.add((OFMessage) flow);
 		}
-		log.error("Sending messages: " + messages.toString());		
+		if(log.isDebugEnabled()){
+			log.debug("Sending messages: " + messages.toString());
+		}
+		this.audit(tmpFlow, FlowAuditLog.Verdict.ACCEPT, FlowAuditLog.Reason.ALLOWED, messages.size());
 		mapXids(messages);
-		try {
-			mySwitch.write(messages, cntx);
-		} catch (IOException e) {
-			e.printStackTrace();
+		this.writeToSwitch(messages, cntx);
+	}
+	
+	/**
+	 * records the decision on a flow mod in the audit log, if there is one
+	 */
+	private void audit(OFFlowMod flow, FlowAuditLog.Verdict verdict, FlowAuditLog.Reason reason, int flows){
+		FlowAuditLog auditLog = this.auditLog;
+		if(auditLog != null){
+			auditLog.record(this.mySwitch.getId(), this.mySlicer.getSliceName(), flow, verdict, reason, flows);
 		}
-		mySwitch.flush();
 	}
 	
 	private void handleStatsRequest(OFMessage msg){
@@ -675,6 +717,7 @@ public class Proxy {
 		int counter = 0;
 		Iterator <OFStatistics> it2 = results.iterator();				
 		List<OFFlowStatisticsReply> limitedResults = new ArrayList<OFFlowStatisticsReply>();
+		List<OFMessage> replies = new ArrayList<OFMessage>();
 		
 		while(it2.hasNext()){
 			//TODO: implement the filter capabilities of FLowStats Request
@@ -738,11 +781,7 @@ public class Proxy {
 				
 				length += reply.getLength();
 				reply.setLength(length);
-				try {
-					ofcch.sendMessage(reply);
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
+				replies.add(reply);
 				
 				counter = 0;
 				length = 0;
@@ -750,6 +789,12 @@ public class Proxy {
 			}	
 		}
 		
+		try {
+			ofcch.sendMessages(replies);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		
 	}
 	
 	/**
@@ -787,12 +832,7 @@ public class Proxy {
 					}else{
 						log.debug("PacketOut is allowed");
 						mapXids(allowed);
-						try {
-							mySwitch.write(allowed, cntx);
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-						mySwitch.flush();
+						this.writeToSwitch(allowed, cntx);
 					}
 				}else{
 					List<OFMessage> allowed = this.mySlicer.allowedPacketOut((OFPacketOut)msg);
@@ -806,12 +846,7 @@ public class Proxy {
 					}else{
 						log.debug("PacketOut is allowed");
 						mapXids(allowed);
-						try {
-							mySwitch.write(allowed, cntx);
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-						mySwitch.flush();
+						this.writeToSwitch(allowed, cntx);
 					}
 				}
 				return;
@@ -836,24 +871,103 @@ public class Proxy {
 		
 		mapXids(msg);
 
-		if(!this.valid_header(msg)){
-			//invalid packet don't send it back so we cant send an error
-			//just log and drop it
-			log.info("Slice " + this.getSlicer().getSliceName() + " to switch " + this.mySlicer.getSwitchName() + "  Invalid Header Rejecting!");
+		//the header length was already checked against the frame
+		//when the message was decoded, see OFFrameDecoder
+		this.writeToSwitch(msg, cntx);
+		
+	}
+	
+	/**
+	 * called by the controller channel before it processes a batch
+	 * of messages, anything sent to the switch from this thread until
+	 * endSwitchBatch is written as one list with a single flush
+	 */
+	public void startSwitchBatch(){
+		synchronized(this.switchBatch){
+			this.switchBatchThread = Thread.currentThread();
+			this.switchBatchStarted = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * writes out everything collected since startSwitchBatch
+	 */
+	public void endSwitchBatch(){
+		synchronized(this.switchBatch){
+			this.switchBatchThread = null;
+			this.flushSwitchBatch();
+		}
+	}
+	
+	/**
+	 * must hold the switchBatch lock
+	 */
+	private void flushSwitchBatch(){
+		if(this.switchBatch.isEmpty()){
 			return;
 		}
-		
+		List<OFMessage> batch = new ArrayList<OFMessage>(this.switchBatch);
+		this.switchBatch.clear();
+		this.switchBatchStarted = System.nanoTime();
 		try {
-			mySwitch.write(msg, cntx);
+			mySwitch.write(batch, null);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		mySwitch.flush();
-		
 	}
 	
 	/**
-	 * 
+	 * returns true if the messages were added to the current batch
+	 * otherwise any pending batch has been written out ahead of them
+	 * so the switch still sees everything in order
+	 * must hold the switchBatch lock
+	 */
+	private boolean addToSwitchBatch(List<OFMessage> msgs, FloodlightContext cntx){
+		if(cntx != null || this.switchBatchThread != Thread.currentThread()){
+			this.flushSwitchBatch();
+			return false;
+		}
+		this.switchBatch.addAll(msgs);
+		if(this.switchBatch.size() >= MAX_SWITCH_BATCH 
+				|| System.nanoTime() - this.switchBatchStarted >= MAX_SWITCH_BATCH_NANOS){
+			this.flushSwitchBatch();
+		}
+		return true;
+	}
+	
+	private void writeToSwitch(List<OFMessage> msgs, FloodlightContext cntx){
+		synchronized(this.switchBatch){
+			if(this.addToSwitchBatch(msgs, cntx)){
+				return;
+			}
+			try {
+				mySwitch.write(msgs, cntx);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mySwitch.flush();
+		}
+	}
+	
+	private void writeToSwitch(OFMessage msg, FloodlightContext cntx){
+		synchronized(this.switchBatch){
+			if(this.addToSwitchBatch(Collections.singletonList(msg), cntx)){
+				return;
+			}
+			try {
+				mySwitch.write(msg, cntx);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mySwitch.flush();
+		}
+	}
+	
+	/**
+	 * checks that a message serializes to the length in its header.
+	 * messages from the controller are already checked against their
+	 * frame by OFFrameDecoder so this is not needed on that path
 	 */
 	
 	public boolean valid_header(OFMessage msg){
@@ -871,6 +985,65 @@ public class Proxy {
 		return true;
 	}
 	
+	/**
+	 * sends a packet in that the PacketInDemux has already matched to
+	 * this slice, so there is no need to check the policy again
+	 * @param pcktIn
+	 * @param cntx
+	 */
+	public void packetInToController(OFPacketIn pcktIn, FloodlightContext cntx){
+		if(ofcch == null){
+			return;
+		}
+		
+		if(!this.processPacketIn(pcktIn)){
+			return;
+		}
+		
+		try {
+			ofcch.sendMessage(pcktIn);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * applies the packet in rate limit, records the buffer id and 
+	 * strips the vlan tag in managed tag mode
+	 * @param pcktIn
+	 * @return true if the packet in should be sent to the controller
+	 */
+	private boolean processPacketIn(OFPacketIn pcktIn){
+		if(this.packetInRate.okToProcess()){
+			//add the packet buffer id to our buffer id list
+			this.mySlicer.addBufferId(pcktIn.getBufferId(), pcktIn.getPacketData());
+			//we add the packet with the vlan id on it but send a modified packet in to the controller
+			//without the vlan tag
+			if(this.mySlicer.getTagManagement()){
+				log.debug("Processing Packet in for Managed Tag mode");
+				Ethernet newPkt = new Ethernet();
+				byte[] pktData = pcktIn.getPacketData();
+				newPkt.deserialize(pktData,0,pktData.length);
+				newPkt.setEtherType(newPkt.getEtherType());
+				newPkt.setVlanID(Ethernet.VLAN_UNTAGGED);
+				
+				//Set the packet data based on the length of the serialize function's returned
+				//value.  Do it this way because serialize() might remove a number of padding bytes,
+				//so we cannot just assume the number of bytes removed will be 4.
+				byte[] newPktData = newPkt.serialize();
+				pcktIn.setPacketData(newPktData);
+				pcktIn.setTotalLength((short) newPktData.length);
+			}
+			return true;
+		}else{
+			log.warn("Packet in Rate for Slice: " +
+						this.getSlicer().getSliceName() + ":" + this.getSlicer().getSwitchName() +
+						" has passed the packet in rate limit Disabling slice!!!!");
+			this.setAdminStatus(false);
+			return false;
+		}
+	}
+	
 	/**
 	 * handle messages from the switch and verify they should be a part of this slice
 	 * if not just return
@@ -902,34 +1075,10 @@ public class Proxy {
 				return;
 			}
 			
-			if(this.packetInRate.okToProcess()){
-				//add the packet buffer id to our buffer id list
-				this.mySlicer.addBufferId(pcktIn.getBufferId(), pcktIn.getPacketData());
-				//we add the packet with the vlan id on it but send a modified packet in to the controller
-				//without the vlan tag
-				if(this.mySlicer.getTagManagement()){
-					log.debug("Processing Packet in for Managed Tag mode");
-					Ethernet newPkt = new Ethernet();
-					byte[] pktData = pcktIn.getPacketData();
-					newPkt.deserialize(pktData,0,pktData.length);
-					newPkt.setEtherType(newPkt.getEtherType());
-					newPkt.setVlanID(Ethernet.VLAN_UNTAGGED);
-					
-					//Set the packet data based on the length of the serialize function's returned
-					//value.  Do it this way because serialize() might remove a number of padding bytes,
-					//so we cannot just assume the number of bytes removed will be 4.
-					byte[] newPktData = newPkt.serialize();
-					pcktIn.setPacketData(newPktData);
-					pcktIn.setTotalLength((short) newPktData.length);
-				}
-				break;
-			}else{
-				log.warn("Packet in Rate for Slice: " +
-							this.getSlicer().getSliceName() + ":" + this.getSlicer().getSwitchName() +
-							" has passed the packet in rate limit Disabling slice!!!!");
-				this.setAdminStatus(false);
+			if(!this.processPacketIn(pcktIn)){
 				return;
 			}
+			break;
 			
 		case PORT_STATUS:
 			//only send port status messages
@@ -947,18 +1096,17 @@ public class Proxy {
 				this.mySlicer.setPortId(port.getName(), port.getPortNumber());
 				break;
 			case OFPPR_MODIFY:
-				//nothing to do here
+				this.mySlicer.refreshPorts();
 				break;
 			case OFPPR_DELETE:
-				//nothing to do here
+				this.mySlicer.refreshPorts();
 				break;
 			}
 			
 			break;
 		case ERROR:
 			if(xidMap.containsKey(xid)){
-				msg.setXid(xidMap.get(xid));
-				xidMap.remove(xid);
+				msg.setXid(xidMap.remove(xid));
 				OFError error = (OFError) msg;
 				OFMessage error_msg = null;
 				try{
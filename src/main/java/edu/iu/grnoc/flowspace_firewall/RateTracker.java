@@ -15,81 +15,138 @@
 */
 package edu.iu.grnoc.flowspace_firewall;
 
-import org.apache.commons.collections4.queue.CircularFifoQueue;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Tracks and limits the rate of events (messages from a controller,
+ * packet ins to a controller).  Admission is a token bucket kept as a
+ * single theoretical arrival time (GCRA) so it needs no lock and no
+ * allocation per event.  The measured rate of accepted events is kept
+ * in a window for the status API.
+ */
 public class RateTracker {
 
-	private CircularFifoQueue<Date> myFifo;
-	private int myRate;
-	private static final Logger log = LoggerFactory.getLogger(Proxy.class);
+	//how long the measured rate window is
+	private static final long RATE_WINDOW_NANOS = 5000000000L;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	
+	private volatile int myRate;
+	private volatile int myBurst;
+	//time between events at the max rate
+	private volatile long interval;
+	//how far ahead of now the arrival time may run (the burst)
+	private volatile long tolerance;
+	//the rate is too high to enforce a nanosecond at a time
+	private volatile boolean unlimited;
+	private final AtomicLong theoreticalArrival;
 	
+	private final AtomicLong windowStart;
+	private final AtomicLong windowCount;
+	private volatile double lastRate;
+	
+	/**
+	 * creates a new RateTracker
+	 * @param size the number of events the rate is measured over before it
+	 * is enforced, a tenth of this is allowed as a burst
+	 * @param rate the max number of events per second
+	 */
 	public RateTracker(int size, int rate){
-		myRate = rate;
-		myFifo = new CircularFifoQueue<Date>(size);
+		long now = System.nanoTime();
+		this.theoreticalArrival = new AtomicLong(now);
+		this.windowStart = new AtomicLong(now);
+		this.windowCount = new AtomicLong(0);
+		this.lastRate = 0;
+		this.myRate = rate;
+		this.myBurst = Math.max(1, size / 10);
+		this.updateInterval();
 	}
 	
-	public synchronized boolean okToProcess(){
-		log.debug("checking on the rate for this slice");
-		Date now = new Date();
-		if(this.getRate(now) < myRate){
-			log.debug("rate was ok, allowing, and updating");
-			myFifo.add(now);
-			return true;
+	private void updateInterval(){
+		if(this.myRate > 0){
+			//rates over one event per nanosecond (Integer.MAX_VALUE is
+			//used for no limit) would round the interval down to 0
+			this.interval = Math.max(1, NANOS_PER_SECOND / this.myRate);
 		}else{
-			log.debug("rate is over, not allowing");
-			return false;
+			this.interval = 0;
 		}
+		this.unlimited = this.myRate >= NANOS_PER_SECOND;
+		this.tolerance = (this.myBurst - 1) * this.interval;
 	}
 	
-	
-	public double getRate(){
-		return get_rate_helper(null);
-	}
-	
-	public double getRate(Date now){
-		return get_rate_helper(now);
+	public boolean okToProcess(){
+		if(this.unlimited){
+			this.accepted(System.nanoTime());
+			return true;
+		}
+		long step = this.interval;
+		if(step <= 0){
+			//a rate of 0 allows nothing
+			return false;
+		}
+		long limit = this.tolerance;
+		long now = System.nanoTime();
+		while(true){
+			long tat = this.theoreticalArrival.get();
+			long start = (tat - now > 0) ? tat : now;
+			if(start - now > limit){
+				return false;
+			}
+			if(this.theoreticalArrival.compareAndSet(tat, start + step)){
+				this.accepted(now);
+				return true;
+			}
+		}
 	}
 	
-	
-	public CircularFifoQueue<Date> getFifo(){
-		return this.myFifo;
+	/**
+	 * counts an accepted event and rolls the rate window
+	 * over when it is full
+	 */
+	private void accepted(long now){
+		this.windowCount.incrementAndGet();
+		long start = this.windowStart.get();
+		long elapsed = now - start;
+		if(elapsed >= RATE_WINDOW_NANOS && this.windowStart.compareAndSet(start, now)){
+			long count = this.windowCount.getAndSet(0);
+			this.lastRate = count / (elapsed / (double)NANOS_PER_SECOND);
+		}
 	}
 	
-	private synchronized double get_rate_helper(Date now){
-		if(myFifo.size() <= myFifo.maxSize() / 10){
-			log.debug("circular queue is too small, returning 0");
-			return 0;
-		}
-		log.debug("calculating current rate");
-		
-		long end;
-		if(now == null){
-			end = myFifo.get(myFifo.size()-1).getTime();
-		}else{
-			end = now.getTime();
-		}
-		
-		long start = myFifo.get(0).getTime();
-		//log.error("#packets = " + myFifo.size() + " / end = " + end + " start = " + start);
-
-		if(end - start <= 0){
-			//this means that our entire circular queue has the same ms
-			//so that means our packet rate is fifo size * 1000
-			return myFifo.size() * 1000;
+	/**
+	 * returns the measured rate of accepted events per second
+	 * @return rate
+	 */
+	public double getRate(){
+		long elapsed = System.nanoTime() - this.windowStart.get();
+		if(elapsed >= RATE_WINDOW_NANOS){
+			//nothing has rolled the window in a while so the
+			//current window is more accurate than the last one
+			return this.windowCount.get() / (elapsed / (double)NANOS_PER_SECOND);
 		}
-		return (myFifo.size() / ((end - start) / 1000.0));
+		return this.lastRate;
 	}
 	
 	public void setRate(int flowRate){
 		this.myRate = flowRate;
+		this.updateInterval();
 	}
 	
 	public int getMaxRate(){
 		return this.myRate;
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * sets the number of events that can be processed back
+	 * to back before the rate is enforced
+	 * @param burst
+	 */
+	public void setBurst(int burst){
+		this.myBurst = Math.max(1, burst);
+		this.updateInterval();
+	}
+	
+	public int getBurst(){
+		return this.myBurst;
+	}
+	
+}
@@ -52,7 +52,10 @@ public interface Slicer {
 	void setPacketInRate(int rate);
 	IOFSwitch getSwitch();
 	void addBufferId(int bufferId, byte[] packetData);
+	void setBufferCache(PacketBufferCache bufferCache);
+	PacketBufferCache getBufferCache();
 	void setPortId(String portName, short portId);
+	void refreshPorts();
 	void setAdminState(boolean state);
 	boolean getAdminState();
 	void setTagManagement(boolean tagMgmt);
@@ -61,6 +64,8 @@ public interface Slicer {
 	boolean getTagManagement();
 	boolean doTimeouts();
 	void setDoTimeouts(boolean doTimeouts);
+	void setMaxXids(int maxXids);
+	int getMaxXids();
 	void setSwitchName(String swName);
 	String getSwitchName();
 }
@@ -15,13 +15,14 @@
 */
 package edu.iu.grnoc.flowspace_firewall;
 
-import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.List;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * the set of vlan tags allowed on a port
+ * stored as a 4096 bit bitset where bit 0 is UNTAGGED
+ * and every other bit is the vlan id of the same number
+ */
 public class VLANRange {
 
 	//min and max ranges
@@ -29,33 +30,37 @@ public class VLANRange {
 	public static final short MIN_VLAN = 1;
 	public static final short UNTAGGED = -1;
 	
+	private static final int WORDS = (MAX_VLAN + 1) / 64;
+	//bits 1-4094, the tags rangeOverlap has always compared
+	private static final long FIRST_WORD_OVERLAP_MASK = ~1L;
+	private static final long LAST_WORD_OVERLAP_MASK = ~(1L << 63);
+	
 	private static final Logger log = LoggerFactory.getLogger(VLANRange.class);
-	private List<Short> available = new ArrayList<Short>();
+	
+	//the allowed tags in the order they were allowed
+	//the first one is the tag used in managed tag mode
+	private short[] available = new short[16];
+	private int availableCount = 0;
+	private volatile Short[] availableCache;
 	//these prevent us from having to loop through
 	//and determine if the port allows a wildcard
 	private boolean wildcard = false;
 	
-	//hastable that lets us see if a vlan is allowed
-	private Hashtable <Short, Boolean> vlans = new Hashtable <Short, Boolean>();
+	//bitset that lets us see if a vlan is allowed
+	private final long[] vlans = new long[WORDS];
 	
 	public VLANRange(){
-		//create the vlanRange and set everything to not allowed
-		for(short i=MIN_VLAN;i<=MAX_VLAN;i++){
-			vlans.put(i, false);
-		}
-		vlans.put(UNTAGGED, false);
+		//everything starts out not allowed
 	}
 		
 	public VLANRange(short vlans[],boolean status){
 		//create a vlan range with an array of vlans and setting the status
 		//for each of them
-		for(short i=MIN_VLAN; i<=MAX_VLAN; i++){
-			this.vlans.put(i,!status);
-			if(!status){
-				this.available.add(i);
+		if(!status){
+			for(short i=MIN_VLAN; i<=MAX_VLAN; i++){
+				this.setBit(i, true);
 			}
 		}
-		this.vlans.put(UNTAGGED, false);
 		
 		for(int i=0; i< vlans.length; i++){
 			this.setVlanAvail(vlans[i], status);
@@ -69,19 +74,51 @@ public class VLANRange {
 	 * @param vlanId the vlanId to set the status for
 	 * @param status the status of the vlan (boolean) allowed/not allowed
 	 */
-	public void setVlanAvail(short vlanId, boolean status) throws IllegalArgumentException{
+	public synchronized void setVlanAvail(short vlanId, boolean status) throws IllegalArgumentException{
 		if(!validVlan(vlanId)){
 			throw new IllegalArgumentException("VLAN ID " + vlanId + " is out of range for valid vlan tags");
 		}
-		vlans.put(vlanId, status);
+		this.setBit(vlanId, status);
+		this.wildcard = this.allowVlanWildcard();
+	}
+	
+	/**
+	 * flips the bit for the vlan and keeps the ordered
+	 * list of available tags in sync with it
+	 */
+	private void setBit(short vlanId, boolean status){
+		int bit = bitIndex(vlanId);
+		long mask = 1L << (bit & 63);
+		boolean current = (vlans[bit >>> 6] & mask) != 0;
+		if(current == status){
+			return;
+		}
 		if(status){
-			this.available.add(vlanId);
+			vlans[bit >>> 6] |= mask;
+			if(availableCount == available.length){
+				short[] grown = new short[available.length * 2];
+				System.arraycopy(available, 0, grown, 0, availableCount);
+				available = grown;
+			}
+			available[availableCount++] = vlanId;
 		}else{
-			if(this.available.contains(vlanId)){
-				this.available.remove(this.available.indexOf(vlanId));
+			vlans[bit >>> 6] &= ~mask;
+			for(int i=0; i < availableCount; i++){
+				if(available[i] == vlanId){
+					System.arraycopy(available, i + 1, available, i, availableCount - i - 1);
+					availableCount--;
+					break;
+				}
 			}
 		}
-		this.wildcard = this.allowVlanWildcard();
+		this.availableCache = null;
+	}
+	
+	private static int bitIndex(short vlanId){
+		if(vlanId == UNTAGGED){
+			return 0;
+		}
+		return vlanId;
 	}
 	
 	/**
@@ -106,9 +143,23 @@ public class VLANRange {
 		return true;
 	}
 	
+	/**
+	 * returns the allowed tags in the order they were allowed
+	 * the array is shared between callers so it must not be modified
+	 * @return Short[]
+	 */
 	public Short[] getAvailableTags(){
-		Short[] avail = new Short[this.available.size()];
-		this.available.toArray(avail);
+		Short[] avail = this.availableCache;
+		if(avail != null){
+			return avail;
+		}
+		synchronized(this){
+			avail = new Short[this.availableCount];
+			for(int i=0; i < this.availableCount; i++){
+				avail[i] = this.available[i];
+			}
+			this.availableCache = avail;
+		}
 		return avail;
 	}
 	
@@ -116,9 +167,11 @@ public class VLANRange {
 		if(!validVlan(vlanId)){
 			throw new IllegalArgumentException("VLAN ID " + vlanId + " is out of range for valid vlan tags");
 		}
-
-		log.debug("Looking for available for vlan: " + vlanId);
-		return vlans.get(new Short(vlanId));
+		if(log.isDebugEnabled()){
+			log.debug("Looking for available for vlan: " + vlanId);
+		}
+		int bit = bitIndex(vlanId);
+		return (vlans[bit >>> 6] & (1L << (bit & 63))) != 0;
 	}
 	
 	/**
@@ -127,8 +180,12 @@ public class VLANRange {
 	 * @return
 	 */
 	private boolean allowVlanWildcard(){
-		for(short i=MIN_VLAN; i<=MAX_VLAN; i++){
-			if(!vlans.get(i)){
+		//every tag but UNTAGGED has to be allowed
+		if((vlans[0] | 1L) != -1L){
+			return false;
+		}
+		for(int i=1; i < WORDS; i++){
+			if(vlans[i] != -1L){
 				return false;
 			}
 		}
@@ -136,13 +193,17 @@ public class VLANRange {
 	}
 	
 	public boolean rangeOverlap(VLANRange otherRange){
-		for(short i=MIN_VLAN; i<MAX_VLAN; i++){
-			if(vlans.get(i)){
-				if(otherRange.vlans.get(i)){
-					return true;
-				}
+		if((vlans[0] & otherRange.vlans[0] & FIRST_WORD_OVERLAP_MASK) != 0){
+			return true;
+		}
+		for(int i=1; i < WORDS - 1; i++){
+			if((vlans[i] & otherRange.vlans[i]) != 0){
+				return true;
 			}
 		}
+		if((vlans[WORDS - 1] & otherRange.vlans[WORDS - 1] & LAST_WORD_OVERLAP_MASK) != 0){
+			return true;
+		}
 		return false;
 	}	
 }
@@ -17,13 +17,13 @@ package edu.iu.grnoc.flowspace_firewall;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.ImmutablePort;
@@ -55,6 +55,8 @@ import org.slf4j.LoggerFactory;
 public class VLANSlicer implements Slicer{
 
 	private HashMap<String, PortConfig> portList;
+	//openflow port id to PortConfig, rebuilt whenever the ports change
+	private volatile PortConfigTable portTable = PortConfigTable.EMPTY;
 	private InetSocketAddress controllerAddress;
 	private IOFSwitch sw;
 	private RateTracker myRateTracker;
@@ -62,13 +64,80 @@ public class VLANSlicer implements Slicer{
 	private String name;
 	private int packetInRate;
 	private String swName;
-	private Map<Integer, byte[]> bufferIds;
+	private PacketBufferCache bufferCache;
 	private boolean adminState;
 	private boolean flushOnConnect;
 	private boolean tagMgmt;
 	private boolean doTimeouts;
+	private int maxXids;
+	//verdicts of isFlowAllowed, replaced whenever the port config changes
+	private volatile ConcurrentHashMap<VerdictKey, Boolean> verdicts = new ConcurrentHashMap<VerdictKey, Boolean>();
 	
 	private static final Logger log = LoggerFactory.getLogger(VLANSlicer.class);
+	//where the 802.1Q header goes in an ethernet frame
+	private static final int VLAN_TAG_OFFSET = 12;
+	private static final int VLAN_TAG_LENGTH = 4;
+	//most verdicts we remember before starting over
+	static final int MAX_VERDICTS = 4096;
+	
+	/**
+	 * the parts of a flow mod isFlowAllowed looks at, the input port and vlan
+	 * and the vlan/output actions in order
+	 */
+	private static final class VerdictKey {
+		private static final int SET_VLAN_ID = 1 << 16;
+		private static final int OUTPUT = 2 << 16;
+		private static final int STRIP_VLAN = 3 << 16;
+		
+		private final short inPort;
+		private final short vlan;
+		private final int[] actions;
+		private final int hash;
+		
+		VerdictKey(short inPort, short vlan, List<OFAction> flowActions){
+			this.inPort = inPort;
+			this.vlan = vlan;
+			int[] relevant = new int[flowActions == null ? 0 : flowActions.size()];
+			int count = 0;
+			if(flowActions != null){
+				for(OFAction action : flowActions){
+					switch(action.getType()){
+						case SET_VLAN_ID:
+							relevant[count++] = SET_VLAN_ID | (((OFActionVirtualLanIdentifier)action).getVirtualLanIdentifier() & 0xffff);
+							break;
+						case OUTPUT:
+							relevant[count++] = OUTPUT | (((OFActionOutput)action).getPort() & 0xffff);
+							break;
+						case STRIP_VLAN:
+							relevant[count++] = STRIP_VLAN;
+							break;
+						default:
+							break;
+					}
+				}
+			}
+			this.actions = count == relevant.length ? relevant : Arrays.copyOf(relevant, count);
+			this.hash = 31 * (31 * this.inPort + this.vlan) + Arrays.hashCode(this.actions);
+		}
+		
+		@Override
+		public int hashCode(){
+			return this.hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj){
+			if(this == obj){
+				return true;
+			}
+			if(!(obj instanceof VerdictKey)){
+				return false;
+			}
+			VerdictKey other = (VerdictKey)obj;
+			return this.hash == other.hash && this.inPort == other.inPort && this.vlan == other.vlan
+					&& Arrays.equals(this.actions, other.actions);
+		}
+	}
 	
 	public VLANSlicer(HashMap <String, PortConfig> ports, 
 			InetSocketAddress controllerAddress, int rate, String name, boolean flushOnConnect, boolean tagMgmt, boolean doTimeouts){
@@ -79,26 +148,13 @@ public class VLANSlicer implements Slicer{
 		this.flushOnConnect = flushOnConnect;
 		this.tagMgmt = tagMgmt;
 		this.doTimeouts = doTimeouts;
+		this.maxXids = XidMap.DEFAULT_MAX_XIDS;
 		if(controllerAddress == null){
 			//not allowed
 		}
 		
 		this.controllerAddress = controllerAddress;
-		this.bufferIds = Collections.synchronizedMap(
-				new LinkedHashMap<Integer,byte[]>(){
-					/**
-					 * 
-					 */
-					private static final long serialVersionUID = 1L;
-
-					@Override
-					public boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest)  
-					{
-						//when to remove the eldest entry
-						return size() >= 1000 ;   //size exceeded the max allowed
-					}
-				}
-				);
+		this.bufferCache = new PacketBufferCache();
 	}
 	
 	public VLANSlicer(){
@@ -110,21 +166,8 @@ public class VLANSlicer implements Slicer{
 		this.flushOnConnect = false;
 		this.tagMgmt = false;
 		this.doTimeouts = false;
-		this.bufferIds = Collections.synchronizedMap(
-				new LinkedHashMap<Integer,byte[]>(){
-					/**
-					 * 
-					 */
-					private static final long serialVersionUID = 1L;
-
-					@Override
-					public boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest)  
-					{
-						//when to remove the eldest entry
-						return size() >= 1000 ;   //size exceeded the max allowed
-					}
-				}
-				);
+		this.maxXids = XidMap.DEFAULT_MAX_XIDS;
+		this.bufferCache = new PacketBufferCache();
 	}
 	
 	public void setSwitchName(String swName){
@@ -143,6 +186,18 @@ public class VLANSlicer implements Slicer{
 		this.doTimeouts = doTimeouts;
 	}
 	
+	/**
+	 * the number of outstanding xids the proxy remembers
+	 * for this slice before dropping the oldest
+	 */
+	public int getMaxXids(){
+		return this.maxXids;
+	}
+	
+	public void setMaxXids(int maxXids){
+		this.maxXids = maxXids;
+	}
+	
 	public boolean getAdminState(){
 		return this.adminState;
 	}
@@ -157,6 +212,10 @@ public class VLANSlicer implements Slicer{
 		PortConfig ptCnfg = this.getPortConfig(portName);
 		if(ptCnfg != null){
 			ptCnfg.setPortId(portId);
+			//the switch may not list the port yet so add it explicitly
+			this.refreshPorts();
+			this.portTable = this.portTable.with(portId, ptCnfg);
+			this.clearVerdicts();
 			log.debug("Set port: " + portName + " to port id: " + portId);
 		}else{
 			log.debug("NO configuration for port named: " + portName);
@@ -182,6 +241,29 @@ public class VLANSlicer implements Slicer{
 				log.debug("No configuration for port named: " + port.getName());
 			}
 		}
+		this.refreshPorts();
+	}
+	
+	/**
+	 * rebuilds the port id to PortConfig table from the
+	 * ports the switch currently has
+	 */
+	
+	public void refreshPorts(){
+		if(this.sw == null){
+			return;
+		}
+		this.portTable = PortConfigTable.build(this.sw.getPorts(), this.portList);
+		this.clearVerdicts();
+	}
+	
+	/**
+	 * forgets every cached flow verdict, called whenever
+	 * the port config or port ids change
+	 */
+	
+	public void clearVerdicts(){
+		this.verdicts = new ConcurrentHashMap<VerdictKey, Boolean>();
 	}
 	
 	public void setAdminState(boolean state){
@@ -207,6 +289,9 @@ public class VLANSlicer implements Slicer{
 					log.debug("Set port " + portConfig.getPortName() + " to port id " + port.getPortNumber());
 				}
 			}
+			this.refreshPorts();
+		}else{
+			this.clearVerdicts();
 		}
 	}
 	
@@ -261,18 +346,7 @@ public class VLANSlicer implements Slicer{
 		if(this.sw == null){
 			throw new IllegalStateException("Switch not connected so we don't know the port id");
 		}
-		ImmutablePort thisPort = this.sw.getPort(portId);
-		
-		if(thisPort == null){
-			log.info("Port: " + portId + " was not found on this switch.");
-			return null;
-		}
-		log.debug("Looking for PORT: " + thisPort.getName());
-		if(portList.containsKey(thisPort.getName())){
-			return portList.get(thisPort.getName());
-		}else{
-			return null;
-		}
+		return this.portTable.get(portId);
 	}
 	
 	/**
@@ -287,85 +361,105 @@ public class VLANSlicer implements Slicer{
 	}
 	
 	/**
-	 * expands the actions in a flowMod so that if we have an ALL
-	 * action it will be output to all ports but the port it came frome
-	 * @param flowMod
+	 * expands the actions so that if we have an ALL action it will be
+	 * output to all ports but the port it came from.  The actions are
+	 * returned as is if there is nothing to expand and null if the flow floods
+	 * @param actions
+	 * @param inPort
+	 * @param allOutputs output actions for every port in the slice, filled on first use
+	 * so every expansion of a flow shares them
 	 * @return
 	 */
 	
-	private OFFlowMod expandActions(OFFlowMod flowMod){
-		//quick note... if we are here then we have already expanded
-		//the flow from wildcarded portId to individual portIds
-		//ie.. this is an ok assumption to make
-		Short portId = flowMod.getMatch().getInputPort();
-		
-		//get the list of actions
-		List<OFAction> actions = flowMod.getActions();
-		
+	private List<OFAction> expandActions(List<OFAction> actions, short inPort, List<OFActionOutput> allOutputs){
 		if(actions == null || actions.isEmpty()){
-			log.debug("OFFlowMod actions are empty");
-			return flowMod;
+			return actions;
 		}
 		
-		List<OFAction> newActions = new ArrayList<OFAction>();
-		
+		List<OFAction> newActions = null;
+		int index = 0;
 		for(OFAction action : actions){
-			log.debug("Checking Action Type: " + action.getType().name());
-			
 			if(action.getType() == OFActionType.OUTPUT){
 				OFActionOutput output = (OFActionOutput) action;
+				if(output.getPort() == OFPort.OFPP_FLOOD.getValue()){
+					return null;
+				}
 				if(output.getPort() == OFPort.OFPP_ALL.getValue()){
-					log.debug("Expanding Action OUTPUT: ALL");
-					//first remove the current flow from the flowMods list
-					//loop through all interfaces we have access to 
-					//and add them to the list
-					
-					for(Map.Entry<String, PortConfig> port : this.portList.entrySet()){
-						//ALL should forward out all interfaces except the one the packet came from
-						if(port.getValue().getPortId() != portId){
-							OFActionOutput newAct;
-							try {
-								newAct = (OFActionOutput) action.clone();
-							} catch (CloneNotSupportedException e) {
-								//log.error(e.printStackTrace());
-								log.error("Unable to clone the output action");
-								log.error(e.getMessage());
-								return null;
-							}
-							
-							newAct.setPort(port.getValue().getPortId());
+					if(newActions == null){
+						newActions = new ArrayList<OFAction>(actions.subList(0, index));
+					}
+					//ALL should forward out all interfaces except the one the packet came from
+					for(OFActionOutput newAct : this.outputsToAll(output, allOutputs)){
+						if(newAct.getPort() != inPort){
 							newActions.add(newAct);
 						}
 					}
-				}else if(output.getPort() == OFPort.OFPP_FLOOD.getValue()){
-					return null;
-				}else{
-					//nothing to do here
-					log.debug("Not an output of type all or flood");
-					newActions.add(action);
+					index++;
+					continue;
 				}
-			}else{
-				log.debug("Not an OUTPUT action");
-				newActions.add(action);			
 			}
+			if(newActions != null){
+				newActions.add(action);
+			}
+			index++;
 		}
 		
-		OFFlowMod newFlow;
-		try {
-			newFlow = flowMod.clone();
-		} catch (CloneNotSupportedException e) {
-			e.printStackTrace();
-			return null;
+		if(newActions == null){
+			return actions;
 		}
-		newFlow.setActions(newActions);
+		return newActions;
+	}
+	
+	/**
+	 * returns an output action for every port in the slice
+	 * built like the OUTPUT: ALL action
+	 */
+	
+	private List<OFActionOutput> outputsToAll(OFActionOutput all, List<OFActionOutput> outputs){
+		if(!outputs.isEmpty() && outputs.get(0).getMaxLength() == all.getMaxLength()){
+			return outputs;
+		}
+		outputs.clear();
+		for(PortConfig port : this.portList.values()){
+			OFActionOutput newAct = new OFActionOutput();
+			newAct.setPort(port.getPortId());
+			newAct.setMaxLength(all.getMaxLength());
+			outputs.add(newAct);
+		}
+		return outputs;
+	}
+	
+	/**
+	 * copies a flowMod with a new match and actions
+	 * the actions are shared, not copied
+	 */
+	
+	private OFFlowMod cloneFlowMod(OFFlowMod flowMod, OFMatch match, List<OFAction> actions){
+		OFFlowMod newFlow = new OFFlowMod();
+		newFlow.setMatch(match);
+		newFlow.setActions(actions);
+		newFlow.setBufferId(flowMod.getBufferId());
+		newFlow.setCommand(flowMod.getCommand());
+		newFlow.setCookie(flowMod.getCookie());
+		newFlow.setFlags(flowMod.getFlags());
+		newFlow.setHardTimeout(flowMod.getHardTimeout());
+		newFlow.setIdleTimeout(flowMod.getIdleTimeout());
+		newFlow.setOutPort(flowMod.getOutPort());
+		newFlow.setPriority(flowMod.getPriority());
+		newFlow.setLength(flowMod.getLength());
+		newFlow.setVersion(flowMod.getVersion());
+		newFlow.setXid(flowMod.getXid());
 		return newFlow;
-		
 	}
 	
 	private OFPacketOut clonePacketOut(OFPacketOut packet){
+		return this.clonePacketOut(packet, packet.getPacketData().clone());
+	}
+	
+	private OFPacketOut clonePacketOut(OFPacketOut packet, byte[] packetData){
 		OFPacketOut newOut = new OFPacketOut();
 		newOut.setActions(packet.getActions());
-		newOut.setPacketData(packet.getPacketData().clone());
+		newOut.setPacketData(packetData);
 		newOut.setBufferId(packet.getBufferId());
 		newOut.setInPort(packet.getInPort());
 		newOut.setLength(packet.getLength());
@@ -378,6 +472,46 @@ public class VLANSlicer implements Slicer{
 		return this.myRateTracker.getMaxRate();
 	}
 	
+	/**
+	 * returns a copy of the ethernet frame tagged with vlan, the 802.1Q header
+	 * is inserted after the mac addresses or rewritten if the frame already has one.
+	 * For VLANRange.UNTAGGED the copy has no 802.1Q header.
+	 * The rest of the frame is copied as is instead of being parsed
+	 * @param packetData
+	 * @param vlan
+	 * @return byte[]
+	 */
+	static byte[] tagPacket(byte[] packetData, short vlan){
+		byte[] tagged;
+		boolean hasTag = packetData.length >= VLAN_TAG_OFFSET + VLAN_TAG_LENGTH 
+				&& (short)(((packetData[VLAN_TAG_OFFSET] & 0xff) << 8) | (packetData[VLAN_TAG_OFFSET + 1] & 0xff)) == Ethernet.TYPE_VLAN;
+		if(vlan == VLANRange.UNTAGGED){
+			if(!hasTag){
+				return packetData.clone();
+			}
+			//strip the 802.1Q header
+			tagged = new byte[packetData.length - VLAN_TAG_LENGTH];
+			System.arraycopy(packetData, 0, tagged, 0, VLAN_TAG_OFFSET);
+			System.arraycopy(packetData, VLAN_TAG_OFFSET + VLAN_TAG_LENGTH, tagged, VLAN_TAG_OFFSET, tagged.length - VLAN_TAG_OFFSET);
+			return tagged;
+		}
+		if(hasTag){
+			tagged = packetData.clone();
+			//keep the priority bits
+			tagged[VLAN_TAG_OFFSET + 2] = (byte)((tagged[VLAN_TAG_OFFSET + 2] & 0xe0) | ((vlan >> 8) & 0x0f));
+			tagged[VLAN_TAG_OFFSET + 3] = (byte)vlan;
+			return tagged;
+		}
+		tagged = new byte[packetData.length + VLAN_TAG_LENGTH];
+		System.arraycopy(packetData, 0, tagged, 0, VLAN_TAG_OFFSET);
+		tagged[VLAN_TAG_OFFSET] = (byte)(Ethernet.TYPE_VLAN >> 8);
+		tagged[VLAN_TAG_OFFSET + 1] = (byte)Ethernet.TYPE_VLAN;
+		tagged[VLAN_TAG_OFFSET + 2] = (byte)((vlan >> 8) & 0x0f);
+		tagged[VLAN_TAG_OFFSET + 3] = (byte)vlan;
+		System.arraycopy(packetData, VLAN_TAG_OFFSET, tagged, VLAN_TAG_OFFSET + VLAN_TAG_LENGTH, packetData.length - VLAN_TAG_OFFSET);
+		return tagged;
+	}
+	
 	
 	public List<OFMessage> managedPacketOut(OFPacketOut outPacket){
 		List <OFAction> newActions = new ArrayList<OFAction>();
@@ -388,11 +522,11 @@ public class VLANSlicer implements Slicer{
 		if(outPacket.getPacketData().length == 0 && outPacket.getBufferId() != 0){
 			//look at the buffer id and see if it matches one we have in our 
 			//buffer cache
-			int bufferId = outPacket.getBufferId();
-			if(this.bufferIds.containsKey(bufferId)){
+			byte[] packetData = this.bufferCache.get(outPacket.getBufferId());
+			if(packetData != null){
 				outPacket.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-				outPacket.setPacketData(this.bufferIds.get(bufferId));
-				outPacket.setLengthU(outPacket.getLengthU() + this.bufferIds.get(bufferId).length);
+				outPacket.setPacketData(packetData);
+				outPacket.setLengthU(outPacket.getLengthU() + packetData.length);
 			}else{
 				return packets;
 			}
@@ -424,6 +558,8 @@ public class VLANSlicer implements Slicer{
 					OFActionOutput output = (OFActionOutput)action;
 					if(output.getPort() == OFPort.OFPP_ALL.getValue()){
 						log.debug("output to ALL expanding");
+						//ports with the same tag share the same tagged packet
+						HashMap<Short, byte[]> taggedPackets = new HashMap<Short, byte[]>();
 						
 						for(Map.Entry<String, PortConfig> port : this.portList.entrySet()){
 							PortConfig myPortCfg = this.getPortConfig(port.getValue().getPortId());
@@ -436,18 +572,18 @@ public class VLANSlicer implements Slicer{
 							}else{
 								List<OFAction> actualActions = new ArrayList<OFAction>();
 								actualActions.addAll(newActions);
-								OFPacketOut newOut = this.clonePacketOut(outPacket);
+								short vlan = myPortCfg.getVlanRange().getAvailableTags()[0];
+								byte[] taggedPacket = taggedPackets.get(vlan);
+								if(taggedPacket == null){
+									taggedPacket = tagPacket(outPacket.getPacketData(), vlan);
+									taggedPackets.put(vlan, taggedPacket);
+								}
+								OFPacketOut newOut = this.clonePacketOut(outPacket, taggedPacket);
 								OFActionOutput newOutput = new OFActionOutput();
 								newOutput.setMaxLength(Short.MAX_VALUE);
 								newOutput.setType(OFActionType.OUTPUT);
 								newOutput.setLength((short)OFActionOutput.MINIMUM_LENGTH);
 								newOutput.setPort(port.getValue().getPortId());
-	
-								Ethernet pkt =  (Ethernet) new Ethernet().deserialize(outPacket.getPacketData(), 
-																					  0, outPacket.getPacketData().length);
-								
-								pkt.setVlanID(myPortCfg.getVlanRange().getAvailableTags()[0]);
-								newOut.setPacketData(pkt.serialize());
 								
 								actualActions.add(newOutput);
 								newOut.setActions(actualActions);
@@ -478,17 +614,8 @@ public class VLANSlicer implements Slicer{
 						log.debug("Simple case, single output and it was allowed");
 						List<OFAction> actualActions = new ArrayList<OFAction>();
 						actualActions.addAll(newActions);
-						OFPacketOut newOut = this.clonePacketOut(outPacket);
-						
-						
-						Ethernet pkt = (Ethernet) new Ethernet();
-						pkt.deserialize(outPacket.getPacketData(), 
-								  0, outPacket.getPacketData().length);
-						
 						log.debug("Setting the packet vlan ID to " + myPortCfg.getVlanRange().getAvailableTags()[0]);
-						log.debug("Packet: " + pkt.getEtherType());
-						pkt.setVlanID(myPortCfg.getVlanRange().getAvailableTags()[0]);
-						newOut.setPacketData(pkt.serialize());
+						OFPacketOut newOut = this.clonePacketOut(outPacket, tagPacket(outPacket.getPacketData(), myPortCfg.getVlanRange().getAvailableTags()[0]));
 						actualActions.add(output);
 						newOut.setActions(actualActions);
 						int size = 0;
@@ -530,11 +657,11 @@ public class VLANSlicer implements Slicer{
 		if(outPacket.getPacketData().length == 0 && outPacket.getBufferId() != 0){
 			//look at the buffer id and see if it matches one we have in our 
 			//buffer cache
-			int bufferId = outPacket.getBufferId();
-			if(this.bufferIds.containsKey(bufferId)){
+			byte[] packetData = this.bufferCache.get(outPacket.getBufferId());
+			if(packetData != null){
 				outPacket.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-				outPacket.setPacketData(this.bufferIds.get(bufferId));
-				outPacket.setLengthU(outPacket.getLengthU() + this.bufferIds.get(bufferId).length);
+				outPacket.setPacketData(packetData);
+				outPacket.setLengthU(outPacket.getLengthU() + packetData.length);
 			}else{
 				return packets;
 			}
@@ -648,7 +775,9 @@ public class VLANSlicer implements Slicer{
 	}
 	
 	public List <OFFlowMod> managedFlows(OFFlowMod flowMod){
-		log.debug("Attempting to put flow: " + flowMod.toString() + " into flowspace");
+		if(log.isDebugEnabled()){
+			log.debug("Attempting to put flow: " + flowMod.toString() + " into flowspace");
+		}
 		List<OFFlowMod> flows = new ArrayList<OFFlowMod>();
 		OFMatch match = flowMod.getMatch().clone();
 		
@@ -660,24 +789,32 @@ public class VLANSlicer implements Slicer{
 			//untagged or no tag...
 			if(match.getWildcardObj().isWildcarded(Flag.IN_PORT)){
 				//needs to expand it out unless has access to all ports
-				Iterator<Entry<String, PortConfig>> it = this.portList.entrySet().iterator();
-				while(it.hasNext()){
-					Map.Entry<String, PortConfig> port = (Entry<String, PortConfig>) it.next();
-					if(port.getValue().getPortId() != 0){
+				//the managed actions do not depend on the input port so
+				//they are worked out once and shared by every expansion
+				List<OFAction> actions = null;
+				short length = 0;
+				for(PortConfig port : this.portList.values()){
+					if(port.getPortId() != 0){
 						try{
-							//why might this not be cloneable?  ahh... might not be clonable if there is no action!!
-							OFFlowMod newFlow = flowMod.clone();
-							newFlow.getMatch().setInputPort(port.getValue().getPortId());
-							newFlow.getMatch().setWildcards(newFlow.getMatch().getWildcardObj().matchOn(Flag.IN_PORT));
-							newFlow.getMatch().setDataLayerVirtualLan(port.getValue().getVlanRange().getAvailableTags()[0]);
-							newFlow.getMatch().setWildcards(newFlow.getMatch().getWildcardObj().matchOn(Flag.DL_VLAN));
-							List<OFFlowMod> newFlows = this.managedFlowActions(newFlow);
-							for( OFFlowMod flow : newFlows){
-								flows.add(flow);
+							OFMatch newMatch = match.clone();
+							newMatch.setInputPort(port.getPortId());
+							newMatch.setWildcards(newMatch.getWildcardObj().matchOn(Flag.IN_PORT));
+							newMatch.setDataLayerVirtualLan(port.getVlanRange().getAvailableTags()[0]);
+							newMatch.setWildcards(newMatch.getWildcardObj().matchOn(Flag.DL_VLAN));
+							OFFlowMod newFlow;
+							if(actions == null){
+								newFlow = this.cloneFlowMod(flowMod, newMatch, flowMod.getActions());
+								if(this.managedFlowActions(newFlow).isEmpty()){
+									//denied for one port is denied for all of them
+									return flows;
+								}
+								actions = newFlow.getActions();
+								length = newFlow.getLength();
+							}else{
+								newFlow = this.cloneFlowMod(flowMod, newMatch, actions);
+								newFlow.setLength(length);
 							}
-						}catch (CloneNotSupportedException e){
-							flows.clear();
-							return flows;
+							flows.add(newFlow);
 						}catch (Exception e){
 							flows.clear();
 							return flows;
@@ -686,7 +823,6 @@ public class VLANSlicer implements Slicer{
 				}
 			}else{
 				try{
-					OFFlowMod newFlow = flowMod.clone();
 					short vlanId;
 					PortConfig pConfig = this.getPortConfig(match.getInputPort());
 					if(pConfig == null){
@@ -698,12 +834,9 @@ public class VLANSlicer implements Slicer{
 					}
 					match.setDataLayerVirtualLan(vlanId);
 					match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN));
-					newFlow.setMatch(match);
+					OFFlowMod newFlow = this.cloneFlowMod(flowMod, match, flowMod.getActions());
 					//process the actions and add setVlanVid actions if necessary
 					flows = this.managedFlowActions(newFlow);
-				}catch (CloneNotSupportedException e){
-					flows.clear();
-					return flows;
 				}catch (Exception e){
 					flows.clear();
 					return flows;
@@ -819,7 +952,9 @@ public class VLANSlicer implements Slicer{
 	 */
 	
 	public List <OFFlowMod> allowedFlows(OFFlowMod flowMod){
-		log.debug("Attempting to slice: " + flowMod.toString());
+		if(log.isDebugEnabled()){
+			log.debug("Attempting to slice: " + flowMod.toString());
+		}
 		List <OFFlowMod> flowMods = new ArrayList<OFFlowMod>();
 		OFMatch match = flowMod.getMatch();
 		
@@ -843,118 +978,125 @@ public class VLANSlicer implements Slicer{
 		//wildcarded input port?
 		if(match.getInputPort() == 0 || wc.isWildcarded(Wildcards.Flag.IN_PORT)){
 			//needs to expand it out unless has access to all ports
-			Iterator<Entry<String, PortConfig>> it = this.portList.entrySet().iterator();
-					
-			while(it.hasNext()){
-				//wildcarded port... so we need to loop through all the ports
-				Map.Entry<String, PortConfig> port = (Entry<String, PortConfig>) it.next();
-				if(port.getValue().getPortId() != 0){
-					//create a new match like our old match but change the port
-					log.debug("Expanding Match to port : " + port.getValue().getPortId());
-					
-					try{
-						//why might this not be cloneable?  ahh... might not be clonable if there is no action!!
-						OFFlowMod newFlow = flowMod.clone();
-						//override the match with our new one
-						newFlow.getMatch().setInputPort(port.getValue().getPortId());
-						newFlow.getMatch().setWildcards(newFlow.getMatch().getWildcardObj().matchOn(Flag.IN_PORT));
-						//allowed or not?
-						log.debug("Attempting to verify expansion is allowed for port: " + newFlow.getMatch().getInputPort());
-						//now to check and see if we need to expand because of output actions!
-						log.debug("Attempting to expand actions");
-						//expand actions
-						OFFlowMod expandedFlow = this.expandActions(newFlow);
-						
-						if(expandedFlow == null){
-							log.debug("Error expanding actions for flow:" + newFlow.toString());
-							flowMods.clear();
-							return flowMods;
-						}
-						
-						if(this.isFlowAllowed(expandedFlow)){
-							flowMods.add(expandedFlow);
-						}else{
-							log.debug("denied Flow " + expandedFlow.toString());
-							flowMods.clear();
-							return flowMods;
-						}
-					}catch (CloneNotSupportedException e){
-						log.error("This can't happen in the real world");
-					}catch (Exception e){
-						
-					}
+			//decide every port before building any flows so we don't
+			//build them just to throw them away
+			List<OFActionOutput> allOutputs = new ArrayList<OFActionOutput>();
+			short[] portIds = new short[this.portList.size()];
+			List<List<OFAction>> portActions = new ArrayList<List<OFAction>>(portIds.length);
+			for(PortConfig port : this.portList.values()){
+				short portId = port.getPortId();
+				if(portId == 0){
+					continue;
+				}
+				List<OFAction> actions = this.expandActions(flowMod.getActions(), portId, allOutputs);
+				if(actions == null){
+					log.debug("Error expanding actions for flow on port: " + portId);
+					return flowMods;
 				}
+				if(!this.isFlowAllowed(portId, match.getDataLayerVirtualLan(), actions)){
+					log.debug("denied Flow expanded to port: " + portId);
+					return flowMods;
+				}
+				portIds[portActions.size()] = portId;
+				portActions.add(actions);
 			}
 			
 			//a quick optimization
 			//if the number of flowMods = the number of ports on the switch
 			//original flow mod is good
-			log.debug("comparing number of flowMods to number of interfaces " + flowMods.size() + ":" + sw.getPorts().size());
-			if(flowMods.size() == sw.getPorts().size()){
+			log.debug("comparing number of flowMods to number of interfaces " + portActions.size() + ":" + sw.getPorts().size());
+			if(portActions.size() == sw.getPorts().size()){
 				log.debug("Number of flow rules matches the number if interfaces... original flow is good!");
-				flowMods.clear();
 				flowMods.add(flowMod);
+				return flowMods;
+			}
+			
+			for(int i = 0; i < portActions.size(); i++){
+				//create a new match like our old match but change the port
+				OFMatch newMatch = match.clone();
+				newMatch.setInputPort(portIds[i]);
+				newMatch.setWildcards(newMatch.getWildcardObj().matchOn(Flag.IN_PORT));
+				flowMods.add(this.cloneFlowMod(flowMod, newMatch, portActions.get(i)));
 			}
 		}else{
 			//no expansion necessary
 			log.debug("No Match Expansion");
 			
-			log.debug("Attempting to expand actions");
 			//expand actions
-			OFFlowMod expandedFlow = this.expandActions(flowMod);
+			List<OFAction> actions = this.expandActions(flowMod.getActions(), match.getInputPort(), new ArrayList<OFActionOutput>());
 			
-			if(expandedFlow == null){
-				log.debug("Error expanding actions for flow:" + flowMod.toString());
-				flowMods.clear();
+			if(actions == null){
+				if(log.isDebugEnabled()){
+					log.debug("Error expanding actions for flow:" + flowMod.toString());
+				}
 				return flowMods;
 			}
 			
-			if(this.isFlowAllowed(expandedFlow)){
-				flowMods.add(expandedFlow);
+			if(this.isFlowAllowed(match.getInputPort(), match.getDataLayerVirtualLan(), actions)){
+				if(actions == flowMod.getActions()){
+					flowMods.add(flowMod);
+				}else{
+					flowMods.add(this.cloneFlowMod(flowMod, match.clone(), actions));
+				}
 			}else{
-				log.debug("Denied flow " + expandedFlow.toString());
-				flowMods.clear();
+				if(log.isDebugEnabled()){
+					log.debug("Denied flow " + flowMod.toString());
+				}
 				return flowMods;
 			}
 		}
-		log.debug("FLows: " + flowMods.toString());
+		if(log.isDebugEnabled()){
+			log.debug("FLows: " + flowMods.toString());
+		}
 		return flowMods;
 	}
 	
 	/**
-	 * Process a flowMod and determines if it is properly in the slice
-	 * If it does match then the flow is returned.  If it does not
-	 * directly match (ie... wildcarded port) then we expand
-	 * and return an array of OFFlowMods to represent the expanded rule
-	 * @param flowMod the openflow flow mode to be sliced
-	 * 
+	 * determines if a flow with the given input port, vlan and
+	 * (already expanded) actions is properly in the slice
+	 * @param inPort the input port of the match
+	 * @param vlan the vlan of the match
+	 * @param actions the actions of the flow
+	 */
+	
+	private boolean isFlowAllowed(short inPort, short vlan, List<OFAction> actions){
+		ConcurrentHashMap<VerdictKey, Boolean> cache = this.verdicts;
+		VerdictKey key = new VerdictKey(inPort, vlan, actions);
+		Boolean verdict = cache.get(key);
+		if(verdict != null){
+			return verdict;
+		}
+		
+		verdict = this.evaluateFlow(inPort, vlan, actions);
+		//without a switch there are no port ids to judge by
+		if(this.sw != null){
+			if(cache.size() >= MAX_VERDICTS){
+				cache.clear();
+			}
+			cache.put(key, verdict);
+		}
+		return verdict;
+	}
+	
+	/**
+	 * does the actual policy check for isFlowAllowed
 	 */
 	
-	private Boolean isFlowAllowed(OFFlowMod flowMod){
+	private Boolean evaluateFlow(short inPort, short vlan, List<OFAction> actions){
 
-		log.debug("helper slicing: " + flowMod.toString());
-		OFMatch match = flowMod.getMatch();
+		if(log.isDebugEnabled()){
+			log.debug("helper slicing: port " + inPort + " vlan " + vlan + " actions " + actions);
+		}
 		
 		//we require an input port
-		//need to do something special if you do have access to all ports
-		Wildcards wc = match.getWildcardObj();
-		if(wc.isWildcarded(Wildcards.Flag.IN_PORT)){
-			log.debug("Slice: " + this.getSliceName() + ":" + this.getSwitchName() + " Flow rule VLAN wildcarded.  Denied: " + flowMod.toString());
-			return false;
-		}
-		if(match.getInputPort() == 0){
+		if(inPort == 0){
 			//this is bad we shouldn't get here...
 			log.debug("got a null port and we shouldn't have that");
 			return false;
 		}
 		
-		//checking for wildcarded input vlan
-		if(wc.isWildcarded(Wildcards.Flag.DL_VLAN)){
-			log.debug("Slice: " + this.getSliceName() + ":" + this.getSwitchName() + " Flow rule VLAN wildcarded.  Denied: " + flowMod.toString());
-			return false;
-		}
 		//we require an input vlan
-		if(match.getDataLayerVirtualLan() == 0){
+		if(vlan == 0){
 			log.debug("VLAN is wildcarded");
 			return false;
 		}
@@ -965,25 +1107,24 @@ public class VLANSlicer implements Slicer{
 		}
 		
 		//get the port config
-		PortConfig portCfg = this.getPortConfig(match.getInputPort());
+		PortConfig portCfg = this.getPortConfig(inPort);
 		
 		if(portCfg == null){
 			//no port config we don't have access
-			log.debug("port config not defined for port: " + match.getInputPort());
+			log.debug("port config not defined for port: " + inPort);
 			return false;
 		}
 		
 		//verify the match is allowed... if not bail
-		if(portCfg.vlanAllowed(match.getDataLayerVirtualLan())){
+		if(portCfg.vlanAllowed(vlan)){
 			//need to iterate through the list of actions and make sure all
 			//actions are allowed
-			List <OFAction> actions = flowMod.getActions();
 			if(actions == null){
 				return true;
 			}
 			Iterator <OFAction> actionIterator = actions.iterator();
 			//track our current vlan... start with the matchVlan
-			short curVlan = match.getDataLayerVirtualLan();
+			short curVlan = vlan;
 			
 			
 			while(actionIterator.hasNext()){
@@ -1040,7 +1181,7 @@ public class VLANSlicer implements Slicer{
 			return true;
 		}
 		//nope... not letting it through
-		log.debug("Policy for port: " + portCfg.getPortId() +":" + portCfg.getPortName() + " for vlan " + match.getDataLayerVirtualLan() + " said no");
+		log.debug("Policy for port: " + portCfg.getPortId() +":" + portCfg.getPortName() + " for vlan " + vlan + " said no");
 		return false;
 	}
 	
@@ -1059,12 +1200,7 @@ public class VLANSlicer implements Slicer{
 			throw new IllegalStateException("Switch not connected so we don't know the port id");
 		}
 		
-		ImmutablePort thisPort = this.sw.getPort(portId);
-		if(thisPort == null){
-			return false;
-		}
-		
-		return portList.containsKey(thisPort.getName());
+		return this.portTable.get(portId) != null;
 	}
 	
 	/**
@@ -1133,7 +1269,15 @@ public class VLANSlicer implements Slicer{
 	}
 	
 	public void addBufferId(int bufferId, byte[] packetData){
-		this.bufferIds.put(bufferId, packetData);
+		this.bufferCache.put(bufferId, packetData);
+	}
+	
+	public void setBufferCache(PacketBufferCache bufferCache){
+		this.bufferCache = bufferCache;
+	}
+	
+	public PacketBufferCache getBufferCache(){
+		return this.bufferCache;
 	}
 	
 	public void setFlushRulesOnConnect(boolean flush_on_connect){
@@ -15,73 +15,240 @@
 */
 package edu.iu.grnoc.flowspace_firewall;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.Map.Entry;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * maps the xids we send to the switch back to the xids the
+ * controller used.  Entries are kept in a ring in the order
+ * they were added, with an open addressing table pointing
+ * at their position in the ring.  Removing everything up to
+ * a barrier only moves the head of the ring, table entries
+ * that point behind the head are treated as deleted and get
+ * cleaned out when the table is rebuilt.
+ * @author aragusa
+ *
+ */
 public class XidMap {
 
-	private Map<Integer, Integer> xidMap;
-	private static final int max_xid_size = 1000;
+	public static final int DEFAULT_MAX_XIDS = 1000;
+	private static final long EMPTY = -1L;
 	
 	private static final Logger log = LoggerFactory.getLogger(XidMap.class);
 	
+	//ring of xids in the order they were added
+	private int[] ringKeys;
+	private int[] ringValues;
+	private boolean[] ringLive;
+	//sequence number of the oldest and next entry in the ring
+	private long head;
+	private long tail;
+	
+	//open addressing table of key to ring sequence number
+	private int[] tableKeys;
+	private long[] tableSeqs;
+	private int tableUsed;
+	
+	private int maxSize;
+	
 	public XidMap(){
-		xidMap = Collections.synchronizedMap(
-				new LinkedHashMap<Integer,Integer>(){
-					/**
-					 * 
-					 */
-					private static final long serialVersionUID = 1L;
-
-					@Override
-					public boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest)  
-					{
-						//when to remove the eldest entry
-						return size() >= max_xid_size ;   //size exceeded the max allowed
-					}
-				}
-				);
+		this(DEFAULT_MAX_XIDS);
+	}
+	
+	/**
+	 * creates an XidMap that holds fewer than maxSize xids
+	 * once it is full the oldest xid is dropped
+	 * @param maxSize
+	 */
+	public XidMap(int maxSize){
+		this.allocate(maxSize);
+	}
+	
+	private void allocate(int maxSize){
+		if(maxSize < 2){
+			throw new IllegalArgumentException("XidMap size must be at least 2, was " + maxSize);
+		}
+		this.maxSize = maxSize;
+		int capacity = maxSize - 1;
+		this.ringKeys = new int[capacity];
+		this.ringValues = new int[capacity];
+		this.ringLive = new boolean[capacity];
+		this.head = 0;
+		this.tail = 0;
+		int tableSize = 4;
+		while(tableSize < capacity * 2){
+			tableSize <<= 1;
+		}
+		this.tableKeys = new int[tableSize];
+		this.tableSeqs = new long[tableSize];
+		this.clearTable();
+	}
+	
+	public synchronized int getMaxSize(){
+		return this.maxSize;
+	}
+	
+	/**
+	 * changes the maximum number of xids held, keeping the
+	 * newest ones that still fit
+	 * @param maxSize
+	 */
+	public synchronized void setMaxSize(int maxSize){
+		if(maxSize == this.maxSize){
+			return;
+		}
+		int[] oldKeys = this.ringKeys;
+		int[] oldValues = this.ringValues;
+		boolean[] oldLive = this.ringLive;
+		long oldHead = this.head;
+		long oldTail = this.tail;
+		this.allocate(maxSize);
+		for(long seq = oldHead; seq < oldTail; seq++){
+			int slot = (int)(seq % oldKeys.length);
+			if(oldLive[slot]){
+				this.put(oldKeys[slot], oldValues[slot]);
+			}
+		}
+	}
+	
+	private void clearTable(){
+		for(int i=0; i < this.tableSeqs.length; i++){
+			this.tableSeqs[i] = EMPTY;
+		}
+		this.tableUsed = 0;
+	}
+	
+	private static int hash(int key){
+		int h = key * 0x9E3779B1;
+		return h ^ (h >>> 16);
+	}
+	
+	private int slot(long seq){
+		return (int)(seq % this.ringKeys.length);
+	}
+	
+	/**
+	 * a sequence number is live if it has not been passed by the
+	 * head of the ring and was not removed on its own
+	 */
+	private boolean isLive(long seq){
+		return seq >= this.head && this.ringLive[slot(seq)];
+	}
+	
+	/**
+	 * returns the ring sequence number for the key or EMPTY
+	 */
+	private long find(int key){
+		int mask = this.tableSeqs.length - 1;
+		int i = hash(key) & mask;
+		long seq;
+		while((seq = this.tableSeqs[i]) != EMPTY){
+			if(this.tableKeys[i] == key && isLive(seq)){
+				return seq;
+			}
+			i = (i + 1) & mask;
+		}
+		return EMPTY;
+	}
+	
+	private void index(int key, long seq){
+		int mask = this.tableSeqs.length - 1;
+		int i = hash(key) & mask;
+		//reuse the first dead slot on the probe path
+		while(this.tableSeqs[i] != EMPTY && isLive(this.tableSeqs[i])){
+			i = (i + 1) & mask;
+		}
+		if(this.tableSeqs[i] == EMPTY){
+			this.tableUsed++;
+		}
+		this.tableKeys[i] = key;
+		this.tableSeqs[i] = seq;
+		if(this.tableUsed * 4 > this.tableSeqs.length * 3){
+			this.rebuildTable();
+		}
+	}
+	
+	/**
+	 * throws away the dead table entries
+	 */
+	private void rebuildTable(){
+		this.clearTable();
+		int mask = this.tableSeqs.length - 1;
+		for(long seq = this.head; seq < this.tail; seq++){
+			int slot = slot(seq);
+			if(!this.ringLive[slot]){
+				continue;
+			}
+			int i = hash(this.ringKeys[slot]) & mask;
+			while(this.tableSeqs[i] != EMPTY){
+				i = (i + 1) & mask;
+			}
+			this.tableKeys[i] = this.ringKeys[slot];
+			this.tableSeqs[i] = seq;
+			this.tableUsed++;
+		}
 	}
 	
 	public synchronized boolean containsKey(int key){	
-		return xidMap.containsKey(key);
+		return find(key) != EMPTY;
 	}
+	
 	public synchronized int remove(int key){
-		return xidMap.remove(key);
+		long seq = find(key);
+		if(seq == EMPTY){
+			throw new IllegalArgumentException("XID " + key + " is not mapped");
+		}
+		int slot = slot(seq);
+		this.ringLive[slot] = false;
+		//let the head move past removed entries so they stop taking up room
+		while(this.head < this.tail && !this.ringLive[slot(this.head)]){
+			this.head++;
+		}
+		return this.ringValues[slot];
 	}
-	public synchronized int get(Object key){
-		return xidMap.get(key);
+	
+	public synchronized int get(int key){
+		long seq = find(key);
+		if(seq == EMPTY){
+			throw new IllegalArgumentException("XID " + key + " is not mapped");
+		}
+		return this.ringValues[slot(seq)];
 	}
 	
 	public synchronized void put(int key, int value) {
-		log.debug("Mapping XID: %d to %d", key, value);
-		xidMap.put(key, value);
+		if(log.isDebugEnabled()){
+			log.debug("Mapping XID: " + key + " to " + value);
+		}
+		long seq = find(key);
+		if(seq != EMPTY){
+			//already mapped, keep its place in line
+			this.ringValues[slot(seq)] = value;
+			return;
+		}
+		if(this.tail - this.head == this.ringKeys.length){
+			//full, drop the oldest
+			this.head++;
+		}
+		seq = this.tail++;
+		int slot = slot(seq);
+		this.ringKeys[slot] = key;
+		this.ringValues[slot] = value;
+		this.ringLive[slot] = true;
+		this.index(key, seq);
 	}
 		
-		
+	/**
+	 * removes every xid added before key along with key
+	 * @param key
+	 * @return false if key is not mapped
+	 */
 	public synchronized boolean removeToKey(int key) {
-		if (!xidMap.containsKey(key) ){
+		long seq = find(key);
+		if(seq == EMPTY){
 			return false;
 		}
-		Set<Entry<Integer, Integer>> entrySet = xidMap.entrySet();
-		Iterator<Entry<Integer, Integer>> it = entrySet.iterator();	
-		while (it.hasNext()) {
-			Entry<Integer, Integer> localEntry= it.next();
-			it.remove();
-			//once we've gotten to our xid, break out of this loop
-			if (localEntry.getKey() == key){
-				break;	
-			}
-		}
+		this.head = seq + 1;
 		return true;
 	}
 	
 }
-
@@ -89,6 +89,7 @@ public class SlicerStatusResource extends ServerResource{
 		results.put("max_packet_in_rate",  myProxy.getSlicer().getPacketInRate());
 		results.put("packet_in_rate", myProxy.getPacketInRate());
 		results.put("max_flow_rule", myProxy.getSlicer().getMaxFlows());
+		results.put("buffer_cache", myProxy.getSlicer().getBufferCache().getStats());
 		
 		return results;
 		
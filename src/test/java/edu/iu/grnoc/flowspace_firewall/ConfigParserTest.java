@@ -139,6 +139,13 @@ public class ConfigParserTest {
 		ConfigParser.parseConfig("src/test/resources/start_after_end.xml");
 	}
 	
+	@Test
+	public void testBadMaxXids() throws IOException, SAXException, XPathExpressionException, ParserConfigurationException, InvalidConfigException {
+		thrown.expect(InvalidConfigException.class);
+		thrown.expectMessage("max_xids must be at least 2 for Slice: Slice1, Switch: foo3");
+		ConfigParser.parseConfig("src/test/resources/bad_max_xids.xml");
+	}
+	
 	@Test
 	public void testBadPollInterval() throws IOException, SAXException, XPathExpressionException, ParserConfigurationException, InvalidConfigException, NumberFormatException {
 		thrown.expect(SAXParseException.class);
@@ -150,11 +157,33 @@ public class ConfigParserTest {
 	public void testGoodPollInterval() throws IOException, SAXException, XPathExpressionException, ParserConfigurationException, InvalidConfigException, NumberFormatException {
 		FlowSpaceFirewallParams params = ConfigParser.parseFlowSpaceFirewallParams("src/test/resources/good_poll_interval.xml");
 		assertEquals("Got 5 for stats poll interval", params.getStatsPollInterval(), 5);
+		assertEquals("Got 4 for stats poll concurrency", params.getStatsPollConcurrency(), 4);
+		assertEquals("Got 20 for stats poll timeout", params.getStatsPollTimeout(), 20);
+		assertEquals("Got 30 for cache write interval", params.getCacheWriteInterval(), 30);
+		assertEquals("Got the audit log file", "/tmp/fsfw_audit.log", params.getAuditLog());
+	}
+	
+	@Test
+	public void testBufferCacheConfig() throws IOException, SAXException, XPathExpressionException, ParserConfigurationException, InvalidConfigException{
+		ArrayList<HashMap<Long, Slicer>> slices = ConfigParser.parseConfig("src/test/resources/good_poll_interval.xml");
+		PacketBufferCache bufferCache = slices.get(0).get(new Long(3)).getBufferCache();
+		assertEquals("Got 65536 for buffer cache bytes", 65536L, bufferCache.getMaxBytes());
+		assertEquals("Got 2 for buffer cache age", 2, bufferCache.getMaxAge());
+		assertEquals("Got lru for buffer cache policy", PacketBufferCache.EvictionPolicy.LRU, bufferCache.getPolicy());
+		
+		bufferCache = slices.get(1).get(new Long(3)).getBufferCache();
+		assertEquals("Got default buffer cache bytes", PacketBufferCache.DEFAULT_MAX_BYTES, bufferCache.getMaxBytes());
+		assertEquals("Got default buffer cache age", PacketBufferCache.DEFAULT_MAX_AGE, bufferCache.getMaxAge());
+		assertEquals("Got default buffer cache policy", PacketBufferCache.EvictionPolicy.FIFO, bufferCache.getPolicy());
 	}
 	
 	@Test
 	public void testNoPollInterval() throws IOException, SAXException, XPathExpressionException, ParserConfigurationException, InvalidConfigException, NumberFormatException {
 		FlowSpaceFirewallParams params = ConfigParser.parseFlowSpaceFirewallParams("src/test/resources/no_poll_interval.xml");
 		assertEquals("Got default value 10 for stats poll interval", params.getStatsPollInterval(), 10);
+		assertEquals("Got default value for stats poll concurrency", params.getStatsPollConcurrency(), FlowStatCacher.DEFAULT_MAX_CONCURRENT_POLLS);
+		assertEquals("Got default value for stats poll timeout", params.getStatsPollTimeout(), FlowStatCacher.DEFAULT_POLL_TIMEOUT);
+		assertEquals("Got default value for cache write interval", params.getCacheWriteInterval(), FlowCacheWriter.DEFAULT_WRITE_INTERVAL);
+		assertEquals("Got default value for audit log", FlowAuditLog.DEFAULT_FILE, params.getAuditLog());
 	}
 }
\ No newline at end of file
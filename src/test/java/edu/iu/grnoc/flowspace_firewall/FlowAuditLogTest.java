@@ -0,0 +1,148 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.Wildcards.Flag;
+
+public class FlowAuditLogTest {
+
+	File file;
+
+	@Before
+	public void setUp() throws IOException{
+		file = File.createTempFile("flow_audit", ".log");
+		file.delete();
+	}
+
+	@After
+	public void tearDown(){
+		file.delete();
+		for(int i = 1; i <= 3; i++){
+			new File(file.getPath() + "." + i).delete();
+		}
+	}
+
+	private OFFlowMod buildFlowMod(short command){
+		OFFlowMod flow = new OFFlowMod();
+		flow.setCommand(command);
+		OFMatch match = new OFMatch();
+		match.setDataLayerVirtualLan((short)100);
+		match.setInputPort((short)1);
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN).matchOn(Flag.IN_PORT));
+		flow.setMatch(match);
+		return flow;
+	}
+
+	private List<String> readLines(File f) throws IOException{
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(f));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				lines.add(line);
+			}
+		}finally{
+			reader.close();
+		}
+		return lines;
+	}
+
+	@Test
+	public void testRecords() throws IOException{
+		FlowAuditLog auditLog = new FlowAuditLog(file);
+		assertTrue("accept recorded", auditLog.record(1L, "slice1", buildFlowMod(OFFlowMod.OFPFC_ADD), FlowAuditLog.Verdict.ACCEPT, FlowAuditLog.Reason.ALLOWED, 2));
+		assertTrue("deny recorded", auditLog.record(1L, "slice\"2", buildFlowMod(OFFlowMod.OFPFC_DELETE), FlowAuditLog.Verdict.DENY, FlowAuditLog.Reason.NOT_IN_SLICE, 0));
+		assertFalse("nothing written until drained", file.exists() && file.length() > 0);
+		assertEquals("both written", 2, auditLog.drain());
+		assertEquals("written counter", 2, auditLog.getWritten());
+
+		List<String> lines = readLines(file);
+		assertEquals("one line per record", 2, lines.size());
+		String line = lines.get(0);
+		assertTrue("has dpid", line.contains("\"dpid\":\"00:00:00:00:00:00:00:01\""));
+		assertTrue("has slice", line.contains("\"slice\":\"slice1\""));
+		assertTrue("has command", line.contains("\"command\":\"add\""));
+		assertTrue("has verdict", line.contains("\"verdict\":\"accept\""));
+		assertTrue("has reason", line.contains("\"reason\":\"allowed\""));
+		assertTrue("has flows", line.contains("\"flows\":2"));
+		assertTrue("has match", line.contains("\"match\":\"" + buildFlowMod(OFFlowMod.OFPFC_ADD).getMatch().toString() + "\""));
+		line = lines.get(1);
+		assertTrue("slice name escaped", line.contains("\"slice\":\"slice\\\"2\""));
+		assertTrue("has deny", line.contains("\"verdict\":\"deny\""));
+		assertTrue("has reason", line.contains("\"reason\":\"not_in_slice\""));
+	}
+
+	@Test
+	public void testMatchCopied() throws IOException{
+		FlowAuditLog auditLog = new FlowAuditLog(file);
+		OFFlowMod flow = buildFlowMod(OFFlowMod.OFPFC_ADD);
+		String recorded = flow.getMatch().toString();
+		auditLog.record(1L, "slice1", flow, FlowAuditLog.Verdict.ACCEPT, FlowAuditLog.Reason.ALLOWED, 1);
+		flow.getMatch().setDataLayerVirtualLan((short)200);
+		auditLog.drain();
+		assertTrue("match as it was when recorded", readLines(file).get(0).contains(recorded));
+	}
+
+	@Test
+	public void testFullBufferDrops() throws IOException{
+		FlowAuditLog auditLog = new FlowAuditLog(file, 4, FlowAuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+		for(int i = 0; i < 6; i++){
+			auditLog.record(1L, "slice1", buildFlowMod(OFFlowMod.OFPFC_ADD), FlowAuditLog.Verdict.ACCEPT, FlowAuditLog.Reason.ALLOWED, 1);
+		}
+		assertEquals("extra records dropped", 2, auditLog.getDropped());
+		assertEquals("buffer drained", 4, auditLog.drain());
+		assertTrue("room again", auditLog.record(1L, "slice1", buildFlowMod(OFFlowMod.OFPFC_ADD), FlowAuditLog.Verdict.ACCEPT, FlowAuditLog.Reason.ALLOWED, 1));
+		assertEquals("wrapped record drained", 1, auditLog.drain());
+		assertEquals("all kept records written", 5, readLines(file).size());
+	}
+
+	@Test
+	public void testRollOver() throws IOException{
+		//every record rolls the file
+		FlowAuditLog auditLog = new FlowAuditLog(file, 16, 10, 2);
+		for(int i = 0; i < 4; i++){
+			auditLog.record(1L, "slice1", buildFlowMod(OFFlowMod.OFPFC_ADD), FlowAuditLog.Verdict.ACCEPT, FlowAuditLog.Reason.ALLOWED, 1);
+			auditLog.drain();
+		}
+		assertEquals("current file has the newest record", 1, readLines(file).size());
+		assertTrue("first rolled file kept", new File(file.getPath() + ".1").exists());
+		assertTrue("second rolled file kept", new File(file.getPath() + ".2").exists());
+		assertFalse("only 2 rolled files kept", new File(file.getPath() + ".3").exists());
+	}
+
+	@Test
+	public void testStartStop() throws IOException{
+		FlowAuditLog auditLog = new FlowAuditLog(file);
+		auditLog.start();
+		auditLog.record(1L, "slice1", buildFlowMod(OFFlowMod.OFPFC_ADD), FlowAuditLog.Verdict.ACCEPT, FlowAuditLog.Reason.ALLOWED, 1);
+		auditLog.stop();
+		assertEquals("queued record written on stop", 1, readLines(file).size());
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFStatistics;
+
+public class FlowCacheJournalTest {
+
+	File file;
+	File snapshotFile;
+
+	@Before
+	public void setUp() throws IOException{
+		file = File.createTempFile("flowCache", ".journal");
+		snapshotFile = File.createTempFile("flowCache", ".snap");
+		snapshotFile.delete();
+	}
+
+	@After
+	public void tearDown(){
+		file.delete();
+		snapshotFile.delete();
+		//the segments are the journal path with a number added
+		File[] segments = file.getAbsoluteFile().getParentFile().listFiles();
+		if(segments != null){
+			for(File segment : segments){
+				if(segment.getName().startsWith(file.getName() + ".")){
+					segment.delete();
+				}
+			}
+		}
+	}
+
+	private OFFlowMod buildFlowMod(short vlan){
+		OFFlowMod mod = new OFFlowMod();
+		OFMatch match = new OFMatch();
+		match.setDataLayerVirtualLan(vlan);
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN));
+		mod.setMatch(match);
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionOutput output = new OFActionOutput();
+		output.setPort((short)1);
+		actions.add(output);
+		mod.setActions(actions);
+		mod.setPriority((short)500);
+		mod.setLength((short)(OFFlowMod.MINIMUM_LENGTH + output.getLength()));
+		return mod;
+	}
+
+	private List<OFFlowMod> single(OFFlowMod mod){
+		List<OFFlowMod> mods = new ArrayList<OFFlowMod>();
+		mods.add(mod);
+		return mods;
+	}
+
+	@Test
+	public void testAppendAndRead() throws IOException{
+		FlowCacheJournal journal = new FlowCacheJournal(file);
+		OFFlowMod mod = buildFlowMod((short)100);
+		journal.append(FlowCacheJournal.ADD, 1L, "slice1", mod, single(mod));
+		journal.append(FlowCacheJournal.DELETE, 2L, "slice2", mod, single(mod));
+		journal.close();
+
+		journal = new FlowCacheJournal(file);
+		List<FlowCacheJournal.Record> records = journal.read();
+		assertEquals("both records read", 2, records.size());
+		assertEquals("next sequence follows the journal", 2L, journal.getNextSeq());
+		FlowCacheJournal.Record record = records.get(0);
+		assertEquals("sequence", 0L, record.seq);
+		assertEquals("type", FlowCacheJournal.ADD, record.type);
+		assertEquals("dpid", 1L, record.dpid);
+		assertEquals("slice", "slice1", record.sliceName);
+		assertEquals("flow match", mod.getMatch(), record.flow.getMatch());
+		assertEquals("flow actions", mod.getActions(), record.flow.getActions());
+		assertEquals("flow priority", (short)500, record.flow.getPriority());
+		assertEquals("expanded flows", 1, record.flows.size());
+		assertEquals("delete record", FlowCacheJournal.DELETE, records.get(1).type);
+		journal.close();
+	}
+
+	@Test
+	public void testTornRecord() throws IOException{
+		FlowCacheJournal journal = new FlowCacheJournal(file);
+		OFFlowMod mod = buildFlowMod((short)100);
+		journal.append(FlowCacheJournal.ADD, 1L, "slice1", mod, single(mod));
+		journal.append(FlowCacheJournal.ADD, 1L, "slice1", buildFlowMod((short)101), single(buildFlowMod((short)101)));
+		journal.close();
+		assertEquals("one segment written", 1, journal.getSegmentFiles().size());
+
+		//cut the last record short like a crash would
+		RandomAccessFile raf = new RandomAccessFile(journal.getSegmentFiles().get(0), "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		journal = new FlowCacheJournal(file);
+		assertEquals("only the whole record is kept", 1, journal.read().size());
+		journal.append(FlowCacheJournal.ADD, 1L, "slice1", mod, single(mod));
+		assertEquals("records append after the whole ones", 2, journal.read().size());
+		journal.close();
+	}
+
+	@Test
+	public void testCompact() throws IOException{
+		FlowCacheJournal journal = new FlowCacheJournal(file);
+		OFFlowMod mod = buildFlowMod((short)100);
+		for(int i = 0; i < 3; i++){
+			journal.append(FlowCacheJournal.ADD, 1L, "slice1", mod, single(mod));
+		}
+		journal.compact(3);
+		assertEquals("segment before 3 is dropped", 0, journal.read().size());
+
+		for(int i = 0; i < 2; i++){
+			journal.append(FlowCacheJournal.ADD, 1L, "slice1", mod, single(mod));
+		}
+		journal.compact(4);
+		List<FlowCacheJournal.Record> records = journal.read();
+		assertEquals("a segment with a record at 4 is kept whole", 2, records.size());
+		assertEquals("sequence keeps counting", 3L, records.get(0).seq);
+		assertEquals("sequence keeps counting", 4L, records.get(1).seq);
+
+		journal.append(FlowCacheJournal.ADD, 1L, "slice1", mod, single(mod));
+		journal.compact(5);
+		records = journal.read();
+		assertEquals("appends go after the compacted records", 1, records.size());
+		assertEquals("sequence keeps counting", 5L, records.get(0).seq);
+		journal.close();
+
+		journal = new FlowCacheJournal(file);
+		assertEquals("only the kept segment is read back", 1, journal.read().size());
+		assertEquals("next sequence follows the journal", 6L, journal.getNextSeq());
+		journal.close();
+	}
+
+	@Test
+	public void testAppendDuringCompact() throws Exception{
+		final FlowCacheJournal journal = new FlowCacheJournal(file);
+		OFFlowMod mod = buildFlowMod((short)100);
+		for(int i = 0; i < 3; i++){
+			journal.append(FlowCacheJournal.ADD, 1L, "slice1", mod, single(mod));
+		}
+		journal.flush();
+
+		final List<IOException> errors = new ArrayList<IOException>();
+		Thread compactor = new Thread(new Runnable() {
+			public void run(){
+				try{
+					journal.compact(3);
+				}catch(IOException e){
+					errors.add(e);
+				}
+			}
+		});
+		int count = 100;
+		//hold the lock the compaction and the segment writes use, like a slow rotation would
+		synchronized(journal){
+			compactor.start();
+			while(compactor.getState() != Thread.State.BLOCKED){
+				Thread.sleep(1);
+			}
+			for(int i = 0; i < count; i++){
+				journal.append(FlowCacheJournal.ADD, 2L, "slice1", mod, single(mod));
+			}
+			assertEquals("appends went through while compacting", 3L + count, journal.getNextSeq());
+			assertEquals("compaction still waiting", Thread.State.BLOCKED, compactor.getState());
+		}
+		compactor.join();
+		assertTrue("compacted", errors.isEmpty());
+
+		List<FlowCacheJournal.Record> records = journal.read();
+		int appended = 0;
+		for(FlowCacheJournal.Record record : records){
+			if(record.seq >= 3){
+				assertEquals("appended record", 2L, record.dpid);
+				appended++;
+			}
+		}
+		assertEquals("every append written", count, appended);
+		for(int i = 1; i < records.size(); i++){
+			assertTrue("read in sequence order", records.get(i - 1).seq < records.get(i).seq);
+		}
+
+		journal.compact(3L + count);
+		assertEquals("everything compacted", 0, journal.read().size());
+		journal.close();
+	}
+
+	@Test
+	public void testReplay() throws IOException{
+		FlowStatCache cache = new FlowStatCache(null);
+		FlowCacheJournal journal = new FlowCacheJournal(file);
+		cache.setJournal(journal);
+		FlowCacheWriter writer = new FlowCacheWriter(cache, snapshotFile, journal);
+
+		OFFlowMod mod = buildFlowMod((short)100);
+		cache.addFlowMod(1L, "slice1", mod, single(mod));
+		assertTrue("snapshot written", writer.write());
+		assertEquals("snapshot compacted the journal", 0, journal.read().size());
+
+		//only in the journal
+		OFFlowMod mod2 = buildFlowMod((short)101);
+		cache.addFlowMod(1L, "slice1", mod2, single(mod2));
+		assertEquals("add journaled", 1, journal.read().size());
+		journal.close();
+
+		FlowStatCache restarted = new FlowStatCache(null);
+		restarted.readSnapshot(snapshotFile);
+		journal = new FlowCacheJournal(file);
+		assertEquals("only the journaled add is replayed", 1, restarted.replayJournal(journal));
+
+
+		//the restored cache has the snapshot flow and the replayed one
+		FlowCacheSnapshot snapshot = new FlowCacheSnapshot();
+		restarted.writeSnapshot(snapshot);
+		snapshot.writeTo(snapshotFile);
+		HashMap<Long, HashMap<String, List<OFStatistics>>> sliced = new HashMap<Long, HashMap<String, List<OFStatistics>>>();
+		HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>> map = new HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>>();
+		FlowCacheSnapshot.read(snapshotFile, sliced, map, new HashMap<Long, Long>());
+		assertEquals("both flows restored", 2, sliced.get(1L).get("slice1").size());
+		assertEquals("both expanded flows restored", 2, map.get(1L).size());
+		journal.close();
+	}
+}
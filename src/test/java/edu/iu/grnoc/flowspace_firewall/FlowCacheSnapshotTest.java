@@ -0,0 +1,180 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionVirtualLanIdentifier;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+
+public class FlowCacheSnapshotTest {
+
+	File file;
+
+	@Before
+	public void setUp() throws IOException{
+		file = File.createTempFile("flowCache", ".snap");
+	}
+
+	@After
+	public void tearDown(){
+		file.delete();
+	}
+
+	private FSFWOFFlowStatisticsReply buildStat(short inPort, short vlan){
+		FSFWOFFlowStatisticsReply stat = new FSFWOFFlowStatisticsReply();
+		OFMatch match = new OFMatch();
+		match.setInputPort(inPort);
+		match.setDataLayerVirtualLan(vlan);
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN).matchOn(Flag.IN_PORT));
+		stat.setMatch(match);
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionVirtualLanIdentifier setVlan = new OFActionVirtualLanIdentifier();
+		setVlan.setVirtualLanIdentifier((short)200);
+		actions.add(setVlan);
+		OFActionOutput output = new OFActionOutput();
+		output.setPort((short)2);
+		actions.add(output);
+		stat.setActions(actions);
+		stat.setLength((short)(OFFlowStatisticsReply.MINIMUM_LENGTH + setVlan.getLength() + output.getLength()));
+		stat.setPriority((short)100);
+		stat.setByteCount(1234L);
+		stat.setPacketCount(12L);
+		return stat;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException{
+		FSFWOFFlowStatisticsReply parent = buildStat((short)1, (short)100);
+		parent.setSliceName("slice1");
+		parent.setVerified(true);
+		FSFWOFFlowStatisticsReply deleted = buildStat((short)3, (short)100);
+		deleted.setSliceName("slice1");
+		deleted.setToBeDeleted(true);
+		FSFWOFFlowStatisticsReply child = buildStat((short)1, (short)101);
+		child.setSliceName("slice1");
+		child.setParentStat(parent);
+
+		HashMap<String, List<OFStatistics>> sliced = new HashMap<String, List<OFStatistics>>();
+		List<OFStatistics> stats = new ArrayList<OFStatistics>();
+		stats.add(parent);
+		stats.add(deleted);
+		sliced.put("slice1", stats);
+		HashMap<OFMatch, FSFWOFFlowStatisticsReply> map = new HashMap<OFMatch, FSFWOFFlowStatisticsReply>();
+		map.put(child.getMatch(), child);
+
+		FlowCacheSnapshot snapshot = new FlowCacheSnapshot();
+		snapshot.addSwitch(1L, 7L, sliced, map);
+		snapshot.addSwitch(2L, 0L, new HashMap<String, List<OFStatistics>>(), new HashMap<OFMatch, FSFWOFFlowStatisticsReply>());
+		snapshot.writeTo(file);
+		assertFalse("temp file was renamed", new File(file.getPath() + ".tmp").exists());
+
+		HashMap<Long, HashMap<String, List<OFStatistics>>> readSliced = new HashMap<Long, HashMap<String, List<OFStatistics>>>();
+		HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>> readMap = new HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>>();
+		HashMap<Long, Long> journalSeqs = new HashMap<Long, Long>();
+		FlowCacheSnapshot.read(file, readSliced, readMap, journalSeqs);
+
+		assertEquals("both switches read", 2, readSliced.size());
+		assertTrue("empty switch read", readSliced.get(2L).isEmpty());
+		assertTrue("empty switch read", readMap.get(2L).isEmpty());
+		assertEquals("journal sequence read", Long.valueOf(7L), journalSeqs.get(1L));
+
+		List<OFStatistics> readStats = readSliced.get(1L).get("slice1");
+		assertEquals("sliced stats read", 2, readStats.size());
+		FSFWOFFlowStatisticsReply readParent = (FSFWOFFlowStatisticsReply) readStats.get(0);
+		assertEquals("match read", parent.getMatch(), readParent.getMatch());
+		assertEquals("actions read", parent.getActions(), readParent.getActions());
+		assertEquals("byte count read", 1234L, readParent.getByteCount());
+		assertEquals("packet count read", 12L, readParent.getPacketCount());
+		assertEquals("priority read", (short)100, readParent.getPriority());
+		assertEquals("slice name read", "slice1", readParent.getSliceName());
+		assertTrue("verified read", readParent.isVerified());
+		assertFalse("not deleted", readParent.toBeDeleted());
+		assertTrue("deleted read", ((FSFWOFFlowStatisticsReply) readStats.get(1)).toBeDeleted());
+
+		FSFWOFFlowStatisticsReply readChild = readMap.get(1L).get(child.getMatch());
+		assertNotNull("mapped flow read", readChild);
+		assertTrue("mapped flow has a parent", readChild.hasParent());
+		assertSame("mapped flow points at the sliced stat", readParent, readChild.getParentStat());
+	}
+
+	@Test
+	public void testEmptySnapshot() throws IOException{
+		new FlowCacheSnapshot().writeTo(file);
+		HashMap<Long, HashMap<String, List<OFStatistics>>> readSliced = new HashMap<Long, HashMap<String, List<OFStatistics>>>();
+		HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>> readMap = new HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>>();
+		HashMap<Long, Long> journalSeqs = new HashMap<Long, Long>();
+		FlowCacheSnapshot.read(file, readSliced, readMap, journalSeqs);
+		assertTrue("nothing read", readSliced.isEmpty());
+		assertTrue("nothing read", readMap.isEmpty());
+	}
+
+	@Test
+	public void testInvalidSnapshot() throws IOException{
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(new byte[]{0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b});
+		fos.close();
+		try{
+			FlowCacheSnapshot.read(file, new HashMap<Long, HashMap<String, List<OFStatistics>>>(), new HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>>(), new HashMap<Long, Long>());
+			fail("invalid snapshot was read");
+		}catch(IOException e){
+			//expected
+		}
+	}
+
+	@Test
+	public void testTruncatedSnapshot() throws IOException{
+		FSFWOFFlowStatisticsReply stat = buildStat((short)1, (short)100);
+		stat.setSliceName("slice1");
+		HashMap<String, List<OFStatistics>> sliced = new HashMap<String, List<OFStatistics>>();
+		List<OFStatistics> stats = new ArrayList<OFStatistics>();
+		stats.add(stat);
+		sliced.put("slice1", stats);
+		FlowCacheSnapshot snapshot = new FlowCacheSnapshot();
+		snapshot.addSwitch(1L, 7L, sliced, new HashMap<OFMatch, FSFWOFFlowStatisticsReply>());
+		snapshot.writeTo(file);
+
+		//chop off the end of the file
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 10);
+		raf.close();
+
+		HashMap<Long, HashMap<String, List<OFStatistics>>> readSliced = new HashMap<Long, HashMap<String, List<OFStatistics>>>();
+		try{
+			FlowCacheSnapshot.read(file, readSliced, new HashMap<Long, HashMap<OFMatch, FSFWOFFlowStatisticsReply>>(), new HashMap<Long, Long>());
+			fail("truncated snapshot was read");
+		}catch(IOException e){
+			//expected
+		}
+		assertTrue("nothing read from truncated snapshot", readSliced.isEmpty());
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.Wildcards.Flag;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+
+public class FlowCacheWriterTest {
+
+	File file;
+	FlowStatCache cache;
+
+	@Before
+	public void setUp() throws IOException{
+		file = File.createTempFile("flowCache", ".snap");
+		file.delete();
+		cache = new FlowStatCache(null);
+	}
+
+	@After
+	public void tearDown(){
+		file.delete();
+	}
+
+	private OFFlowMod buildFlowMod(short vlan){
+		OFFlowMod mod = new OFFlowMod();
+		OFMatch match = new OFMatch();
+		match.setDataLayerVirtualLan(vlan);
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN));
+		mod.setMatch(match);
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionOutput output = new OFActionOutput();
+		output.setPort((short)1);
+		actions.add(output);
+		mod.setActions(actions);
+		mod.setLength((short)(OFFlowMod.MINIMUM_LENGTH + output.getLength()));
+		return mod;
+	}
+
+	@Test
+	public void testWriteOnlyWhenChanged(){
+		FlowCacheWriter writer = new FlowCacheWriter(cache, file);
+		assertFalse("nothing written for an unchanged cache", writer.write());
+		assertFalse("no snapshot", file.exists());
+
+		OFFlowMod mod = buildFlowMod((short)100);
+		List<OFFlowMod> mods = new ArrayList<OFFlowMod>();
+		mods.add(mod);
+		cache.addFlowMod(1L, "slice1", mod, mods);
+		assertTrue("snapshot written after a flow was added", writer.write());
+		assertTrue("snapshot exists", file.exists());
+		assertFalse("nothing written when nothing changed since", writer.write());
+
+		cache.delFlowMod(1L, "slice1", mod, mods);
+		assertTrue("snapshot written after a flow was deleted", writer.write());
+	}
+
+	@Test
+	public void testSnapshotLoads() throws IOException{
+		OFFlowMod mod = buildFlowMod((short)100);
+		List<OFFlowMod> mods = new ArrayList<OFFlowMod>();
+		mods.add(mod);
+		cache.addFlowMod(1L, "slice1", mod, mods);
+		FlowCacheWriter writer = new FlowCacheWriter(cache, file);
+		assertTrue("snapshot written", writer.write());
+
+		FlowStatCache loaded = new FlowStatCache(null);
+		loaded.readSnapshot(file);
+		FlowCacheWriter loadedWriter = new FlowCacheWriter(loaded, file);
+		assertFalse("a loaded cache is not written again", loadedWriter.write());
+	}
+}
@@ -989,6 +989,21 @@ public class FlowStatSlicerTest {
 		assertEquals("Number of sliced stat is same as number of total stats",  allowedStats.size(),slicedStats.size());
 	}
 	
+	@Test
+	public void testSliceStatsNotSeen(){
+		cache = new FlowStatCache(fsfw);
+		cache.setFlowCache(sw.getId(), allowedStats);
+		//the flows are still cached but were not in the last poll
+		cache.setFlowCache(sw.getId(), new ArrayList<OFStatistics>());
+		List<OFStatistics> slicedStats = cache.getSlicedFlowStats(sw.getId(), slicer.getSliceName());
+		assertEquals("Number of sliced stat is same as number of total stats",  allowedStats.size(),slicedStats.size());
+		for(OFStatistics stat : slicedStats){
+			OFFlowStatisticsReply flowStat = (OFFlowStatisticsReply) stat;
+			assertEquals("flowStat byte count is zero", 0L, flowStat.getByteCount());
+			assertEquals("flowStat packet count is zero", 0L, flowStat.getPacketCount());
+		}
+	}
+	
 	@Test
 	public void testSliceStatsMixed(){
 		cache = new FlowStatCache(fsfw);
@@ -1099,6 +1114,44 @@ public class FlowStatSlicerTest {
 		assertEquals("flowStat packet count is correct", 4L,flowStat.getPacketCount());
 	}
 	
+	@Test
+	public void testDeletedExpandedFlowStats(){
+		cache = new FlowStatCache(fsfw);
+		
+		OFFlowMod mod = new OFFlowMod();
+		OFMatch match = new OFMatch();
+		match.setDataLayerVirtualLan((short)300);
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN));
+		mod.setMatch(match);
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionOutput output = new OFActionOutput();
+		output.setPort((short)65533);
+		actions.add(output);
+		mod.setActions(actions);
+		
+		List<OFFlowMod> mods = slicerExpanded.allowedFlows(mod);
+		cache.addFlowMod(sw.getId(), slicerExpanded.getSliceName(), mod, mods);
+		cache.setFlowCache(sw.getId(), expandedStats);
+		List<OFStatistics> slicedStats = cache.getSlicedFlowStats(sw.getId(), slicerExpanded.getSliceName());
+		assertEquals("Sliced stats", 6, slicedStats.size());
+		
+		//deleting the flow hides it right away
+		cache.delFlowMod(sw.getId(), slicerExpanded.getSliceName(), mod, mods);
+		slicedStats = cache.getSlicedFlowStats(sw.getId(), slicerExpanded.getSliceName());
+		assertEquals("Sliced stats after delete", 5, slicedStats.size());
+		
+		//the next poll removes it and its expanded flows
+		cache.setFlowCache(sw.getId(), new ArrayList<OFStatistics>());
+		slicedStats = cache.getSlicedFlowStats(sw.getId(), slicerExpanded.getSliceName());
+		assertEquals("Sliced stats after poll", 5, slicedStats.size());
+		
+		//and it can be added back
+		cache.addFlowMod(sw.getId(), slicerExpanded.getSliceName(), mod, mods);
+		cache.setFlowCache(sw.getId(), expandedStats);
+		slicedStats = cache.getSlicedFlowStats(sw.getId(), slicerExpanded.getSliceName());
+		assertEquals("Sliced stats after re-adding", 6, slicedStats.size());
+	}
+	
 	@Test
 	public void testThreadSafeStats(){
 		cache = new FlowStatCache(fsfw);
@@ -0,0 +1,86 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+
+public class FlowTimeoutQueueTest {
+
+	private static final long SECOND = 1000000000L;
+
+	@Test
+	public void testExpiresInOrder(){
+		FlowTimeoutQueue queue = new FlowTimeoutQueue();
+		FlowTimeout late = new FlowTimeout(new OFFlowMod(), 30, true, null);
+		FlowTimeout early = new FlowTimeout(new OFFlowMod(), 10, true, null);
+		FlowTimeout middle = new FlowTimeout(new OFFlowMod(), 20, false, null);
+		queue.add(late);
+		queue.add(early);
+		queue.add(middle);
+		assertEquals("all timeouts queued", 3, queue.size());
+		assertEquals("all timeouts returned", 3, queue.getTimeouts().size());
+		assertEquals("only the idle timeout", 1, queue.getIdleTimeouts().size());
+
+		long now = System.nanoTime();
+		assertTrue("nothing expired yet", queue.pollExpired(now).isEmpty());
+
+		List<FlowTimeout> expired = queue.pollExpired(now + 15 * SECOND);
+		assertEquals("one expired", 1, expired.size());
+		assertSame("earliest expired", early, expired.get(0));
+
+		expired = queue.pollExpired(now + 40 * SECOND);
+		assertEquals("the rest expired", 2, expired.size());
+		assertEquals("queue is empty", 0, queue.size());
+	}
+
+	@Test
+	public void testHardOnly(){
+		FlowTimeoutQueue queue = new FlowTimeoutQueue();
+		FlowTimeout hard = new FlowTimeout(new OFFlowMod(), 10, true, null);
+		FlowTimeout idle = new FlowTimeout(new OFFlowMod(), 5, false, null);
+		queue.add(hard);
+		queue.add(idle);
+
+		List<FlowTimeout> expired = queue.pollExpiredHard(System.nanoTime() + 20 * SECOND);
+		assertEquals("only the hard timeout", 1, expired.size());
+		assertSame("hard timeout expired", hard, expired.get(0));
+		assertEquals("idle timeout still queued", 1, queue.size());
+	}
+
+	@Test
+	public void testUsedIdleTimeoutIsRequeued() throws InterruptedException{
+		FlowTimeoutQueue queue = new FlowTimeoutQueue();
+		FlowTimeout idle = new FlowTimeout(new OFFlowMod(), 10, false, null);
+		queue.add(idle);
+		long queued = idle.getExpires();
+		Thread.sleep(10);
+		idle.updateLastUsed();
+		assertTrue("expiration was pushed back", idle.getExpires() > queued);
+
+		//past where it was queued but before it expires now
+		assertTrue("used flow did not expire", queue.pollExpired(queued + 1).isEmpty());
+		assertEquals("used flow is still queued", 1, queue.size());
+
+		List<FlowTimeout> expired = queue.pollExpired(idle.getExpires() + 1);
+		assertEquals("expired at its new time", 1, expired.size());
+		assertEquals("queue is empty", 0, queue.size());
+	}
+}
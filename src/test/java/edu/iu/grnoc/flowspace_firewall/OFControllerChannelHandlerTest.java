@@ -0,0 +1,113 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
+
+public class OFControllerChannelHandlerTest {
+
+	private List<List<OFMessage>> writes;
+	private List<Runnable> flushes;
+	private OFControllerChannelHandler handler;
+
+	@Before
+	public void setUp() throws Exception{
+		writes = new ArrayList<List<OFMessage>>();
+		flushes = new ArrayList<Runnable>();
+
+		Channel channel = createNiceMock(Channel.class);
+		expect(channel.isConnected()).andReturn(true).anyTimes();
+		expect(channel.write(EasyMock.anyObject())).andAnswer(new IAnswer<ChannelFuture>() {
+			@SuppressWarnings("unchecked")
+			public ChannelFuture answer(){
+				writes.add(new ArrayList<OFMessage>((List<OFMessage>)EasyMock.getCurrentArguments()[0]));
+				return null;
+			}
+		}).anyTimes();
+		EasyMock.replay(channel);
+
+		ChannelStateEvent event = createMock(ChannelStateEvent.class);
+		expect(event.getChannel()).andReturn(channel).anyTimes();
+		EasyMock.replay(event);
+
+		//flushes only run when the test says so
+		handler = new OFControllerChannelHandler(new Executor() {
+			public void execute(Runnable command){
+				flushes.add(command);
+			}
+		});
+		handler.channelConnected(null, event);
+		assertEquals("hello was written", 1, writes.size());
+		assertEquals("hello was written", OFType.HELLO, writes.get(0).get(0).getType());
+		writes.clear();
+	}
+
+	private void runFlushes(){
+		while(!flushes.isEmpty()){
+			flushes.remove(0).run();
+		}
+	}
+
+	@Test
+	public void testPacketInBurstFromOneThread() throws Exception{
+		int count = 100;
+		List<OFMessage> sent = new ArrayList<OFMessage>();
+		for(int i = 0; i < count; i++){
+			OFPacketIn pcktIn = new OFPacketIn();
+			pcktIn.setXid(i);
+			sent.add(pcktIn);
+			handler.sendMessage(pcktIn);
+		}
+		assertEquals("nothing written on the sending thread", 0, writes.size());
+		assertEquals("one flush scheduled for the burst", 1, flushes.size());
+
+		runFlushes();
+		assertTrue("burst of " + count + " took " + writes.size() + " writes", writes.size() < count);
+		assertEquals("burst written at once", 1, writes.size());
+		assertEquals("every packet in written in order", sent, writes.get(0));
+	}
+
+	@Test
+	public void testSendAfterFlush() throws Exception{
+		handler.sendMessage(new OFPacketIn());
+		runFlushes();
+		assertEquals("first message written", 1, writes.size());
+
+		//the flush has run so the next message needs a new one
+		handler.sendMessage(new OFPacketIn());
+		assertEquals("new flush scheduled", 1, flushes.size());
+		runFlushes();
+		assertEquals("second message written", 2, writes.size());
+	}
+}
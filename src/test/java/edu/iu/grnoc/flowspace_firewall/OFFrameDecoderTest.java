@@ -0,0 +1,112 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+
+import org.easymock.EasyMock;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.MessageParseException;
+
+public class OFFrameDecoderTest {
+
+	private Channel channel;
+	private OFFrameDecoder decoder;
+	
+	@Before
+	public void setUp(){
+		channel = createMock(Channel.class);
+		expect(channel.isConnected()).andReturn(true).anyTimes();
+		EasyMock.replay(channel);
+		decoder = new OFFrameDecoder();
+	}
+	
+	@Test
+	public void testValidMessages() throws Exception{
+		ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+		OFBarrierRequest barrier = new OFBarrierRequest();
+		barrier.setXid(1);
+		barrier.writeTo(buf);
+		OFEchoRequest echo = new OFEchoRequest();
+		echo.setXid(2);
+		echo.setPayload(new byte[]{1,2,3,4});
+		echo.setLengthU(OFEchoRequest.MINIMUM_LENGTH + 4);
+		echo.writeTo(buf);
+		
+		OFFrameDecoder.DecodedMessages msgs = (OFFrameDecoder.DecodedMessages)decoder.decode(null, channel, buf);
+		assertEquals("2 messages decoded", 2, msgs.size());
+		assertEquals("barrier first", OFType.BARRIER_REQUEST, msgs.get(0).getType());
+		assertEquals("echo second", OFType.ECHO_REQUEST, msgs.get(1).getType());
+		assertTrue("barrier is valid", msgs.isValid(msgs.get(0)));
+		assertTrue("echo is valid", msgs.isValid(msgs.get(1)));
+		assertFalse("buffer is used up", buf.readable());
+	}
+	
+	@Test
+	public void testInvalidLength() throws Exception{
+		ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+		//a barrier claiming 4 bytes more than it has
+		OFBarrierRequest barrier = new OFBarrierRequest();
+		barrier.setXid(1);
+		barrier.setLengthU(OFBarrierRequest.MINIMUM_LENGTH + 4);
+		barrier.writeTo(buf);
+		buf.writeInt(0);
+		OFBarrierRequest barrier2 = new OFBarrierRequest();
+		barrier2.setXid(2);
+		barrier2.writeTo(buf);
+		
+		OFFrameDecoder.DecodedMessages msgs = (OFFrameDecoder.DecodedMessages)decoder.decode(null, channel, buf);
+		assertEquals("2 messages decoded", 2, msgs.size());
+		assertFalse("first barrier is not valid", msgs.isValid(msgs.get(0)));
+		assertEquals("second barrier still framed properly", 2, msgs.get(1).getXid());
+		assertTrue("second barrier is valid", msgs.isValid(msgs.get(1)));
+	}
+	
+	@Test
+	public void testPartialFrame() throws Exception{
+		ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+		OFBarrierRequest barrier = new OFBarrierRequest();
+		barrier.setXid(1);
+		barrier.writeTo(buf);
+		buf.writeByte(1);
+		buf.writeByte(18);
+		buf.writeShort(8);
+		
+		OFFrameDecoder.DecodedMessages msgs = (OFFrameDecoder.DecodedMessages)decoder.decode(null, channel, buf);
+		assertEquals("1 message decoded", 1, msgs.size());
+		assertEquals("half a header left over", 4, buf.readableBytes());
+		assertNull("nothing more to decode", decoder.decode(null, channel, buf));
+	}
+	
+	@Test(expected = MessageParseException.class)
+	public void testBadFrame() throws Exception{
+		ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+		buf.writeByte(1);
+		buf.writeByte(18);
+		buf.writeShort(4);
+		buf.writeInt(1);
+		decoder.decode(null, channel, buf);
+	}
+}
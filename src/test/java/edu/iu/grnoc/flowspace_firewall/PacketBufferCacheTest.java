@@ -0,0 +1,91 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PacketBufferCacheTest {
+
+	@Test
+	public void testHitAndMiss(){
+		PacketBufferCache cache = new PacketBufferCache();
+		byte[] data = new byte[]{1,2,3,4};
+		cache.put(1, data);
+		assertSame("buffer found", data, cache.get(1));
+		assertNull("unknown buffer", cache.get(2));
+		assertEquals("one hit", 1, cache.getHits());
+		assertEquals("one miss", 1, cache.getMisses());
+		assertEquals("one buffer", 1, cache.size());
+	}
+
+	@Test
+	public void testByteBudget(){
+		//room for 2 buffers of 1000 bytes
+		PacketBufferCache cache = new PacketBufferCache(2500, 10, PacketBufferCache.EvictionPolicy.FIFO);
+		cache.put(1, new byte[1000]);
+		cache.put(2, new byte[1000]);
+		cache.put(3, new byte[1000]);
+		assertEquals("oldest evicted", 2, cache.size());
+		assertNull("oldest evicted", cache.get(1));
+		assertNotNull("newer kept", cache.get(2));
+		assertNotNull("newest kept", cache.get(3));
+		assertEquals("one eviction", 1, cache.getEvictions());
+		assertTrue("under budget", cache.getBytes() <= 2500);
+
+		cache.put(4, new byte[5000]);
+		assertNull("too big to cache", cache.get(4));
+		assertEquals("nothing evicted for it", 2, cache.size());
+	}
+
+	@Test
+	public void testReplaceBuffer(){
+		PacketBufferCache cache = new PacketBufferCache(2500, 10, PacketBufferCache.EvictionPolicy.FIFO);
+		cache.put(1, new byte[1000]);
+		long bytes = cache.getBytes();
+		byte[] data = new byte[1000];
+		cache.put(1, data);
+		assertEquals("replaced buffer counted once", bytes, cache.getBytes());
+		assertSame("newest data returned", data, cache.get(1));
+	}
+
+	@Test
+	public void testLRUSecondChance(){
+		PacketBufferCache cache = new PacketBufferCache(2500, 10, PacketBufferCache.EvictionPolicy.LRU);
+		cache.put(1, new byte[1000]);
+		cache.put(2, new byte[1000]);
+		assertNotNull("oldest used", cache.get(1));
+		cache.put(3, new byte[1000]);
+		assertNotNull("used buffer kept", cache.get(1));
+		assertNull("unused buffer evicted", cache.get(2));
+		assertNotNull("newest kept", cache.get(3));
+	}
+
+	@Test
+	public void testAge() throws InterruptedException{
+		PacketBufferCache cache = new PacketBufferCache(PacketBufferCache.DEFAULT_MAX_BYTES, 1, PacketBufferCache.EvictionPolicy.FIFO);
+		cache.put(1, new byte[100]);
+		cache.put(2, new byte[100]);
+		assertNotNull("buffer found", cache.get(1));
+		Thread.sleep(1500);
+		assertNull("buffer aged out", cache.get(1));
+		cache.put(3, new byte[100]);
+		assertEquals("aged buffers removed", 1, cache.size());
+		assertEquals("both aged out", 2, cache.getExpirations());
+		assertEquals("stats reported", 2L, cache.getStats().get("expirations"));
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ Copyright 2014 Trustees of Indiana University
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package edu.iu.grnoc.flowspace_firewall;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFPacketIn;
+
+public class PacketInDemuxTest {
+
+	IOFSwitch sw;
+	Proxy proxy1;
+	Proxy proxy2;
+	Proxy proxy3;
+	List<Proxy> proxies;
+
+	private ImmutablePort buildPort(String name, short number){
+		ImmutablePort p = createMock(ImmutablePort.class);
+		expect(p.getName()).andReturn(name).anyTimes();
+		expect(p.getPortNumber()).andReturn(number).anyTimes();
+		EasyMock.replay(p);
+		return p;
+	}
+
+	private Proxy buildProxy(Slicer slicer){
+		Proxy p = createMock(Proxy.class);
+		expect(p.getSlicer()).andReturn(slicer).anyTimes();
+		EasyMock.replay(p);
+		return p;
+	}
+
+	private byte[] buildPacket(short vlan){
+		byte[] packet;
+		if(vlan == -1){
+			packet = new byte[60];
+			packet[12] = (byte)0x08;
+			packet[13] = (byte)0x00;
+		}else{
+			packet = new byte[64];
+			packet[12] = (byte)0x81;
+			packet[13] = (byte)0x00;
+			//set the priority bits as well to make sure they are ignored
+			packet[14] = (byte)(0xe0 | ((vlan >> 8) & 0x0f));
+			packet[15] = (byte)(vlan & 0xff);
+			packet[16] = (byte)0x08;
+			packet[17] = (byte)0x00;
+		}
+		return packet;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp(){
+		ArrayList <ImmutablePort> ports = new ArrayList <ImmutablePort>();
+		ports.add(buildPort("foo", (short)1));
+		ports.add(buildPort("foo2", (short)2));
+		ports.add(buildPort("foo3", (short)3));
+
+		sw = createMock(IOFSwitch.class);
+		expect(sw.getId()).andReturn(1L).anyTimes();
+		expect(sw.getStringId()).andReturn("0000000").anyTimes();
+		expect(sw.getPorts()).andReturn((Collection <ImmutablePort>) ports).anyTimes();
+		EasyMock.replay(sw);
+
+		VLANSlicer slicer1 = new VLANSlicer();
+		slicer1.setSliceName("slice1");
+		PortConfig pConfig = new PortConfig();
+		pConfig.setPortName("foo");
+		VLANRange range = new VLANRange();
+		range.setVlanAvail((short)100, true);
+		range.setVlanAvail((short)101, true);
+		range.setVlanAvail((short)-1, true);
+		pConfig.setVLANRange(range);
+		slicer1.setPortConfig("foo", pConfig);
+		pConfig = new PortConfig();
+		pConfig.setPortName("foo2");
+		range = new VLANRange();
+		range.setVlanAvail((short)100, true);
+		pConfig.setVLANRange(range);
+		slicer1.setPortConfig("foo2", pConfig);
+
+		VLANSlicer slicer2 = new VLANSlicer();
+		slicer2.setSliceName("slice2");
+		pConfig = new PortConfig();
+		pConfig.setPortName("foo");
+		range = new VLANRange();
+		range.setVlanAvail((short)200, true);
+		pConfig.setVLANRange(range);
+		slicer2.setPortConfig("foo", pConfig);
+		pConfig = new PortConfig();
+		pConfig.setPortName("foo3");
+		range = new VLANRange();
+		range.setVlanAvail((short)4095, true);
+		range.setVlanAvail((short)300, true);
+		pConfig.setVLANRange(range);
+		slicer2.setPortConfig("foo3", pConfig);
+		//port that is not on the switch
+		pConfig = new PortConfig();
+		pConfig.setPortName("foo9");
+		range = new VLANRange();
+		range.setVlanAvail((short)200, true);
+		pConfig.setVLANRange(range);
+		slicer2.setPortConfig("foo9", pConfig);
+
+		//overlaps with slice 1 on port 2 vlan 100
+		VLANSlicer slicer3 = new VLANSlicer();
+		slicer3.setSliceName("slice3");
+		pConfig = new PortConfig();
+		pConfig.setPortName("foo2");
+		range = new VLANRange();
+		range.setVlanAvail((short)100, true);
+		range.setVlanAvail((short)102, true);
+		pConfig.setVLANRange(range);
+		slicer3.setPortConfig("foo2", pConfig);
+
+		proxy1 = buildProxy(slicer1);
+		proxy2 = buildProxy(slicer2);
+		proxy3 = buildProxy(slicer3);
+		proxies = new ArrayList<Proxy>();
+		proxies.add(proxy1);
+		proxies.add(proxy2);
+		proxies.add(proxy3);
+	}
+
+	@Test
+	public void testGetVlan(){
+		assertEquals("untagged packet", (short)-1, PacketInDemux.getVlan(buildPacket((short)-1)));
+		assertEquals("tagged packet", (short)100, PacketInDemux.getVlan(buildPacket((short)100)));
+		assertEquals("tagged packet max vlan", (short)4095, PacketInDemux.getVlan(buildPacket((short)4095)));
+		assertEquals("priority tagged packet", (short)0, PacketInDemux.getVlan(buildPacket((short)0)));
+		assertEquals("short packet", (short)0, PacketInDemux.getVlan(new byte[10]));
+		assertEquals("no packet", (short)0, PacketInDemux.getVlan(new byte[0]));
+		assertEquals("null packet", (short)0, PacketInDemux.getVlan(null));
+	}
+
+	@Test
+	public void testGetProxies(){
+		PacketInDemux demux = new PacketInDemux(sw, proxies);
+
+		Proxy[] owners = demux.getProxies((short)1, (short)100);
+		assertNotNull("port 1 vlan 100 has an owner", owners);
+		assertEquals("port 1 vlan 100 has one owner", 1, owners.length);
+		assertSame("port 1 vlan 100 belongs to slice 1", proxy1, owners[0]);
+
+		owners = demux.getProxies((short)1, (short)-1);
+		assertNotNull("port 1 untagged has an owner", owners);
+		assertSame("port 1 untagged belongs to slice 1", proxy1, owners[0]);
+
+		owners = demux.getProxies((short)1, (short)200);
+		assertNotNull("port 1 vlan 200 has an owner", owners);
+		assertSame("port 1 vlan 200 belongs to slice 2", proxy2, owners[0]);
+
+		owners = demux.getProxies((short)3, (short)4095);
+		assertNotNull("port 3 vlan 4095 has an owner", owners);
+		assertSame("port 3 vlan 4095 belongs to slice 2", proxy2, owners[0]);
+
+		owners = demux.getProxies((short)2, (short)102);
+		assertNotNull("port 2 vlan 102 has an owner", owners);
+		assertSame("port 2 vlan 102 belongs to slice 3", proxy3, owners[0]);
+
+		assertNull("port 1 vlan 102 has no owner", demux.getProxies((short)1, (short)102));
+		assertNull("port 2 untagged has no owner", demux.getProxies((short)2, (short)-1));
+		assertNull("port 3 vlan 100 has no owner", demux.getProxies((short)3, (short)100));
+		assertNull("port 4 is not in any slice", demux.getProxies((short)4, (short)100));
+		assertNull("vlan 0 is never allowed", demux.getProxies((short)1, (short)0));
+	}
+
+	@Test
+	public void testOverlappingSlices(){
+		PacketInDemux demux = new PacketInDemux(sw, proxies);
+		Proxy[] owners = demux.getProxies((short)2, (short)100);
+		assertNotNull("port 2 vlan 100 has owners", owners);
+		assertEquals("port 2 vlan 100 has two owners", 2, owners.length);
+		assertSame("slice 1 owns port 2 vlan 100", proxy1, owners[0]);
+		assertSame("slice 3 owns port 2 vlan 100", proxy3, owners[1]);
+	}
+
+	@Test
+	public void testGetProxiesFromPacketIn(){
+		PacketInDemux demux = new PacketInDemux(sw, proxies);
+
+		OFPacketIn pcktIn = new OFPacketIn();
+		pcktIn.setInPort((short)1);
+		pcktIn.setPacketData(buildPacket((short)101));
+		Proxy[] owners = demux.getProxies(pcktIn);
+		assertNotNull("packet in has an owner", owners);
+		assertSame("packet in belongs to slice 1", proxy1, owners[0]);
+
+		pcktIn.setInPort((short)3);
+		pcktIn.setPacketData(buildPacket((short)300));
+		owners = demux.getProxies(pcktIn);
+		assertNotNull("packet in has an owner", owners);
+		assertSame("packet in belongs to slice 2", proxy2, owners[0]);
+
+		pcktIn.setInPort((short)3);
+		pcktIn.setPacketData(buildPacket((short)-1));
+		assertNull("untagged packet on port 3 has no owner", demux.getProxies(pcktIn));
+
+		pcktIn.setPacketData(new byte[0]);
+		assertNull("empty packet has no owner", demux.getProxies(pcktIn));
+	}
+
+	@Test
+	public void testNoProxies(){
+		PacketInDemux demux = new PacketInDemux(sw, null);
+		assertNull("nothing owned without proxies", demux.getProxies((short)1, (short)100));
+		demux = new PacketInDemux(sw, new ArrayList<Proxy>());
+		assertNull("nothing owned without proxies", demux.getProxies((short)1, (short)100));
+	}
+}
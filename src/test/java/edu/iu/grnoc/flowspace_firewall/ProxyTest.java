@@ -752,6 +752,60 @@ public class ProxyTest {
 		
 	}
 	
+	@Test
+	public void testSwitchBatch(){
+		setupSlicer();
+		messagesSentToSwitch.clear();
+		messagesSentToController.clear();
+		Proxy proxy = new Proxy(sw, slicer, fsfw);
+		expect(channel.isConnected()).andReturn(true).anyTimes();
+		expect(handler.isHandshakeComplete()).andReturn(true).anyTimes();
+		EasyMock.replay(handler);
+		EasyMock.replay(channel);
+		proxy.connect(channel);
+		assertTrue("Proxy is now connected", proxy.connected());
+		
+		OFPacketOut out = new OFPacketOut();
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionOutput output = new OFActionOutput();
+		output.setType(OFActionType.OUTPUT);
+		output.setPort((short)1);
+		actions.add(output);
+		out.setActions(actions);
+		Ethernet pkt = new Ethernet();
+		pkt.setVlanID((short)1000);
+		pkt.setDestinationMACAddress("aa:bb:cc:dd:ee:ff");
+		pkt.setSourceMACAddress("ff:ee:dd:cc:bb:aa");
+		pkt.setEtherType((short)35020);
+		out.setPacketData(pkt.serialize());
+		
+		OFBarrierRequest barrierRequest = new OFBarrierRequest();
+		barrierRequest.setXid(10);
+		
+		//messages from the controller are held until the batch ends
+		proxy.startSwitchBatch();
+		proxy.toSwitch(out, null);
+		proxy.toSwitch(barrierRequest, null);
+		assertTrue("Nothing sent to the switch yet", messagesSentToSwitch.size() == 0);
+		proxy.endSwitchBatch();
+		assertTrue("2 messages were sent to the switch", messagesSentToSwitch.size() == 2);
+		assertTrue("PacketOut was sent first", messagesSentToSwitch.get(0).getType() == OFType.PACKET_OUT);
+		assertTrue("Barrier was sent second", messagesSentToSwitch.get(1).getType() == OFType.BARRIER_REQUEST);
+		
+		//anything written outside of the batch pushes the batch out first
+		messagesSentToSwitch.clear();
+		barrierRequest = new OFBarrierRequest();
+		barrierRequest.setXid(11);
+		proxy.startSwitchBatch();
+		proxy.toSwitch(out, null);
+		proxy.toSwitch(barrierRequest, cntx);
+		assertTrue("2 messages were sent to the switch", messagesSentToSwitch.size() == 2);
+		assertTrue("PacketOut was sent first", messagesSentToSwitch.get(0).getType() == OFType.PACKET_OUT);
+		assertTrue("Barrier was sent second", messagesSentToSwitch.get(1).getType() == OFType.BARRIER_REQUEST);
+		proxy.endSwitchBatch();
+		assertTrue("Nothing else was sent", messagesSentToSwitch.size() == 2);
+	}
+	
 	@Test
 	public void testErrorReturned(){
 		setupSlicer();
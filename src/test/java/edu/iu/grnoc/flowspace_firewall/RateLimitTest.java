@@ -18,11 +18,6 @@ package edu.iu.grnoc.flowspace_firewall;
 
 import static org.junit.Assert.*;
 
-import java.util.Date;
-
-
-
-import org.apache.commons.collections4.queue.CircularFifoQueue;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -79,19 +74,50 @@ public class RateLimitTest {
 	}
 	
 	@Test
-	public void testRateLimitFast(){
-		RateTracker tracker = new RateTracker(2000,10000);
-	
-		CircularFifoQueue<Date> fifo = tracker.getFifo();
-		Date now = new Date();
+	public void testRateLimitBurst(){
+		RateTracker tracker = new RateTracker(2000,10);
+		assertTrue("burst is a tenth of the size", tracker.getBurst() == 200);
+		
+		int accepted = 0;
 		for(int i =0; i< 1000;i++){
-			fifo.add(now);
+			if(tracker.okToProcess()){
+				accepted++;
+			}
 		}
+		assertTrue("Tracker accepted " + accepted, accepted == 200);
+		assertFalse("Tracker is over the limit", tracker.okToProcess());
 		
-		assertTrue("Tracker Rate is " + tracker.getRate(), tracker.getRate() == (1000 * 1000));
-		
+		tracker.setBurst(500);
+		accepted = 0;
+		for(int i =0; i< 1000;i++){
+			if(tracker.okToProcess()){
+				accepted++;
+			}
+		}
+		assertTrue("Tracker accepted " + accepted, accepted == 300);
 	}
 	
+	@Test
+	public void testRateLimitZero(){
+		RateTracker tracker = new RateTracker(100,0);
+		assertFalse("nothing is allowed at a rate of 0", tracker.okToProcess());
+		tracker.setRate(10);
+		assertTrue("allowed after the rate is raised", tracker.okToProcess());
+	}
 	
+	@Test
+	public void testRateLimitUnlimited(){
+		//used as no limit, the interval would round down to 0
+		RateTracker tracker = new RateTracker(100,Integer.MAX_VALUE);
+		for(int i =0; i< 10000;i++){
+			assertTrue("message " + i + " allowed", tracker.okToProcess());
+		}
+		tracker.setRate(1000000000);
+		for(int i =0; i< 10000;i++){
+			assertTrue("message " + i + " allowed", tracker.okToProcess());
+		}
+		tracker.setRate(0);
+		assertFalse("nothing is allowed at a rate of 0", tracker.okToProcess());
+	}
 	
 }
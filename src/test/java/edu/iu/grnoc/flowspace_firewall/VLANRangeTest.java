@@ -257,4 +257,37 @@ public class VLANRangeTest {
 		assertTrue(range.rangeOverlap(range3));
 	}
 	
+	@Test
+	public void testAvailableTagsOrder(){
+		VLANRange range = new VLANRange();
+		range.setVlanAvail((short)300, true);
+		range.setVlanAvail((short)-1, true);
+		range.setVlanAvail((short)20, true);
+		range.setVlanAvail((short)300, true);
+		
+		Short[] avail = range.getAvailableTags();
+		assertTrue("setting a tag twice only lists it once", avail.length == 3);
+		assertTrue(avail[0] == 300);
+		assertTrue(avail[1] == -1);
+		assertTrue(avail[2] == 20);
+		assertSame("tags are cached", avail, range.getAvailableTags());
+		
+		range.setVlanAvail((short)-1, false);
+		avail = range.getAvailableTags();
+		assertTrue(avail.length == 2);
+		assertTrue(avail[0] == 300);
+		assertTrue(avail[1] == 20);
+		assertFalse("untagged removed", range.getVlanAvail((short)-1));
+		assertTrue("vlan 20 still allowed", range.getVlanAvail((short)20));
+	}
+	
+	@Test
+	public void testCompareRangesEdges(){
+		VLANRange range = new VLANRange(new short[]{64, 63, 4094}, true);
+		assertTrue(range.rangeOverlap(new VLANRange(new short[]{63}, true)));
+		assertTrue(range.rangeOverlap(new VLANRange(new short[]{64}, true)));
+		assertTrue(range.rangeOverlap(new VLANRange(new short[]{4094}, true)));
+		assertFalse(range.rangeOverlap(new VLANRange(new short[]{62, 65, 4093}, true)));
+	}
+	
 }
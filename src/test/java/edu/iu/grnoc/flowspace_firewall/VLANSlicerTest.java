@@ -203,6 +203,31 @@ public class VLANSlicerTest {
 		assertNull("PortConfig for existing interface no part of slice name", slicer.getPortConfig("foo4"));
 	}
 	
+	/**
+	 * tests a port added after the switch connected (PORT_STATUS add)
+	 */
+	@Test
+	public void testPortConfigSetPortId(){
+		PortConfig pConfig7 = new PortConfig();
+		pConfig7.setPortName("foo7");
+		VLANRange range = new VLANRange();
+		range.setVlanAvail((short)107,true);
+		pConfig7.setVLANRange(range);
+		slicer.setPortConfig("foo7", pConfig7);
+		assertNull("PortConfig for port not on the switch yet", slicer.getPortConfig((short)7));
+		
+		slicer.setPortId("foo7", (short)7);
+		assertEquals("PortConfig for foo7 pulled out by short 7 matches", slicer.getPortConfig((short)7), pConfig7);
+		assertTrue("Port 7 is part of slice", slicer.isPortPartOfSlice((short)7));
+		assertEquals("PortConfig for foo  pulled out by short 1 still matches", slicer.getPortConfig((short)1), pConfig);
+		assertEquals("PortConfig for foo6 pulled out by short 59590 still matches", slicer.getPortConfig((short)59590), pConfig6);
+		
+		//switch still does not report the port so a refresh drops it again
+		slicer.refreshPorts();
+		assertNull("PortConfig for port no longer on the switch", slicer.getPortConfig((short)7));
+		assertEquals("PortConfig for foo3 pulled out by short 3 still matches", slicer.getPortConfig((short)3), pConfig3);
+	}
+	
 	/**
 	 * tests to see if a port is part of the slice
 	 */
@@ -382,6 +407,49 @@ public class VLANSlicerTest {
 		assertEquals("flow was allowed and matches", flow, flows.get(0));
 		
 	}
+	/**
+	 * tests that a cached verdict is dropped when the port config changes
+	 */
+	@Test
+	public void testIsFlowModAllowedVerdictCache(){
+		OFFlowMod flow = new OFFlowMod();
+		OFMatch match = new OFMatch();
+		match.setInputPort((short)1);
+		match.setDataLayerVirtualLan((short)1000);
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN));
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.IN_PORT));
+		flow.setMatch(match);
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionVirtualLanIdentifier setVid = new OFActionVirtualLanIdentifier();
+		setVid.setVirtualLanIdentifier((short)102);
+		OFActionOutput output = new OFActionOutput();
+		output.setPort((short)2);
+		actions.add(setVid);
+		actions.add(output);
+		flow.setActions(actions);
+		
+		assertEquals("flow was allowed", 1, slicer.allowedFlows(flow).size());
+		assertEquals("flow is still allowed", 1, slicer.allowedFlows(flow).size());
+		
+		//take vlan 102 away from the output port
+		PortConfig newConfig = new PortConfig();
+		newConfig.setPortName("foo2");
+		VLANRange range = new VLANRange();
+		range.setVlanAvail((short)1000, true);
+		newConfig.setVLANRange(range);
+		slicer.setPortConfig("foo2", newConfig);
+		assertEquals("flow is denied after the config change", 0, slicer.allowedFlows(flow).size());
+		
+		//same flow with a different vlan action is a different verdict
+		setVid.setVirtualLanIdentifier((short)1000);
+		assertEquals("flow to an allowed vlan is allowed", 1, slicer.allowedFlows(flow).size());
+		
+		range.setVlanAvail((short)102, true);
+		slicer.setPortId("foo2", (short)2);
+		setVid.setVirtualLanIdentifier((short)102);
+		assertEquals("flow is allowed after the port id is set again", 1, slicer.allowedFlows(flow).size());
+	}
+	
 	/**
 	 *  tests isFlowModAllowed for STRIP_VLAN Actions, first without -1 as an available vlan, then adding the -1,-1 range to the output port config.
 	 */
@@ -555,6 +623,69 @@ public class VLANSlicerTest {
 		
 	}
 	
+	/**
+	 * tests that wildcard expansions only change the input port
+	 * and share the expanded actions
+	 */
+	@Test
+	public void testWildcardExpansionSharesActions(){
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionVirtualLanIdentifier setVid = new OFActionVirtualLanIdentifier();
+		setVid.setVirtualLanIdentifier((short)1000);
+		actions.add(setVid);
+		OFActionOutput output = new OFActionOutput();
+		output.setPort((short)2);
+		actions.add(output);
+		
+		OFFlowMod flow = new OFFlowMod();
+		OFMatch match = new OFMatch();
+		match.setInputPort((short)0);
+		match.setDataLayerVirtualLan((short)1000);
+		match.setWildcards(match.getWildcardObj().matchOn(Flag.DL_VLAN));
+		flow.setMatch(match);
+		flow.setActions(actions);
+		flow.setPriority((short)300);
+		flow.setCookie(42L);
+		
+		List<OFFlowMod> flows = slicer.allowedFlows(flow);
+		assertEquals("one flow per port in the slice", 5, flows.size());
+		List<Short> ports = new ArrayList<Short>();
+		for(OFFlowMod expanded : flows){
+			assertNotSame("expansion has its own match", match, expanded.getMatch());
+			assertFalse("input port is matched", expanded.getMatch().getWildcardObj().isWildcarded(Flag.IN_PORT));
+			assertFalse("input port is unique", ports.contains(expanded.getMatch().getInputPort()));
+			ports.add(expanded.getMatch().getInputPort());
+			assertEquals("vlan kept", (short)1000, expanded.getMatch().getDataLayerVirtualLan());
+			assertSame("actions are shared", actions, expanded.getActions());
+			assertEquals("priority kept", (short)300, expanded.getPriority());
+			assertEquals("cookie kept", 42L, expanded.getCookie());
+		}
+		assertEquals("original match not changed", (short)0, match.getInputPort());
+		assertTrue("original match still wildcarded", match.getWildcardObj().isWildcarded(Flag.IN_PORT));
+		
+		//output ALL expands per port but the outputs are shared
+		output.setPort(OFPort.OFPP_ALL.getValue());
+		flows = slicer.allowedFlows(flow);
+		assertEquals("one flow per port in the slice", 5, flows.size());
+		OFAction firstOutput = null;
+		for(OFFlowMod expanded : flows){
+			assertEquals("set vlan and an output to every other port", 5, expanded.getActions().size());
+			for(OFAction action : expanded.getActions()){
+				if(action.getType() == OFActionType.OUTPUT){
+					OFActionOutput out = (OFActionOutput)action;
+					assertTrue("no output back out the input port", out.getPort() != expanded.getMatch().getInputPort());
+					if(out.getPort() == (short)2){
+						if(firstOutput == null){
+							firstOutput = out;
+						}
+						assertSame("outputs are shared", firstOutput, out);
+					}
+				}
+			}
+		}
+		assertEquals("original actions not changed", 2, actions.size());
+	}
+	
 	/**
 	 * tests the hasOverlap method to 
 	 */
@@ -946,4 +1077,124 @@ public class VLANSlicerTest {
 	}
 	
 	
+	/**
+	 * tests tagging packet data without re-serializing it
+	 */
+	@Test
+	public void testTagPacket(){
+		Ethernet pkt = new Ethernet();
+		pkt.setDestinationMACAddress("aa:bb:cc:dd:ee:ff");
+		pkt.setSourceMACAddress("ff:ee:dd:cc:bb:aa");
+		pkt.setEtherType((short)35021);
+		pkt.setPad(true);
+		byte[] untagged = pkt.serialize();
+		
+		byte[] tagged = VLANSlicer.tagPacket(untagged, (short)101);
+		assertEquals("tag was inserted", untagged.length + 4, tagged.length);
+		Ethernet taggedPkt = new Ethernet();
+		taggedPkt.deserialize(tagged, 0, tagged.length);
+		assertEquals("VLAN tag set is correct", 101, taggedPkt.getVlanID());
+		assertEquals("ether type kept", (short)35021, taggedPkt.getEtherType());
+		assertEquals("source mac kept", pkt.getSourceMAC(), taggedPkt.getSourceMAC());
+		for(int i = 12; i < untagged.length; i++){
+			assertEquals("payload kept", untagged[i], tagged[i + 4]);
+		}
+		
+		byte[] retagged = VLANSlicer.tagPacket(tagged, (short)2000);
+		assertEquals("existing tag was rewritten", tagged.length, retagged.length);
+		taggedPkt.deserialize(retagged, 0, retagged.length);
+		assertEquals("VLAN tag rewritten", 2000, taggedPkt.getVlanID());
+		taggedPkt.deserialize(tagged, 0, tagged.length);
+		assertEquals("original not changed", 101, taggedPkt.getVlanID());
+		
+		byte[] stripped = VLANSlicer.tagPacket(tagged, VLANRange.UNTAGGED);
+		assertArrayEquals("existing tag was removed", untagged, stripped);
+		taggedPkt.deserialize(tagged, 0, tagged.length);
+		assertEquals("original still tagged", 101, taggedPkt.getVlanID());
+		
+		byte[] copied = VLANSlicer.tagPacket(untagged, VLANRange.UNTAGGED);
+		assertArrayEquals("untagged frame copied as is", untagged, copied);
+		assertNotSame("untagged frame is a copy", untagged, copied);
+	}
+	
+	/**
+	 * tests OUTPUT:ALL in managed mode when some of the ports are untagged
+	 */
+	@Test
+	public void testAllowedPacketOutALLManagedMixedTags(){
+		VLANSlicer mixedSlicer = new VLANSlicer();
+		mixedSlicer.setTagManagement(true);
+		
+		PortConfig tagged = new PortConfig();
+		tagged.setPortName("foo");
+		VLANRange range = new VLANRange();
+		range.setVlanAvail((short)101,true);
+		tagged.setVLANRange(range);
+		mixedSlicer.setPortConfig("foo", tagged);
+		
+		PortConfig untagged = new PortConfig();
+		untagged.setPortName("foo2");
+		range = new VLANRange();
+		range.setVlanAvail(VLANRange.UNTAGGED,true);
+		untagged.setVLANRange(range);
+		mixedSlicer.setPortConfig("foo2", untagged);
+		
+		PortConfig tagged2 = new PortConfig();
+		tagged2.setPortName("foo3");
+		range = new VLANRange();
+		range.setVlanAvail((short)103,true);
+		tagged2.setVLANRange(range);
+		mixedSlicer.setPortConfig("foo3", tagged2);
+		mixedSlicer.setSwitch(sw);
+		
+		OFPacketOut out = new OFPacketOut();
+		List<OFAction> actions = new ArrayList<OFAction>();
+		OFActionOutput output = new OFActionOutput();
+		output.setType(OFActionType.OUTPUT);
+		output.setPort(OFPort.OFPP_ALL.getValue());
+		actions.add(output);
+		out.setActions(actions);
+		
+		Ethernet pkt = new Ethernet();
+		pkt.setDestinationMACAddress("aa:bb:cc:dd:ee:ff");
+		pkt.setSourceMACAddress("ff:ee:dd:cc:bb:aa");
+		pkt.setEtherType((short)35021);
+		pkt.setPad(true);
+		byte[] packetData = pkt.serialize();
+		out.setPacketData(packetData);
+		
+		List<OFMessage> outPackets = mixedSlicer.managedPacketOut(out);
+		assertEquals("one packet out per port", 3, outPackets.size());
+		Ethernet newPkt = new Ethernet();
+		for(OFMessage msg : outPackets){
+			OFPacketOut pktOut = (OFPacketOut) msg;
+			List<OFAction> acts = pktOut.getActions();
+			short port = ((OFActionOutput) acts.get(acts.size() - 1)).getPort();
+			newPkt.deserialize(pktOut.getPacketData(), 0, pktOut.getPacketData().length);
+			switch(port){
+			case 1:
+				assertEquals("port 1 is tagged 101", 101, newPkt.getVlanID());
+				break;
+			case 2:
+				assertEquals("port 2 is untagged", Ethernet.VLAN_UNTAGGED, newPkt.getVlanID());
+				assertArrayEquals("port 2 gets the frame as is", packetData, pktOut.getPacketData());
+				break;
+			case 3:
+				assertEquals("port 3 is tagged 103", 103, newPkt.getVlanID());
+				break;
+			default:
+				fail("packet out to unexpected port " + port);
+			}
+			assertEquals("packet out length", OFPacketOut.MINIMUM_LENGTH + pktOut.getActionsLength() + pktOut.getPacketData().length, pktOut.getLengthU());
+		}
+		
+		//a single output to the untagged port
+		output.setPort((short)2);
+		out.setPacketData(packetData);
+		outPackets = mixedSlicer.managedPacketOut(out);
+		assertEquals("single packet out", 1, outPackets.size());
+		OFPacketOut pktOut = (OFPacketOut) outPackets.get(0);
+		assertArrayEquals("untagged port gets the frame as is", packetData, pktOut.getPacketData());
+	}
+	
 }
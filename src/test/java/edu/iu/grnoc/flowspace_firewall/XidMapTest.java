@@ -133,4 +133,70 @@ public class XidMapTest {
 		assertTrue("does contain 1999", mapper.containsKey(1999));
 	}
 	
+	@Test
+	public void testXidMaxSize(){
+		XidMap mapper = new XidMap(10);
+		assertEquals("max size", 10, mapper.getMaxSize());
+		for(int i=1;i<20;i++){
+			mapper.put(i, i+100);
+		}
+		assertFalse("does not have 10", mapper.containsKey(10));
+		assertTrue("does contain 11", mapper.containsKey(11));
+		assertTrue("does contain 19", mapper.containsKey(19));
+		
+		//shrinking keeps the newest
+		mapper.setMaxSize(5);
+		assertFalse("does not have 15", mapper.containsKey(15));
+		assertTrue("does contain 16", mapper.containsKey(16));
+		assertEquals("19 == 119", 119, mapper.get(19));
+		
+		//growing keeps everything
+		mapper.setMaxSize(100);
+		for(int i=20;i<40;i++){
+			mapper.put(i, i+100);
+		}
+		assertTrue("does contain 16", mapper.containsKey(16));
+		assertTrue("does contain 39", mapper.containsKey(39));
+		assertTrue("removed to key 39", mapper.removeToKey(39));
+		assertFalse("does not have 16", mapper.containsKey(16));
+		assertFalse("does not have 39", mapper.containsKey(39));
+	}
+	
+	@Test
+	public void testXidReuse(){
+		XidMap mapper = new XidMap(4);
+		//remapping an xid keeps its place but takes the new value
+		mapper.put(1, 100);
+		mapper.put(2, 200);
+		mapper.put(1, 101);
+		assertEquals("1 == 101", 101, mapper.get(1));
+		mapper.put(3, 300);
+		mapper.put(4, 400);
+		assertFalse("1 was the oldest", mapper.containsKey(1));
+		assertTrue("contains 2", mapper.containsKey(2));
+		
+		//removed xids free up their room
+		assertEquals("removed 2", 200, mapper.remove(2));
+		mapper.put(5, 500);
+		assertTrue("contains 3", mapper.containsKey(3));
+		assertTrue("contains 5", mapper.containsKey(5));
+		
+		//churn through far more xids than fit without losing the newest
+		for(int i=1000;i<100000;i++){
+			mapper.put(i, i);
+			if(i % 7 == 0){
+				mapper.remove(i);
+			}
+		}
+		assertTrue("contains 99999", mapper.containsKey(99999));
+		assertEquals("99999 == 99999", 99999, mapper.get(99999));
+		assertFalse("7 multiple removed", mapper.containsKey(99995));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testXidRemoveMissing(){
+		XidMap mapper = new XidMap();
+		mapper.remove(1);
+	}
+	
 }